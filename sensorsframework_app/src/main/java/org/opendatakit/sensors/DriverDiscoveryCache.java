@@ -0,0 +1,263 @@
+/*
+ * Copyright (C) 2026 ODK-X contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sensors;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.util.Log;
+
+/**
+ * Remembers which installed packages declare a sensor driver, so the service
+ * does not read the manifest metadata of every package on each start. The
+ * cache is kept in a file keyed by package name and last update time; at
+ * start only packages that are new or were updated since are looked at
+ * again. Without a cache file all packages are read in a single pass.
+ */
+public class DriverDiscoveryCache {
+
+	private static final String LOGTAG = "DriverDiscoveryCache";
+
+	private static final String CACHE_FILE_NAME = "driver_discovery.cache";
+	private static final int CACHE_FORMAT_VERSION = 1;
+
+	private final Context context;
+	private final File cacheFile;
+
+	// by package name, every installed package, with or without a driver
+	private Map<String, Entry> entries = null;
+
+	public DriverDiscoveryCache(Context context) {
+		this.context = context;
+		this.cacheFile = new File(context.getFilesDir(), CACHE_FILE_NAME);
+	}
+
+	/**
+	 * @return the drivers of all installed packages that match the framework
+	 *         version, for any channel
+	 */
+	public synchronized List<DriverType> getDrivers(String version) {
+		if (entries == null) {
+			entries = load(version);
+		}
+
+		Map<String, Entry> refreshed;
+		boolean changed;
+		if (entries.isEmpty()) {
+			refreshed = scanAll(version);
+			changed = true;
+		} else {
+			refreshed = new HashMap<String, Entry>();
+			changed = refresh(refreshed, version);
+		}
+		entries = refreshed;
+		if (changed) {
+			save(version);
+		}
+
+		List<DriverType> drivers = new ArrayList<DriverType>();
+		for (Entry entry : entries.values()) {
+			if (entry.driver != null) {
+				drivers.add(entry.driver);
+			}
+		}
+		return drivers;
+	}
+
+	/**
+	 * Lists the packages without their metadata, which is cheap, and reads the
+	 * metadata only of packages the cache doesn't know at their current
+	 * update time.
+	 *
+	 * @return true if anything differs from the cached entries
+	 */
+	private boolean refresh(Map<String, Entry> refreshed, String version) {
+		PackageManager pkgManager = context.getPackageManager();
+		List<PackageInfo> packages = pkgManager.getInstalledPackages(0);
+		boolean changed = packages.size() != entries.size();
+
+		for (PackageInfo packageInfo : packages) {
+			Entry entry = entries.get(packageInfo.packageName);
+			if (entry == null || entry.lastUpdateTime != packageInfo.lastUpdateTime) {
+				DriverType driver = null;
+				try {
+					driver = SensorDriverDiscovery.driverFromMetadata(pkgManager.getApplicationInfo(
+							packageInfo.packageName, PackageManager.GET_META_DATA), version);
+				} catch (PackageManager.NameNotFoundException e) {
+					// removed while we were looking
+					continue;
+				}
+				entry = new Entry(packageInfo.lastUpdateTime, driver);
+				changed = true;
+			}
+			refreshed.put(packageInfo.packageName, entry);
+		}
+		return changed;
+	}
+
+	private Map<String, Entry> scanAll(String version) {
+		Map<String, Entry> scanned = new HashMap<String, Entry>();
+		PackageManager pkgManager = context.getPackageManager();
+		List<PackageInfo> packages = pkgManager.getInstalledPackages(PackageManager.GET_META_DATA);
+
+		for (PackageInfo packageInfo : packages) {
+			DriverType driver = null;
+			if (packageInfo.applicationInfo != null) {
+				driver = SensorDriverDiscovery.driverFromMetadata(packageInfo.applicationInfo, version);
+			}
+			scanned.put(packageInfo.packageName, new Entry(packageInfo.lastUpdateTime, driver));
+		}
+		return scanned;
+	}
+
+	private Map<String, Entry> load(String version) {
+		Map<String, Entry> loaded = new HashMap<String, Entry>();
+		if (!cacheFile.exists()) {
+			return loaded;
+		}
+
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile)));
+			if (in.readInt() != CACHE_FORMAT_VERSION || !version.equals(in.readUTF())) {
+				// written by another build, start over
+				return loaded;
+			}
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				String packageName = in.readUTF();
+				long lastUpdateTime = in.readLong();
+				DriverType driver = null;
+				if (in.readBoolean()) {
+					String driverType = readString(in);
+					String driverAddress = readString(in);
+					String channelName = readString(in);
+					String readUiIntentStr = readString(in);
+					String configUiIntentStr = readString(in);
+					String tableDefinition = readString(in);
+					try {
+						driver = new DriverTypeImpl(driverType, packageName, driverAddress,
+								CommunicationChannelType.valueOf(channelName), readUiIntentStr,
+								configUiIntentStr, tableDefinition);
+					} catch (IllegalArgumentException e) {
+						// channel no longer known, look at the package again
+						continue;
+					}
+				}
+				loaded.put(packageName, new Entry(lastUpdateTime, driver));
+			}
+		} catch (IOException e) {
+			Log.w(LOGTAG, "Unable to read driver cache, rescanning packages");
+			loaded.clear();
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					// nothing to do
+				}
+			}
+		}
+		return loaded;
+	}
+
+	private void save(String version) {
+		File tmpFile = new File(cacheFile.getPath() + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			out.writeInt(CACHE_FORMAT_VERSION);
+			out.writeUTF(version);
+			out.writeInt(entries.size());
+			for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+				Entry entry = mapEntry.getValue();
+				out.writeUTF(mapEntry.getKey());
+				out.writeLong(entry.lastUpdateTime);
+				out.writeBoolean(entry.driver != null);
+				if (entry.driver != null) {
+					writeString(out, entry.driver.getSensorType());
+					writeString(out, entry.driver.getSensorDriverAddress());
+					writeString(out, entry.driver.getCommunicationChannelType().name());
+					writeString(out, entry.driver.getReadingUiIntentStr());
+					writeString(out, entry.driver.getConfigUiIntentStr());
+					writeString(out, entry.driver.getTableDefinitionStr());
+				}
+			}
+			out.close();
+			out = null;
+			// replace the old cache in one step so a crash never leaves half a file
+			if (!tmpFile.renameTo(cacheFile)) {
+				Log.w(LOGTAG, "Unable to replace driver cache");
+			}
+		} catch (IOException e) {
+			Log.w(LOGTAG, "Unable to write driver cache", e);
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// nothing to do
+				}
+			}
+			tmpFile.delete();
+		}
+	}
+
+	// table definitions can be longer than writeUTF allows, and may be null
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		if (value == null) {
+			out.writeInt(-1);
+			return;
+		}
+		byte[] bytes = value.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		int length = in.readInt();
+		if (length < 0) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return new String(bytes, "UTF-8");
+	}
+
+	private static class Entry {
+		final long lastUpdateTime;
+		// null if the package declares no driver
+		final DriverType driver;
+
+		Entry(long lastUpdateTime, DriverType driver) {
+			this.lastUpdateTime = lastUpdateTime;
+			this.driver = driver;
+		}
+	}
+}
@@ -17,6 +17,9 @@ package org.opendatakit.sensors;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.opendatakit.sensors.drivers.IODKSensorDriver;
 
@@ -26,10 +29,15 @@ import android.content.Intent;
 import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.RemoteException;
 import android.util.Log;
 
 /**
+ * Handle on the driver service of one sensor. The service is bound on first
+ * use rather than when the proxy is created, and unbound again once the
+ * driver has not been used for the idle period, so registered sensors nobody
+ * reads don't keep driver processes alive.
  * 
  * @author wbrunette@gmail.com
  * @author rohitchaudhri@gmail.com
@@ -38,27 +46,115 @@ import android.util.Log;
 public class GenericDriverProxy implements ServiceConnection, DriverCommunicator {
 
 	public static final String TAG = "GenericDriverProxy";
+
+	public static final long DEFAULT_IDLE_UNBIND_MS = 2 * 60 * 1000;
+	private static final long MIN_IDLE_CHECK_MS = 1000;
+	// longest a call waits for the driver to bind
+	private static final long BIND_WAIT_MS = 5000;
+
 	private Context componentContext;
-	private IODKSensorDriver sensorDriverProxy;
-	private boolean isBoundToService;
+	private final String packageName;
+	private String className;
+	private volatile IODKSensorDriver sensorDriverProxy;
+	private volatile boolean isBoundToService;
+	// the binding stays registered until unbound, connected or not
+	private boolean bindRequested;
+
+	private volatile long idleUnbindMs = DEFAULT_IDLE_UNBIND_MS;
+	private volatile long lastUse;
+	private ScheduledFuture<?> idleCheck;
+
+	// fair, so calls queued while binding go out in the order they were made
+	private final ReentrantLock pendingCalls = new ReentrantLock(true);
 
 	public GenericDriverProxy(String packageName, String className,
 			Context context) {
 		componentContext = context;
+		this.packageName = packageName;
+		this.className = className;
+	}
 
+	/**
+	 * @param millis
+	 *            how long the driver may go unused before it is unbound, 0
+	 *            keeps it bound until shutdown
+	 */
+	public synchronized void setIdleUnbindMs(long millis) {
+		idleUnbindMs = millis;
+		scheduleIdleCheck();
+	}
+
+	/**
+	 * Binds the driver if it isn't, and marks it used. Binding completes
+	 * asynchronously, see callDriver.
+	 */
+	private synchronized void ensureBound() {
+		lastUse = System.currentTimeMillis();
+		if (!bindRequested) {
+			bind();
+			scheduleIdleCheck();
+		}
+	}
+
+	private void scheduleIdleCheck() {
+		long idleMs = idleUnbindMs;
+		if (idleMs <= 0 || !bindRequested || idleCheck != null) {
+			return;
+		}
+		long checkMs = Math.max(MIN_IDLE_CHECK_MS, idleMs / 4);
+		idleCheck = SensorsSingleton.getAcquisitionRuntime().scheduleWithFixedDelay(
+				"driver idle check " + packageName, new Runnable() {
+					public void run() {
+						unbindIfIdle();
+					}
+				}, checkMs, checkMs, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized void unbindIfIdle() {
+		long idleMs = idleUnbindMs;
+		if (idleMs > 0 && System.currentTimeMillis() - lastUse >= idleMs) {
+			Log.d(TAG, "unbinding idle sensor driver: pkg: " + packageName);
+			shutdown();
+		}
+	}
+
+	private void bind() {
 		Intent bind_intent = new Intent();
 		// XXX make sure classname used in the intent is the fully qualified
 		// class name
 		Log.d(TAG,"binding to sensor driver: pkg: " + packageName + " className: "+ className);
 		bind_intent.setClassName(packageName, className);
-		componentContext.bindService(bind_intent, this,
+		bindRequested = componentContext.bindService(bind_intent, this,
 				Context.BIND_AUTO_CREATE);
 	}
 
+	public String getPackageName() {
+		return packageName;
+	}
+
+	/**
+	 * Binds again after the driver package was updated, the driver service
+	 * may have moved to a new class. A driver that isn't bound right now is
+	 * bound to the new class on its next use.
+	 */
+	public synchronized void rebind(String className) {
+		this.className = className;
+		if (bindRequested) {
+			shutdown();
+			ensureBound();
+		}
+	}
 
 	@Override
-	public void shutdown() {
-		if(isBoundToService) {
+	public synchronized void shutdown() {
+		if (idleCheck != null) {
+			idleCheck.cancel(false);
+			idleCheck = null;
+		}
+		if(bindRequested) {
+			bindRequested = false;
+			isBoundToService = false;
+			notifyAll();
 			try {
 				componentContext.unbindService(this);
 			}
@@ -70,14 +166,20 @@ public class GenericDriverProxy implements ServiceConnection, DriverCommunicator
 	}
 
 	@Override
-	public void onServiceConnected(ComponentName className, IBinder service) {
+	public synchronized void onServiceConnected(ComponentName className, IBinder service) {
+		if (!bindRequested) {
+			// unbound again before the bind completed
+			return;
+		}
 		Log.d(TAG, "Bound to SensorDriver");
 		sensorDriverProxy = IODKSensorDriver.Stub.asInterface(service);
 		isBoundToService = true;
+		// release the calls waiting in callDriver
+		notifyAll();
 	}
 
 	@Override
-	public void onServiceDisconnected(ComponentName arg0) {
+	public synchronized void onServiceDisconnected(ComponentName arg0) {
 		Log.d(TAG, "unbound to sensor driver");
 		isBoundToService = false;
 	}
@@ -88,94 +190,126 @@ public class GenericDriverProxy implements ServiceConnection, DriverCommunicator
 	}
 
 	@Override
-	public SensorDataParseResponse getSensorData(long maxNumReadings,
-			List<SensorDataPacket> rawSensorData, byte [] remainingData) {
-
-		if (isBoundToService) {
-			try {
-//				Log.d(TAG, " calling getSensorDataV2");
-				SensorDataParseResponse sdp = sensorDriverProxy.getSensorDataV2(maxNumReadings,
-						rawSensorData, remainingData);
-				return sdp;
-			} catch (RemoteException rex) {
-				rex.printStackTrace();
+	public SensorDataParseResponse getSensorData(final long maxNumReadings,
+			final List<SensorDataPacket> rawSensorData, final byte [] remainingData) {
+		return callDriver("getSensorDataV2", new DriverCall<SensorDataParseResponse>() {
+			public SensorDataParseResponse call(IODKSensorDriver driver) throws RemoteException {
+				return driver.getSensorDataV2(maxNumReadings, rawSensorData, remainingData);
 			}
-		}
-		return null;
+		});
 	}
 	
 	@Override
-	public byte[] sendDataToSensor(Bundle dataToFormat) {
-		byte [] encodedSensorData = null;
-		if (isBoundToService) {
-			try {
-				encodedSensorData = sensorDriverProxy.encodeDataToSendToSensor(dataToFormat);
-			} catch (RemoteException rex) {
-				rex.printStackTrace();
+	public byte[] sendDataToSensor(final Bundle dataToFormat) {
+		return callDriver("encodeDataToSendToSensor", new DriverCall<byte[]>() {
+			public byte[] call(IODKSensorDriver driver) throws RemoteException {
+				return driver.encodeDataToSendToSensor(dataToFormat);
 			}
-		}
-		return encodedSensorData;
+		});
 	}
 
 	@Override
-	public byte[] configureCmd(String setting, Bundle params) throws ParameterMissingException {
-		byte[] cmd = null;
-		if (isBoundToService) {
-			try {
-				cmd = sensorDriverProxy.configureCmd(setting, params);
-			} catch (RemoteException rex) {
-				rex.printStackTrace();
+	public byte[] configureCmd(final String setting, final Bundle params) throws ParameterMissingException {
+		return callDriver("configureCmd", new DriverCall<byte[]>() {
+			public byte[] call(IODKSensorDriver driver) throws RemoteException {
+				return driver.configureCmd(setting, params);
 			}
-		}
-		return cmd;
+		});
 	}
 
 	@Override
 	public byte[] getSensorDataCmd() {
-		byte[] cmd = null;
-		if (isBoundToService) {
-			try {
-				cmd = sensorDriverProxy.getSensorDataCmd();
-			} catch (RemoteException rex) {
-				rex.printStackTrace();
+		return callDriver("getSensorDataCmd", new DriverCall<byte[]>() {
+			public byte[] call(IODKSensorDriver driver) throws RemoteException {
+				return driver.getSensorDataCmd();
 			}
-		}
-		return cmd;
+		});
 	}
 
 	@Override
 	public byte[] startCmd() {
-		byte[] cmd = null;
-		if (isBoundToService) {
-			try {
-				cmd = sensorDriverProxy.startCmd();
-			} catch (RemoteException rex) {
-				rex.printStackTrace();
+		return callDriver("startCmd", new DriverCall<byte[]>() {
+			public byte[] call(IODKSensorDriver driver) throws RemoteException {
+				return driver.startCmd();
 			}
-		}
-		return cmd;
+		});
 	}
 
 	@Override
 	public byte[] stopCmd() {
-		byte[] cmd = null;
-		try {
-			cmd = sensorDriverProxy.stopCmd();
-		} catch (RemoteException rex) {
-			rex.printStackTrace();
-		}
-		return cmd;
+		return callDriver("stopCmd", new DriverCall<byte[]>() {
+			public byte[] call(IODKSensorDriver driver) throws RemoteException {
+				return driver.stopCmd();
+			}
+		});
 	}
 
 
 	@Override
 	public List<SensorParameter> getDriverParameters() {
-		List<SensorParameter> list = null;
+		return callDriver("getDriverParameters", new DriverCall<List<SensorParameter>>() {
+			public List<SensorParameter> call(IODKSensorDriver driver) throws RemoteException {
+				return driver.getDriverParameters();
+			}
+		});
+	}
+
+	private interface DriverCall<T> {
+		T call(IODKSensorDriver driver) throws RemoteException;
+	}
+
+	/**
+	 * Makes a call on the driver, binding it first if needed. Calls made while
+	 * the driver is binding queue up in the order they were made, wait up to
+	 * BIND_WAIT_MS for the connection and then go out one after the other.
+	 * 
+	 * @return the result of the call, null if the driver could not be reached
+	 */
+	private <T> T callDriver(String name, DriverCall<T> call) {
+		ensureBound();
+		// once bound, calls still go through the queue until it has drained
+		boolean queued = !isBoundToService || pendingCalls.isLocked();
+		if (queued) {
+			pendingCalls.lock();
+		}
 		try {
-			list = sensorDriverProxy.getDriverParameters();
-		} catch (RemoteException rex) {
-			rex.printStackTrace();
+			if (queued && !awaitConnected()) {
+				Log.w(TAG, "driver " + packageName + " not bound, dropping call " + name);
+				return null;
+			}
+			IODKSensorDriver driver = sensorDriverProxy;
+			try {
+				return call.call(driver);
+			} catch (RemoteException rex) {
+				rex.printStackTrace();
+				return null;
+			}
+		} finally {
+			if (queued) {
+				pendingCalls.unlock();
+			}
 		}
-		return list;
-	}	
+	}
+
+	private synchronized boolean awaitConnected() {
+		if (Looper.myLooper() == Looper.getMainLooper()) {
+			// the connection is delivered on the main thread, waiting here would
+			// only run out the clock
+			return isBoundToService;
+		}
+		long deadline = System.currentTimeMillis() + BIND_WAIT_MS;
+		while (bindRequested && !isBoundToService) {
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				return false;
+			}
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return isBoundToService;
+	}
 }
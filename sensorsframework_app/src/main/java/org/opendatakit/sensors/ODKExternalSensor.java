@@ -17,14 +17,20 @@ package org.opendatakit.sensors;
 
 import android.os.Bundle;
 import android.util.Log;
+import org.opendatakit.sensors.manager.AbstractChannelManagerBase;
 import org.opendatakit.sensors.manager.ChannelManager;
 import org.opendatakit.sensors.manager.DatabaseManager;
+import org.opendatakit.sensors.manager.ODKSensorManager;
+import org.opendatakit.sensors.manager.JournaledPacketBuffer;
+import org.opendatakit.sensors.manager.SensorJournal;
 import org.opendatakit.sensors.manager.SensorNotFoundException;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * @author wbrunette@gmail.com
@@ -34,21 +40,25 @@ public class ODKExternalSensor implements ODKSensor {
    // logging
    private static final String LOGTAG = "ODKExternalSensor";
 
+   // longest configure waits for the sensor to acknowledge a setting
+   private static final long CONFIGURE_TIMEOUT_MS = 5000;
+
    private String sensorId;
    private String appNameForDatabase;
    private boolean dbTransfer;
    private ChannelManager commChannelManager;
    private DriverCommunicator sensorDriverCom;
-   private Queue<SensorDataPacket> buffer;
+   private final JournaledPacketBuffer buffer;
    private String readingUiIntentStr;
    private String configUiIntentStr;
    private int clientCounter;
 
    private byte[] remainingBytes;
 
+
    public ODKExternalSensor(String sensorID, String appName,  boolean transferToDb,
        DriverCommunicator driverCom, ChannelManager channelMgr, String readingUiIntentStr,
-       String configUiIntentStr) {
+       String configUiIntentStr, SensorJournal journal) {
       this.sensorId = sensorID;
       this.appNameForDatabase = appName;
       this.dbTransfer = transferToDb;
@@ -58,7 +68,7 @@ public class ODKExternalSensor implements ODKSensor {
       this.configUiIntentStr = configUiIntentStr;
 
       clientCounter = 0;
-      this.buffer = new ConcurrentLinkedQueue<SensorDataPacket>();
+      this.buffer = new JournaledPacketBuffer(sensorID, journal);
    }
 
    /* (non-Javadoc)
@@ -96,8 +106,38 @@ public class ODKExternalSensor implements ODKSensor {
     * @see org.opendatakit.sensors.ODKSensorInterface#configure(java.lang.String, android.os.Bundle)
     */
    @Override public void configure(String setting, Bundle params) throws ParameterMissingException {
+      Future<?> sent = configureAsync(setting, params);
       try {
-         commChannelManager.sensorWrite(sensorId, sensorDriverCom.configureCmd(setting, params));
+         sent.get(CONFIGURE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         throw new IllegalStateException("Interrupted configuring " + sensorId);
+      } catch (ExecutionException e) {
+         throw new IllegalStateException(
+             "Sensor " + sensorId + " did not take setting " + setting, e.getCause());
+      } catch (TimeoutException e) {
+         throw new IllegalStateException(
+             "Sensor " + sensorId + " did not acknowledge setting " + setting);
+      }
+   }
+
+   /**
+    * Sends a setting without waiting for the sensor, so several settings can
+    * be in flight at once.
+    *
+    * @return completes once the sensor acknowledged the setting, on channels
+    * that have acknowledgements, or once it was sent on the others
+    */
+   public Future<?> configureAsync(String setting, Bundle params)
+       throws ParameterMissingException {
+      // settings of the link itself (e.g. serial line speed) never reach the driver
+      if (commChannelManager.sensorConfigure(sensorId, setting, params)) {
+         return AbstractChannelManagerBase.completedWrite();
+      }
+
+      try {
+         return commChannelManager
+             .sensorWriteAsync(sensorId, sensorDriverCom.configureCmd(setting, params));
       } catch (ParameterMissingException pmx) {
          pmx.printStackTrace();
          throw pmx;
@@ -108,19 +148,24 @@ public class ODKExternalSensor implements ODKSensor {
     * @see org.opendatakit.sensors.ODKSensorInterface#getSensorData(long)
     */
    @Override public List<Bundle> getSensorData(long maxNumReadings) {
-      ArrayList<SensorDataPacket> rawData = new ArrayList<SensorDataPacket>();
-
-      synchronized (buffer) {
-         rawData.addAll(buffer);
-         buffer.clear();
-      }
+      JournaledPacketBuffer.Drained rawData = buffer.drain();
 
       SensorDataParseResponse response = sensorDriverCom
-          .getSensorData(maxNumReadings, rawData, remainingBytes);
+          .getSensorData(maxNumReadings, rawData.packets, remainingBytes);
+      if (response == null) {
+         // driver not bound (yet), keep the raw data for the next call
+         buffer.restore(rawData);
+         return new ArrayList<Bundle>();
+      }
       remainingBytes = response.getRemainingData();
+      buffer.handedOut(rawData, dbTransfer);
       return response.getSensorData();
    }
 
+   @Override public void acknowledgeSensorData() {
+      buffer.acknowledge();
+   }
+
    /* (non-Javadoc)
     * @see org.opendatakit.sensors.ODKSensorInterface#sendDataToSensor(android.os.Bundle)
     */
@@ -170,8 +215,10 @@ public class ODKExternalSensor implements ODKSensor {
     * @see org.opendatakit.sensors.ODKSensorInterface#addSensorDataPacket(org.opendatakit.sensors.SensorDataPacket)
     */
    @Override public void addSensorDataPacket(SensorDataPacket packet) {
-      synchronized (buffer) {
-         buffer.add(packet);
+      buffer.add(packet);
+      ODKSensorManager sensorManager = SensorsSingleton.getSensorManager();
+      if (sensorManager != null) {
+         sensorManager.packetBuffered(sensorId, packet, dbTransfer);
       }
    }
 
@@ -180,9 +227,7 @@ public class ODKExternalSensor implements ODKSensor {
     */
    @Override public void dataBufferReset() {
       Log.v(LOGTAG, "dataBufferReset: clearing buffer for sensor ");
-      if (buffer != null) {
-         buffer = new ConcurrentLinkedQueue<SensorDataPacket>();
-      }
+      buffer.clear();
    }
 
    /* (non-Javadoc)
@@ -36,14 +36,24 @@ public interface ODKSensor {
 	public void disconnect() throws SensorNotFoundException;
 
 	/**
-	 * Sends a message to the sensor to configure it.
+	 * Sends a message to the sensor to configure it. Returns once the sensor
+	 * acknowledged it, on channels that have acknowledgements.
 	 * @param setting TODO
+	 * @throws IllegalStateException if the sensor did not take the setting
 	 */
 	public void configure(String setting, Bundle params)
 			throws ParameterMissingException;
 
 	public List<Bundle> getSensorData(long maxNumReadings);
 
+	/**
+	 * Tells the sensor the readings returned by getSensorData so far are
+	 * stored, so it can drop them from its journal. Sensors that transfer to
+	 * the database wait for this while a transfer worker runs; otherwise
+	 * returning the readings to a client is enough.
+	 */
+	public void acknowledgeSensorData();
+
 	public void sendDataToSensor(Bundle dataToEncode);
 
 	public boolean startSensor();
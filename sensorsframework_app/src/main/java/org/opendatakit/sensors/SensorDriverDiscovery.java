@@ -16,6 +16,7 @@
 package org.opendatakit.sensors;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import org.opendatakit.sensors.drivers.ManifestMetadata;
@@ -44,44 +45,73 @@ public class SensorDriverDiscovery {
 
 		for (ApplicationInfo packageInfo : packages) 
 		{
-			try
-			{  
-				if(packageInfo.metaData != null ) {  
-
-					Bundle data = packageInfo.metaData; 
-					
-					String frameworkVersion = data.getString(ManifestMetadata.ODK_FRAMEWORK_VERSION);
-					String driverCommChannel = data.getString(ManifestMetadata.DRIVER_COMMUNICATION_CHANNEL);
-					String driverType = data.getString(ManifestMetadata.DRIVER_TYPE);
-					String driverPackageName = packageInfo.packageName;
-					String driverAddress = data.getString(ManifestMetadata.DRIVER_ADDRESS);
-					String readUiIntentStr = data.getString(ManifestMetadata.DRIVER_READ_UI);
-					String configUiIntentStr = data.getString(ManifestMetadata.DRIVER_CONFIG_UI);
-					// This is an optional field used to write data into a database 
-					String tableDefinition = data.getString(ManifestMetadata.TABLE_DEFINITION);
-					
-					if(frameworkVersion == null) {
-						continue;
-					}
-					
-					CommunicationChannelType commChannel = CommunicationChannelType.valueOf(driverCommChannel);
-					
-					// verify driver version & comm channel type is correct
-					if(version.equals(frameworkVersion) && commChannelType1.equals(commChannel) && driverCommChannel != null && driverType != null && driverAddress != null) {
-						Log.d(LOGTAG ,"Adding Driver for Package: "+ driverPackageName + "  Driver address: " + driverAddress);  
-						DriverType driver = new DriverTypeImpl(driverType, driverPackageName, driverAddress, commChannel, readUiIntentStr, configUiIntentStr, tableDefinition);
-						drivers.add(driver); 
-					} else {
-						Log.d(LOGTAG ,"NOT ADDING Driver for Package: "+ driverPackageName + "  Driver address: " + driverAddress);  
-					}
-				}
+			DriverType driver = driverFromMetadata(packageInfo, version);
+			if (driver != null && commChannelType1.equals(driver.getCommunicationChannelType())) {
+				drivers.add(driver);
 			}
-			catch (NullPointerException e)
-			{
-				e.printStackTrace();
-			}          
 		}
 		return drivers;
 	}
 
+	/**
+	 * Resolves the driver a single package declares, used when a package is
+	 * installed, updated or removed instead of scanning every package again.
+	 * 
+	 * @return the driver, or null if the package is not installed or declares
+	 *         no driver for one of the channels
+	 */
+	public static DriverType getDriverInPackage(Context context, String packageName,
+			Collection<CommunicationChannelType> commChannelTypes, String version) {
+		ApplicationInfo packageInfo;
+		try {
+			packageInfo = context.getPackageManager().getApplicationInfo(packageName,
+					PackageManager.GET_META_DATA);
+		} catch (PackageManager.NameNotFoundException e) {
+			return null;
+		}
+		DriverType driver = driverFromMetadata(packageInfo, version);
+		if (driver != null && commChannelTypes.contains(driver.getCommunicationChannelType())) {
+			return driver;
+		}
+		return null;
+	}
+
+	static DriverType driverFromMetadata(ApplicationInfo packageInfo, String version) {
+		if(packageInfo.metaData == null ) {
+			return null;
+		}
+
+		Bundle data = packageInfo.metaData; 
+		
+		String frameworkVersion = data.getString(ManifestMetadata.ODK_FRAMEWORK_VERSION);
+		String driverCommChannel = data.getString(ManifestMetadata.DRIVER_COMMUNICATION_CHANNEL);
+		String driverType = data.getString(ManifestMetadata.DRIVER_TYPE);
+		String driverPackageName = packageInfo.packageName;
+		String driverAddress = data.getString(ManifestMetadata.DRIVER_ADDRESS);
+		String readUiIntentStr = data.getString(ManifestMetadata.DRIVER_READ_UI);
+		String configUiIntentStr = data.getString(ManifestMetadata.DRIVER_CONFIG_UI);
+		// This is an optional field used to write data into a database 
+		String tableDefinition = data.getString(ManifestMetadata.TABLE_DEFINITION);
+		
+		if(frameworkVersion == null || driverCommChannel == null) {
+			return null;
+		}
+		
+		CommunicationChannelType commChannel;
+		try {
+			commChannel = CommunicationChannelType.valueOf(driverCommChannel);
+		} catch (IllegalArgumentException e) {
+			Log.d(LOGTAG ,"Unknown channel " + driverCommChannel + " for Package: "+ driverPackageName);
+			return null;
+		}
+		
+		// verify driver version & comm channel type is correct
+		if(version.equals(frameworkVersion) && driverType != null && driverAddress != null) {
+			Log.d(LOGTAG ,"Adding Driver for Package: "+ driverPackageName + "  Driver address: " + driverAddress);  
+			return new DriverTypeImpl(driverType, driverPackageName, driverAddress, commChannel, readUiIntentStr, configUiIntentStr, tableDefinition);
+		}
+		Log.d(LOGTAG ,"NOT ADDING Driver for Package: "+ driverPackageName + "  Driver address: " + driverAddress);  
+		return null;
+	}
+
 }
@@ -16,14 +16,23 @@
 package org.opendatakit.sensors;
 
 import android.content.Context;
+import android.os.SystemClock;
 import android.util.Log;
 import org.opendatakit.sensors.bluetooth.BluetoothManager;
 import org.opendatakit.sensors.exception.CustomUncaughtExceptionHandler;
+import org.opendatakit.sensors.manager.AcquisitionRuntime;
+import org.opendatakit.sensors.manager.ChannelManager;
 import org.opendatakit.sensors.manager.DatabaseManager;
 import org.opendatakit.sensors.manager.ODKSensorManager;
 import org.opendatakit.sensors.dummy.DummyManager;
+import org.opendatakit.sensors.network.NetworkManager;
 import org.opendatakit.sensors.usb.USBManager;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
 /**
  * @author wbrunette@gmail.com
  * @author rohitchaudhri@gmail.com
@@ -40,14 +49,29 @@ public class SensorsSingleton {
 
    private static DummyManager dummyManager = null;
 
+   private static NetworkManager networkManager = null;
+
    private static DatabaseManager dbManager = null;
 
+   private static AcquisitionRuntime acquisitionRuntime = null;
+
    private static ODKSensorManager sensorManager = null;
 
    private static boolean constructed = false;
 
+   // startup stages, done once the stage has run
+   private static Future<?> databaseReady = null;
+   private static Future<?> driversReady = null;
+   private static Future<?> sensorsReady = null;
+
    private static String defaultAppName = null;
 
+   /**
+    * Creates the managers and returns right away. Opening the database,
+    * discovering drivers, loading the registered sensors and initializing the
+    * channels run as stages on background threads; binder calls wait for the
+    * stages, and the sensor, they need through ODKSensorManager.awaitSensor.
+    */
    public synchronized static void construct(Context cxt) {
       if (constructed) {
          return;
@@ -56,7 +80,10 @@ public class SensorsSingleton {
       // START CONSTRUCTION
       Log.d(LOGTAG, "Starting Singleton Construction");
 
-      // create and initialize database
+      // threads the communication managers run sensor I/O and startup on
+      acquisitionRuntime = new AcquisitionRuntime();
+
+      // create database, opened by a startup stage
       dbManager = new DatabaseManager(cxt);
 
       // create communication managers
@@ -65,11 +92,15 @@ public class SensorsSingleton {
       if(DEBUG) {
          dummyManager = new DummyManager(cxt, dbManager);
       }
+      CommunicationChannelType networkType = networkChannelType();
+      if (networkType != null) {
+         networkManager = new NetworkManager(cxt, networkType);
+      }
       Thread.setDefaultUncaughtExceptionHandler(new CustomUncaughtExceptionHandler());
 
       // create sensor manager
       sensorManager = new ODKSensorManager(cxt, dbManager, bluetoothManager, usbManager,
-          dummyManager);
+          dummyManager, networkManager);
 
       // provide reference to the sensor manager
       bluetoothManager.setSensorManager(sensorManager);
@@ -77,16 +108,58 @@ public class SensorsSingleton {
       if(DEBUG) {
          dummyManager.setSensorManager(sensorManager);
       }
+      if (networkManager != null) {
+         networkManager.setSensorManager(sensorManager);
+      }
 
-      // try to connect to registered sensors
-      sensorManager.initializeRegisteredSensors();
+      // the database and the drivers are independent of each other
+      databaseReady = stage("database", new Runnable() {
+         public void run() {
+            dbManager.open();
+         }
+      });
+      driversReady = stage("driver discovery", new Runnable() {
+         public void run() {
+            sensorManager.queryNupdateSensorDriverTypes();
+            sensorManager.registerPackageReceiver();
+         }
+      });
 
-      // start communication managers
-      bluetoothManager.initializeSensors();
-      usbManager.initializeSensors();
+      // load registered sensors, those that were connected reconnect in the background
+      Future<?> registeredSensorsReady = stage("registered sensors", new Runnable() {
+         public void run() {
+            sensorManager.initializeRegisteredSensors();
+         }
+      }, databaseReady, driversReady);
+      // binder calls only wait for the sensors, not for the channels
+      sensorManager.setRegistryReady(registeredSensorsReady);
+
+      // start communication managers, in parallel
+      List<ChannelManager> channels = new ArrayList<ChannelManager>();
+      channels.add(bluetoothManager);
+      channels.add(usbManager);
       if(DEBUG) {
-         dummyManager.initializeSensors();
+         channels.add(dummyManager);
+      }
+      if (networkManager != null) {
+         channels.add(networkManager);
       }
+      final Future<?>[] channelsReady = new Future<?>[channels.size()];
+      for (int i = 0; i < channelsReady.length; i++) {
+         final ChannelManager channel = channels.get(i);
+         channelsReady[i] = stage("initialize " + channel.getCommChannelType().name(),
+             new Runnable() {
+                public void run() {
+                   channel.initializeSensors();
+                }
+             }, registeredSensorsReady);
+      }
+
+      sensorsReady = stage("sensors ready", new Runnable() {
+         public void run() {
+            Log.d(LOGTAG, "Registered sensors loaded, channels initialized");
+         }
+      }, channelsReady);
 
       // UPDATE STATE AFTER CONSTRUCTION COMPLETES
       constructed = true;
@@ -94,11 +167,68 @@ public class SensorsSingleton {
       Log.d(LOGTAG, "Ending Singleton Construction");
    }
 
+   /**
+    * Runs a startup stage once the stages it depends on are done. A failed
+    * stage is logged and the stages after it run anyway, with whatever it
+    * managed to set up.
+    */
+   private static Future<?> stage(final String name, final Runnable work,
+       final Future<?>... dependsOn) {
+      return acquisitionRuntime.submitIo("startup " + name, new Runnable() {
+         public void run() {
+            for (Future<?> dependency : dependsOn) {
+               try {
+                  dependency.get();
+               } catch (InterruptedException e) {
+                  Log.w(LOGTAG, "startup stage " + name + " interrupted");
+                  return;
+               } catch (ExecutionException e) {
+                  Log.e(LOGTAG, "startup stage before " + name + " failed", e.getCause());
+               }
+            }
+            long start = SystemClock.elapsedRealtime();
+            work.run();
+            Log.d(LOGTAG, "startup stage " + name + " took "
+                + (SystemClock.elapsedRealtime() - start) + " ms");
+         }
+      });
+   }
+
+   /**
+    * @return done once the database is open
+    */
+   public static Future<?> getDatabaseReady() {
+      return databaseReady;
+   }
+
+   /**
+    * @return done once the installed drivers are known
+    */
+   public static Future<?> getDriversReady() {
+      return driversReady;
+   }
+
+   /**
+    * @return done once the registered sensors are loaded and all channels are
+    * initialized, reconnects may still be running
+    */
+   public static Future<?> getSensorsReady() {
+      return sensorsReady;
+   }
+
    public static void destroy() {
+      if (acquisitionRuntime != null) {
+         acquisitionRuntime.shutdown();
+         acquisitionRuntime = null;
+      }
+      databaseReady = null;
+      driversReady = null;
+      sensorsReady = null;
       dbManager = null;
       bluetoothManager = null;
       usbManager = null;
       dummyManager = null;
+      networkManager = null;
       constructed = false;
       System.gc();
    }
@@ -119,10 +249,34 @@ public class SensorsSingleton {
       return sensorManager;
    }
 
+   public static AcquisitionRuntime getAcquisitionRuntime() {
+      return acquisitionRuntime;
+   }
+
    public static DummyManager getDummyManager() {
       return dummyManager;
    }
 
+   /**
+    * @return null if no network channel type exists
+    */
+   public static NetworkManager getNetworkManager() {
+      return networkManager;
+   }
+
+   /**
+    * The channel types come from the sensors interface library, network
+    * sensors are only supported by the versions that define one.
+    */
+   private static CommunicationChannelType networkChannelType() {
+      try {
+         return CommunicationChannelType.getCommChannelTypeByName(NetworkManager.CHANNEL_TYPE_NAME);
+      } catch (IllegalArgumentException e) {
+         Log.d(LOGTAG, "Sensors interface has no network channel type");
+         return null;
+      }
+   }
+
    public static String defaultAppName() {
       if (defaultAppName == null) {
          // TODO: get the default appName from external preferences (TO BE DECIDED)
@@ -21,6 +21,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.os.Bundle;
 import android.util.Log;
 import org.opendatakit.sensors.CommunicationChannelType;
 import org.opendatakit.sensors.DriverType;
@@ -32,6 +33,7 @@ import org.opendatakit.sensors.manager.DiscoverableDevice;
 import org.opendatakit.sensors.manager.SensorNotFoundException;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * 
@@ -44,17 +46,32 @@ public class BluetoothManager extends AbstractChannelManagerBase {
 	// logging
 	private static final String LOGTAG = BluetoothManager.class.getSimpleName();
 
+	// settings handled by the channel through sensorConfigure
+	public static final String COALESCE_BYTES_SETTING = "btCoalesceBytes";
+	public static final String COALESCE_MS_SETTING = "btCoalesceMs";
+	public static final String COALESCE_FLUSHES_SETTING = "btCoalesceFlushes";
+
 	// bluetooth
 	private BluetoothAdapter mBtAdapter;
 
-	// sensor map
-	private HashMap<String, BluetoothSensor> mSensorMap;
+	// sensor map, each sensor coordinates its own connection so callers for
+	// different sensors never wait on each other
+	private final ConcurrentHashMap<String, BluetoothSensor> mSensorMap;
 
 	// discoverable device map
-	private HashMap<String, BluetoothDiscoverableDevice> mDiscoverableDeviceMap;
+	private final ConcurrentHashMap<String, BluetoothDiscoverableDevice> mDiscoverableDeviceMap;
+
+	// coalescing windows set through sensorConfigure, kept for sensors that
+	// are not connected yet and for the ones replacing terminated sensors
+	private final ConcurrentHashMap<String, CoalescingWindow> mCoalescingMap;
+	// flush coalescing set through sensorConfigure, guarded like mCoalescingMap
+	private final ConcurrentHashMap<String, Boolean> mFlushCoalescingMap;
 	
 	private boolean receiversRegistered = false;
 
+	// paces reconnects of all sensors
+	private final BluetoothReconnectScheduler mReconnectScheduler;
+
 
 	/**
 	 * Constructor
@@ -66,8 +83,11 @@ public class BluetoothManager extends AbstractChannelManagerBase {
 		super(context, CommunicationChannelType.BLUETOOTH);
 
 		// Create state data structures
-		mSensorMap = new HashMap<String, BluetoothSensor>();
-		mDiscoverableDeviceMap = new HashMap<String, BluetoothDiscoverableDevice>();
+		mSensorMap = new ConcurrentHashMap<String, BluetoothSensor>();
+		mDiscoverableDeviceMap = new ConcurrentHashMap<String, BluetoothDiscoverableDevice>();
+		mCoalescingMap = new ConcurrentHashMap<String, CoalescingWindow>();
+		mFlushCoalescingMap = new ConcurrentHashMap<String, Boolean>();
+		mReconnectScheduler = new BluetoothReconnectScheduler();
 
 		// register broadcast receivers
 		 
@@ -109,7 +129,7 @@ public class BluetoothManager extends AbstractChannelManagerBase {
 		
 	}
 
-	public synchronized List<DiscoverableDevice> getDiscoverableSensor() {
+	public List<DiscoverableDevice> getDiscoverableSensor() {
 		Collection<BluetoothDiscoverableDevice> collection = mDiscoverableDeviceMap.values();
 		List<DiscoverableDevice> deviceList = new ArrayList<DiscoverableDevice>();
 		deviceList.addAll(collection);
@@ -121,10 +141,14 @@ public class BluetoothManager extends AbstractChannelManagerBase {
 	 * 
 	 * @return bluetooth sensor
 	 */
-	public synchronized BluetoothSensor getSensor(String id) {
+	public BluetoothSensor getSensor(String id) {
 		return mSensorMap.get(id);
 	}
 
+	BluetoothReconnectScheduler getReconnectScheduler() {
+		return mReconnectScheduler;
+	}
+
 	/**
 	 * Cleanup Method For Bluetooth Manager
 	 */
@@ -132,12 +156,8 @@ public class BluetoothManager extends AbstractChannelManagerBase {
 	public synchronized void shutdown() {
 
 		// Cleanup All Of The Bluetooth Sensor Connections
-		if (mSensorMap != null) {
-			Collection<BluetoothSensor> c = mSensorMap.values();
-			Iterator<BluetoothSensor> it = c.iterator();
-
-			while (it.hasNext())
-				it.next().kill();
+		for (BluetoothSensor bts : mSensorMap.values()) {
+			bts.kill();
 		}
 
 		stopSearchingForSensors();
@@ -177,7 +197,7 @@ public class BluetoothManager extends AbstractChannelManagerBase {
 	 * 
 	 * @return True If That Is The Case, Otherwise Returns False
 	 */
-	public synchronized boolean sensorRegister(String id, DriverType sensorType, String appName) {
+	public boolean sensorRegister(String id, DriverType sensorType, String appName) {
 		Log.d(LOGTAG, "In sensor register.");
 		
 		if(id == null || sensorType == null) {
@@ -220,12 +240,14 @@ public class BluetoothManager extends AbstractChannelManagerBase {
 	/**
 	 * Start sensor recording
 	 */
-	public synchronized void startSensorDataAcquisition(String id, byte[] cmd) {
+	public void startSensorDataAcquisition(String id, byte[] cmd) {
 		Log.d(LOGTAG, "Sensor record: " + id);
 
 		// clear any previous buffer data
 		ODKSensor sensor = mSensorManager.getSensor(id);
-		sensor.dataBufferReset();
+		if (sensor != null) {
+			sensor.dataBufferReset();
+		}
 
 		// inform bluetooth manager to start recording a sensor
 		BluetoothSensor bts = getSensor(id);
@@ -241,41 +263,108 @@ public class BluetoothManager extends AbstractChannelManagerBase {
 	/**
 	 * Connect A Sensor If Not Already Connected
 	 */
-	public synchronized void sensorConnect(String id) throws SensorNotFoundException {
+	public void sensorConnect(String id) throws SensorNotFoundException {
 		Log.d(LOGTAG, "Sensor connect: " + id);
 		BluetoothSensor bts = getSensor(id);
 
-		if (bts == null || bts.getState() == Thread.State.TERMINATED) {
+		while (bts == null || bts.isTerminated()) {
 			ODKSensor sensor = mSensorManager.getSensor(id);
 			if (sensor == null) {
 				throw new SensorNotFoundException(
 				"Sensor not found in sensor manager");
 			}
-			Log.d(LOGTAG, "Bluetooth sensor created");
 			BluetoothDevice device = mBtAdapter.getRemoteDevice(id);
-
-			bts = new BluetoothSensor(sensor, device,this);
-			mSensorMap.put(id, bts);
+			BluetoothSensor created = new BluetoothSensor(sensor, device,this);
+
+			// another caller may be connecting the same sensor, only one wins
+			boolean installed = (bts == null) ? mSensorMap.putIfAbsent(id, created) == null
+					: mSensorMap.replace(id, bts, created);
+			if (installed) {
+				Log.d(LOGTAG, "Bluetooth sensor created");
+				applyCoalescing(id, created);
+				bts = created;
+			} else {
+				bts = getSensor(id);
+			}
 		}
 		
-		if (bts != null) {
-			Log.d(LOGTAG, "Connecting to physical sensor");
-			bts.connect();
-		}
+		Log.d(LOGTAG, "Connecting to physical sensor");
+		bts.connect();
 	}
 
-	public synchronized void sensorWrite(String id, byte[] message) {
-		Log.d(LOGTAG, "Sensor write: " + id + ", message: " + new String(message));
+	public void sensorWrite(String id, byte[] message) {
+		Log.d(LOGTAG, "Sensor write: " + id + ", " + message.length + " bytes");
 		BluetoothSensor bts = getSensor(id);
 
 		if (bts != null)
-			bts.write(new String(message));
+			bts.write(message);
+	}
+
+	/**
+	 * Handles the read coalescing window of a sensor and whether queued
+	 * commands share a flush, the other settings are left to the driver.
+	 */
+	@Override
+	public boolean sensorConfigure(String id, String setting, Bundle params) {
+		if (COALESCE_FLUSHES_SETTING.equals(setting)) {
+			boolean coalesce = params.getBoolean(setting);
+			synchronized (mCoalescingMap) {
+				mFlushCoalescingMap.put(id, coalesce);
+				BluetoothSensor bts = getSensor(id);
+				if (bts != null) {
+					bts.setFlushCoalescing(coalesce);
+				}
+			}
+			return true;
+		}
+		if (!COALESCE_BYTES_SETTING.equals(setting) && !COALESCE_MS_SETTING.equals(setting)) {
+			return false;
+		}
+		synchronized (mCoalescingMap) {
+			CoalescingWindow window = mCoalescingMap.get(id);
+			if (window == null) {
+				window = new CoalescingWindow(0, 0);
+			}
+			if (COALESCE_BYTES_SETTING.equals(setting)) {
+				window = new CoalescingWindow(params.getInt(setting), window.maxMs);
+			} else {
+				window = new CoalescingWindow(window.maxBytes, params.getLong(setting));
+			}
+			if (window.maxBytes < 0 || window.maxMs < 0) {
+				throw new IllegalArgumentException("Coalescing window can not be negative");
+			}
+			mCoalescingMap.put(id, window);
+
+			// a sensor not connected yet picks the window up when it is created
+			BluetoothSensor bts = getSensor(id);
+			if (bts != null) {
+				bts.setCoalescing(window.maxBytes, window.maxMs);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Gives a newly installed sensor the coalescing set for its id, under the
+	 * same lock as sensorConfigure so an older setting never wins.
+	 */
+	private void applyCoalescing(String id, BluetoothSensor bts) {
+		synchronized (mCoalescingMap) {
+			CoalescingWindow window = mCoalescingMap.get(id);
+			if (window != null) {
+				bts.setCoalescing(window.maxBytes, window.maxMs);
+			}
+			Boolean coalesceFlushes = mFlushCoalescingMap.get(id);
+			if (coalesceFlushes != null) {
+				bts.setFlushCoalescing(coalesceFlushes);
+			}
+		}
 	}
 
 	/**
 	 * Stop sensor recording
 	 */
-	public synchronized void stopSensorDataAcquisition(String id, byte[] cmd) {
+	public void stopSensorDataAcquisition(String id, byte[] cmd) {
 		Log.d(LOGTAG, "Sensor record stop: " + id);
 
 		BluetoothSensor bts = getSensor(id);
@@ -291,7 +380,7 @@ public class BluetoothManager extends AbstractChannelManagerBase {
 	}
 
 	@Override
-	public synchronized void sensorDisconnect(String id) throws SensorNotFoundException {
+	public void sensorDisconnect(String id) throws SensorNotFoundException {
 		BluetoothSensor bts = getSensor(id);
 
 		if (bts != null) {
@@ -301,18 +390,13 @@ public class BluetoothManager extends AbstractChannelManagerBase {
 	}
 
 	@Override
-	public synchronized void removeAllSensors() {
+	public void removeAllSensors() {
 		// Cleanup All Of The Bluetooth Sensor Connections
-		if (mSensorMap != null) {
-			Collection<BluetoothSensor> c = mSensorMap.values();
-			Iterator<BluetoothSensor> it = c.iterator();
-
-			while (it.hasNext()) {
-				it.next().kill();
-			}
+		Iterator<BluetoothSensor> it = mSensorMap.values().iterator();
+		while (it.hasNext()) {
+			it.next().kill();
+			it.remove();
 		}
-
-		mSensorMap = new HashMap<String, BluetoothSensor>();
 	}
 	
 	void updateSensorStateInDb(String sensorID, DetailedSensorState state) {
@@ -382,4 +466,14 @@ public class BluetoothManager extends AbstractChannelManagerBase {
 			mContext.sendBroadcast(i);
 		}
 	};
+
+	private static class CoalescingWindow {
+		final int maxBytes;
+		final long maxMs;
+
+		CoalescingWindow(int maxBytes, long maxMs) {
+			this.maxBytes = maxBytes;
+			this.maxMs = maxMs;
+		}
+	}
 }
@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2026 ODK-X contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sensors.bluetooth;
+
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import android.bluetooth.BluetoothAdapter;
+import android.util.Log;
+
+/**
+ * Paces the RFCOMM connection attempts of all Bluetooth sensors. A sensor that
+ * keeps failing to connect waits exponentially longer, with jitter so sensors
+ * that dropped together don't retry together, and only a few sockets are
+ * opened at the same time. Discovery is cancelled before every attempt since
+ * it slows connects down to the point of failing them.
+ */
+public class BluetoothReconnectScheduler {
+
+	private static final String LOGTAG = BluetoothReconnectScheduler.class.getSimpleName();
+
+	private static final long BASE_BACKOFF_MS = 1000;
+	private static final long MAX_BACKOFF_MS = 60000;
+	private static final int MAX_CONCURRENT_ATTEMPTS = 2;
+
+	// how often a waiting sensor checks whether it was killed
+	private static final long PERMIT_POLL_MS = 500;
+
+	private final Semaphore attemptPermits = new Semaphore(MAX_CONCURRENT_ATTEMPTS, true);
+	private final Random jitter = new Random();
+
+	/**
+	 * @param failures
+	 *            consecutive failed attempts of the sensor
+	 * @return how long the sensor should wait before its next attempt
+	 */
+	public long backoffDelay(int failures) {
+		if (failures <= 0) {
+			return 0;
+		}
+		long ceiling = BASE_BACKOFF_MS << Math.min(failures - 1, 16);
+		ceiling = Math.min(ceiling, MAX_BACKOFF_MS);
+		// somewhere between half and all of the ceiling
+		synchronized (jitter) {
+			return (ceiling / 2) + (long) (jitter.nextDouble() * (ceiling / 2));
+		}
+	}
+
+	/**
+	 * Blocks until the caller may open a socket. Every successful call must be
+	 * followed by endAttempt.
+	 *
+	 * @param sensor
+	 *            the sensor asking, attempts stop being waited for once it is
+	 *            killed
+	 * @return false if the sensor was killed while waiting
+	 */
+	boolean beginAttempt(BluetoothSensor sensor) throws InterruptedException {
+		while (!attemptPermits.tryAcquire(PERMIT_POLL_MS, TimeUnit.MILLISECONDS)) {
+			if (sensor.isKilled()) {
+				return false;
+			}
+		}
+
+		BluetoothAdapter btAdapter = BluetoothAdapter.getDefaultAdapter();
+		if (btAdapter != null && btAdapter.isDiscovering()) {
+			Log.d(LOGTAG, "Cancelling discovery for connection attempt");
+			btAdapter.cancelDiscovery();
+		}
+		return true;
+	}
+
+	void endAttempt() {
+		attemptPermits.release();
+	}
+}
@@ -26,29 +26,41 @@
 
 package org.opendatakit.sensors.bluetooth;
 
-import java.io.BufferedWriter;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStreamWriter;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.opendatakit.sensors.ODKSensor;
 import org.opendatakit.sensors.SensorDataPacket;
+import org.opendatakit.sensors.SensorsSingleton;
+import org.opendatakit.sensors.manager.AcquisitionRuntime;
 import org.opendatakit.sensors.manager.DetailedSensorState;
 
-import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import android.util.Log;
 
 /**
+ * Connection loop of one Bluetooth sensor. The loop runs as a task on the
+ * I/O pool of the AcquisitionRuntime; commands are written from the same
+ * pool, and only hold a thread while some are queued.
  * 
  * @author wbrunette@gmail.com
  * @author rohitchaudhri@gmail.com
  * 
  */
-public class BluetoothSensor extends Thread {
+public class BluetoothSensor implements Runnable {
 
 	// logging
 	private static final String LOGTAG = "BluetoothSensor";
@@ -63,6 +75,18 @@ public class BluetoothSensor extends Thread {
 	private static final UUID UNIQUE_ID = UUID
 			.fromString("00001101-0000-1000-8000-00805F9B34FB");
 
+	// most bytes taken off the socket in one read
+	private static final int READ_BUFFER_SIZE = 8192;
+
+	// how long to wait for more bytes before checking the coalescing window again
+	private static final long COALESCE_POLL_MS = 10;
+
+	// commands waiting to go out, writes beyond this are refused
+	private static final int WRITE_QUEUE_CAPACITY = 64;
+
+	// read buffers of disconnected sensors, reused by the next connection
+	private static final Queue<byte[]> READ_BUFFER_POOL = new ConcurrentLinkedQueue<byte[]>();
+
 	// data
 	private String mId;
 	private ODKSensor mSensor;
@@ -70,8 +94,28 @@ public class BluetoothSensor extends Thread {
 
 	private BluetoothSocket sock = null;
 	private InputStream sockReader = null;
-	private BufferedWriter sockWriter = null;
+	private volatile OutputStream sockWriter = null;
+	// writes run on the I/O pool only while commands are queued
+	private final AcquisitionRuntime.SerialExecutor commandWriter;
+	private final AtomicBoolean flushQueued = new AtomicBoolean(false);
+	private Future<?> connectionTask = null;
 	private BluetoothManager mBtManager;
+	private BluetoothReconnectScheduler mReconnectScheduler;
+
+	// the thread parks on this while there is nothing to do
+	private final Object stateLock = new Object();
+	private int connectFailures = 0;
+
+	// reading
+	private byte[] readBuffer = null;
+	private volatile int coalesceBytes = 0;
+	private volatile long coalesceMs = 0;
+	private volatile boolean coalesceFlushes = true;
+	private final BlockingQueue<byte[]> writeQueue = new ArrayBlockingQueue<byte[]>(
+			WRITE_QUEUE_CAPACITY);
+	private byte[] pending = null;
+	private int pendingCount = 0;
+	private long pendingTimestamp;
 
 	/**
 	 * Sensor Constructor
@@ -87,6 +131,9 @@ public class BluetoothSensor extends Thread {
 		mSensor = sensor;
 		mBtDevice = device;
 		mBtManager = btManager;
+		mReconnectScheduler = btManager.getReconnectScheduler();
+		commandWriter = SensorsSingleton.getAcquisitionRuntime().newSerialExecutor(
+				"BluetoothSensor writer " + mId);
 	}
 
 	public boolean paired() {
@@ -96,13 +143,21 @@ public class BluetoothSensor extends Thread {
 	/**
 	 * Attempt Connection To Sensor
 	 */
-	public void connect() {
+	public synchronized void connect() {
 
 		if (paired()) {
 			// reconnect
 			mConnect.set(true);
-			if (this.isAlive() == false) {
-				this.start();
+			if (connectionTask == null) {
+				try {
+					connectionTask = SensorsSingleton.getAcquisitionRuntime().submitIo(
+							"BluetoothSensor " + mId, this);
+				} catch (RejectedExecutionException e) {
+					Log.e(LOGTAG, "No I/O thread left to connect " + mId);
+					mBtManager.updateSensorStateInDb(mId, DetailedSensorState.DISCONNECTED);
+				}
+			} else {
+				wakeUp();
 			}
 		} else {
 			Log.e(LOGTAG, "Will Not Connect Unpaired || Unregistered Sensor "
@@ -116,6 +171,7 @@ public class BluetoothSensor extends Thread {
 	public void activiate() {
 		if (mConnect.get()) {
 			mIsActivated.set(true);
+			wakeUp();
 			Log.d(LOGTAG, "Activated start data collection");
 		} else {
 			Log.e(LOGTAG, "Will Not Activate Unconnected Sensor ");
@@ -134,6 +190,7 @@ public class BluetoothSensor extends Thread {
 	 */
 	public void kill() {
 		mKillMe.set(true);
+		wakeUp();
 		
 //		thread.interrupt doesn't interrupt the blocked socket read
 //		this.interrupt();
@@ -141,20 +198,92 @@ public class BluetoothSensor extends Thread {
 		helperResetConnection();		
 	}
 
-	public void write(String data) {
-		try {
-			Log.d(LOGTAG, "writing to sensor");
-			sockWriter.write(data);
-			sockWriter.flush();
-			Log.d(LOGTAG, "wrote to sensor");
-		} catch (Exception e) {
-			Log.e(LOGTAG, "Exception during write", e);
-			e.printStackTrace();
+	boolean isKilled() {
+		return mKillMe.get();
+	}
+
+	/**
+	 * @return true once the connection loop has run and exited, the sensor
+	 *         can not be connected again
+	 */
+	public synchronized boolean isTerminated() {
+		return connectionTask != null && connectionTask.isDone();
+	}
+
+	private void wakeUp() {
+		synchronized (stateLock) {
+			stateLock.notifyAll();
+		}
+	}
+
+	/**
+	 * Parks the thread for up to the given time, returning early when the
+	 * sensor is killed or asked to connect again.
+	 */
+	private void park(long millis) {
+		synchronized (stateLock) {
+			if (mKillMe.get()) {
+				return;
+			}
+			try {
+				if (millis > 0) {
+					stateLock.wait(millis);
+				} else {
+					stateLock.wait();
+				}
+			} catch (InterruptedException e) {
+				Log.d(LOGTAG, "Sensor thread interrupted while parked " + mId);
+			}
 		}
 	}
 
 	/**
-	 * Thread Main Loop, Handles Data Connection
+	 * Sets how reads are grouped into SensorDataPackets. Bytes are held back
+	 * until at least maxBytes have arrived or maxMs has passed since the first
+	 * of them; the packet is stamped with the arrival time of its first byte. A
+	 * window of 0 bytes and 0 ms hands every read on as its own packet.
+	 */
+	public void setCoalescing(int maxBytes, long maxMs) {
+		if (maxBytes < 0 || maxMs < 0) {
+			throw new IllegalArgumentException("Coalescing window can not be negative");
+		}
+		coalesceBytes = maxBytes;
+		coalesceMs = maxMs;
+	}
+
+	public int getCoalesceBytes() {
+		return coalesceBytes;
+	}
+
+	public long getCoalesceMs() {
+		return coalesceMs;
+	}
+
+	/**
+	 * When set, commands that queue up while a write is in progress go out
+	 * with a single flush instead of one flush each.
+	 */
+	public void setFlushCoalescing(boolean coalesce) {
+		coalesceFlushes = coalesce;
+	}
+
+	/**
+	 * Queues a command for the sensor and returns right away. The bytes are
+	 * written as they are, in order, once the sensor is connected.
+	 * 
+	 * @return false if the queue is full and the command was dropped
+	 */
+	public boolean write(byte[] data) {
+		if (!writeQueue.offer(data)) {
+			Log.e(LOGTAG, "Write queue full, dropping command for " + mId);
+			return false;
+		}
+		scheduleFlush();
+		return true;
+	}
+
+	/**
+	 * Connection Loop, Handles Data Connection
 	 */
 	public void run() {
 		Log.d(LOGTAG, "Sensor Connection Thread Created: " + mId);
@@ -163,20 +292,27 @@ public class BluetoothSensor extends Thread {
 			// PROCESS KILL -- Cleanup Sockets & Threads
 			if (mKillMe.get() == true) {
 				helperResetConnection();
+				// only this thread touches the read buffer, so it hands it back
+				if (readBuffer != null) {
+					READ_BUFFER_POOL.offer(readBuffer);
+					readBuffer = null;
+				}
 				break;
 			}
 
 			// HANDLE (RE)CONNECTING
 			if (!mAttachedStatus.get()) {
 				if (mConnect.get() == true) {
+					// the scheduler cancels discovery and limits how many
+					// sensors open sockets at once
 					try {
-						// Get Reference To Local BluetoothAdapter
-						BluetoothAdapter btAdapter = BluetoothAdapter
-								.getDefaultAdapter();
-						if(btAdapter.isDiscovering()) {
-							btAdapter.cancelDiscovery();
+						if (!mReconnectScheduler.beginAttempt(this)) {
+							continue;
 						}
-
+					} catch (InterruptedException e) {
+						continue;
+					}
+					try {
 						// create socket
 						sock = mBtDevice
 								.createRfcommSocketToServiceRecord(UNIQUE_ID);
@@ -187,24 +323,35 @@ public class BluetoothSensor extends Thread {
 							
 							// create reader/writer
 							sockReader = sock.getInputStream();
-							sockWriter = new BufferedWriter(
-									new OutputStreamWriter(
-											sock.getOutputStream()), 8192);
+							sockWriter = new BufferedOutputStream(
+									sock.getOutputStream(), 8192);
 						} else {
 							helperResetConnection();
 						}
 					} catch (IOException e) {
 						helperResetConnection();
+					} finally {
+						mReconnectScheduler.endAttempt();
 					}
 
 					if (sock == null || sockReader == null
 							|| sockWriter == null) {
 						helperResetConnection();
+						connectFailures++;
+						long delay = mReconnectScheduler.backoffDelay(connectFailures);
+						Log.d(LOGTAG, "Connection attempt " + connectFailures + " to " + mId
+								+ " failed, retrying in " + delay + " ms");
+						park(delay);
 						continue;
 					} else {
+						connectFailures = 0;
 						// Update Connected State -- Update Type
 						mSensor.dataBufferReset();
+						if (readBuffer == null) {
+							readBuffer = acquireReadBuffer();
+						}
 						mAttachedStatus.set(true);
+						scheduleFlush();
 						Log.d(LOGTAG,
 								"Connection Thread - Sensor Connected.  Bluetooth Reader/Writer Created "
 										+ mId);
@@ -223,15 +370,20 @@ public class BluetoothSensor extends Thread {
 						// go for the next read
 						continue;
 					}
+				} else if (pendingCount > 0) {
+					// don't sit on the tail of the last window
+					flushPending();
 				}
 			}
-			try {
-				Log.v(LOGTAG, "State: Connect=" + mConnect.get()
-						+ " Activated=" + mIsActivated.get() + " Attached="
-						+ mAttachedStatus.get());
-				Thread.sleep(250); 
-			} catch (InterruptedException e) {
-				Log.e(LOGTAG, "Unable To Sleep In SensorConnection Thread");
+			// nothing to do until connect, activiate or kill is called
+			synchronized (stateLock) {
+				boolean idle = mAttachedStatus.get() ? !mIsActivated.get() : !mConnect.get();
+				if (idle && !mKillMe.get()) {
+					Log.v(LOGTAG, "State: Connect=" + mConnect.get()
+							+ " Activated=" + mIsActivated.get() + " Attached="
+							+ mAttachedStatus.get());
+					park(0);
+				}
 			}
 
 		}
@@ -242,6 +394,10 @@ public class BluetoothSensor extends Thread {
 		if(!isDisconnected.get()) {
 
 			mAttachedStatus.set(false);
+			if (mKillMe.get()) {
+				commandWriter.shutdown();
+				writeQueue.clear();
+			}
 			try {
 				if (sockReader != null) {
 					sockReader.close();
@@ -268,36 +424,147 @@ public class BluetoothSensor extends Thread {
 	}
 
 	/**
-	 * Reads Sensor Data And Passes To DataProvider
+	 * Reads Sensor Data And Passes To DataProvider. Takes whatever the socket
+	 * has buffered, up to the size of the read buffer, in one read and either
+	 * hands it on directly or adds it to the current coalescing window.
 	 * 
 	 * @param sockReader2
-	 *            buffered reader
-	 * @param id
-	 *            sensor id
+	 *            socket input stream
+	 * @return false if the connection is gone
 	 */
 	private boolean readSensorData(InputStream sockReader2) {
+		try {
+			int available = sockReader2.available();
+
+			if (pendingCount > 0 && available == 0) {
+				// nothing more yet, close the window if it has run out
+				long remaining = coalesceMs - (System.currentTimeMillis() - pendingTimestamp);
+				if (coalesceMs == 0 || remaining <= 0) {
+					flushPending();
+				} else {
+					try {
+						Thread.sleep(Math.min(remaining, COALESCE_POLL_MS));
+					} catch (InterruptedException e) {
+						flushPending();
+					}
+				}
+				return true;
+			}
 
-		byte[] buff = new byte[1024];
-		int cnt;
+			// blocks until at least one byte arrives, then returns what is there
+			int cnt = sockReader2.read(readBuffer, 0, readBuffer.length);
+			if (cnt == -1) {
+				flushPending();
+				return false;
+			}
+			long now = System.currentTimeMillis();
 
-		try {
-			cnt = sockReader2.read(buff);
-			if (cnt != -1) {
-//				Log.d(LOGTAG,cnt + " bytes rcvd on socket");
-//				for(int i = 0; i <cnt; i++) {
-//					Log.d(LOGTAG,buff[i] + "");
-//				}
-				byte[] sdpbuff = new byte[cnt];				
-				System.arraycopy(buff, 0, sdpbuff, 0, cnt);
-				SensorDataPacket sdp = new SensorDataPacket(sdpbuff,
-						System.currentTimeMillis());
-				mSensor.addSensorDataPacket(sdp);
+			if (coalesceBytes == 0 && coalesceMs == 0) {
+				byte[] sdpbuff = new byte[cnt];
+				System.arraycopy(readBuffer, 0, sdpbuff, 0, cnt);
+				mSensor.addSensorDataPacket(new SensorDataPacket(sdpbuff, now));
+				return true;
+			}
+
+			appendPending(readBuffer, cnt, now);
+			if ((coalesceBytes > 0 && pendingCount >= coalesceBytes)
+					|| (coalesceMs > 0 && now - pendingTimestamp >= coalesceMs)) {
+				flushPending();
 			}
 		} catch (IOException e) {
 //			e.printStackTrace();
+			flushPending();
 			return false;
 		}
 		return true;
 	}
 
+	private void appendPending(byte[] data, int count, long timestamp) {
+		if (pendingCount == 0) {
+			pendingTimestamp = timestamp;
+		}
+		int needed = pendingCount + count;
+		if (pending == null || pending.length < needed) {
+			byte[] grown = new byte[Math.max(needed, Math.max(coalesceBytes, READ_BUFFER_SIZE))];
+			if (pendingCount > 0) {
+				System.arraycopy(pending, 0, grown, 0, pendingCount);
+			}
+			pending = grown;
+		}
+		System.arraycopy(data, 0, pending, pendingCount, count);
+		pendingCount = needed;
+	}
+
+	private void flushPending() {
+		if (pendingCount == 0) {
+			return;
+		}
+		byte[] sdpbuff = new byte[pendingCount];
+		System.arraycopy(pending, 0, sdpbuff, 0, pendingCount);
+		pendingCount = 0;
+		mSensor.addSensorDataPacket(new SensorDataPacket(sdpbuff, pendingTimestamp));
+	}
+
+	private static byte[] acquireReadBuffer() {
+		byte[] buffer = READ_BUFFER_POOL.poll();
+		if (buffer == null) {
+			buffer = new byte[READ_BUFFER_SIZE];
+		}
+		return buffer;
+	}
+
+	/**
+	 * Queues a flush of the write queue on the command writer, unless one is
+	 * queued already. Commands queued while the sensor is not connected go
+	 * out after the next connect.
+	 */
+	private void scheduleFlush() {
+		if (!mAttachedStatus.get() || !flushQueued.compareAndSet(false, true)) {
+			return;
+		}
+		try {
+			commandWriter.execute(flushCommands);
+		} catch (RejectedExecutionException e) {
+			flushQueued.set(false);
+			Log.e(LOGTAG, "No I/O thread left to write to " + mId + ", commands stay queued");
+		}
+	}
+
+	/**
+	 * Writes the queued commands to the socket of the current connection.
+	 */
+	private final Runnable flushCommands = new Runnable() {
+		@Override
+		public void run() {
+			flushQueued.set(false);
+			OutputStream out = sockWriter;
+			if (out == null) {
+				return;
+			}
+			List<byte[]> batch = new ArrayList<byte[]>();
+			while (true) {
+				byte[] command = writeQueue.poll();
+				if (command == null) {
+					return;
+				}
+				batch.add(command);
+				if (coalesceFlushes) {
+					writeQueue.drainTo(batch);
+				}
+				try {
+					for (byte[] next : batch) {
+						out.write(next);
+					}
+					out.flush();
+				} catch (IOException e) {
+					// the read loop notices the connection is gone
+					Log.e(LOGTAG, "Exception during write to " + mId, e);
+					return;
+				} finally {
+					batch.clear();
+				}
+			}
+		}
+	};
+
 }
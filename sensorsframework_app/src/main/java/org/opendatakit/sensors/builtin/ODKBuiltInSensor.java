@@ -24,13 +24,13 @@ import android.util.Log;
 import org.opendatakit.sensors.*;
 import org.opendatakit.sensors.builtin.drivers.AbstractBuiltinDriver;
 import org.opendatakit.sensors.manager.DatabaseManager;
+import org.opendatakit.sensors.manager.ODKSensorManager;
+import org.opendatakit.sensors.manager.JournaledPacketBuffer;
+import org.opendatakit.sensors.manager.SensorJournal;
 import org.opendatakit.sensors.manager.SensorNotFoundException;
 
 import java.lang.reflect.Constructor;
-import java.util.ArrayList;
 import java.util.List;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * @author wbrunette@gmail.com
@@ -50,7 +50,7 @@ public class ODKBuiltInSensor implements ODKSensor, SensorEventListener {
    private final Driver sensorDriver;
 
    // state
-   private Queue<SensorDataPacket> buffer;
+   private final JournaledPacketBuffer buffer;
    private boolean dbTransfer;
    private String appNameForDatabase;
    private byte[] remainingBytes;
@@ -60,7 +60,8 @@ public class ODKBuiltInSensor implements ODKSensor, SensorEventListener {
    private boolean connected;
 
    public ODKBuiltInSensor(BuiltInSensorType type, SensorManager builtInSensorManager,
-       String sensorID, String appName, boolean transferToDb) throws Exception {
+       String sensorID, String appName, boolean transferToDb, SensorJournal journal)
+       throws Exception {
       this.appNameForDatabase = appName;
       this.dbTransfer = transferToDb;
       this.sensorType = type;
@@ -71,7 +72,7 @@ public class ODKBuiltInSensor implements ODKSensor, SensorEventListener {
       constructor = sensorClass.getConstructor();
       this.sensorDriver = constructor.newInstance();
 
-      this.buffer = new ConcurrentLinkedQueue<SensorDataPacket>();
+      this.buffer = new JournaledPacketBuffer(sensorID, journal);
       this.rate = SensorManager.SENSOR_DELAY_NORMAL;
       this.connected = false;
    }
@@ -134,17 +135,18 @@ public class ODKBuiltInSensor implements ODKSensor, SensorEventListener {
    }
 
    @Override public List<Bundle> getSensorData(long maxNumReadings) {
-      ArrayList<SensorDataPacket> rawData = new ArrayList<SensorDataPacket>();
-      synchronized (buffer) {
-         rawData.addAll(buffer);
-         buffer.clear();
-      }
+      JournaledPacketBuffer.Drained rawData = buffer.drain();
       SensorDataParseResponse response = sensorDriver
-          .getSensorData(maxNumReadings, rawData, remainingBytes);
+          .getSensorData(maxNumReadings, rawData.packets, remainingBytes);
       remainingBytes = response.getRemainingData();
+      buffer.handedOut(rawData, dbTransfer);
       return response.getSensorData();
    }
 
+   @Override public void acknowledgeSensorData() {
+      buffer.acknowledge();
+   }
+
    @Override public CommunicationChannelType getCommunicationChannelType() {
       return CommunicationChannelType.BUILTIN;
    }
@@ -155,13 +157,15 @@ public class ODKBuiltInSensor implements ODKSensor, SensorEventListener {
 
    @Override public void dataBufferReset() {
       Log.d(LOGTAG, "dataBufferReset: clearing buffer for sensor ");
-      if (buffer != null) {
-         buffer = new ConcurrentLinkedQueue<SensorDataPacket>();
-      }
+      buffer.clear();
    }
 
    @Override public void addSensorDataPacket(SensorDataPacket packet) {
       buffer.add(packet);
+      ODKSensorManager sensorManager = SensorsSingleton.getSensorManager();
+      if (sensorManager != null) {
+         sensorManager.packetBuffered(sensorId, packet, dbTransfer);
+      }
    }
 
    @Override public void onAccuracyChanged(Sensor sensor, int accuracy) {
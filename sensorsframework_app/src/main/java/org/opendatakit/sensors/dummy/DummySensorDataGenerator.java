@@ -18,14 +18,20 @@ package org.opendatakit.sensors.dummy;
 import android.os.Bundle;
 import android.util.Log;
 import org.opendatakit.sensors.SensorDataPacket;
+import org.opendatakit.sensors.SensorsSingleton;
 
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
+ * Generates a packet every SendDelay ms, as a periodic task on the scheduler
+ * of the AcquisitionRuntime.
+ *
  * @author wbrunette@gmail.com
  * @author rohitchaudhri@gmail.com
  */
-public class DummySensorDataGenerator extends Thread  {
+public class DummySensorDataGenerator implements Runnable {
 
    // logging
    private static final String LOGTAG = DummySensorDataGenerator.class.getSimpleName();
@@ -51,6 +57,8 @@ public class DummySensorDataGenerator extends Thread  {
    private int mSendDelay = 100;
    private int mPacketSize = 1;
 
+   private ScheduledFuture<?> mTask = null;
+
    /**
     * Data Generator Constructor
     *
@@ -82,6 +90,7 @@ public class DummySensorDataGenerator extends Thread  {
       if (setting.equals(SEND_DELAY_PARAM)) {
          mSendDelay = params.getInt(setting);
          Log.d(LOGTAG, "Set " + SEND_DELAY_PARAM + ": " + mSendDelay);
+         reschedule();
       } else if (setting.equals(PACKET_SIZE_PARAM)) {
          mPacketSize = params.getInt(setting);
          Log.d(LOGTAG, "Set " + PACKET_SIZE_PARAM + ": " + mPacketSize);
@@ -93,33 +102,39 @@ public class DummySensorDataGenerator extends Thread  {
    }
 
    /**
-    * Thread Main Loop, Handles Data Connection
+    * Start generating, packets go out while the generator is activated
     */
-   public void run() {
-      Log.d(LOGTAG, "Sensor Data Generation Thread Created");
+   public synchronized void start() {
+      if (mTask == null && !mKillMe.get()) {
+         Log.d(LOGTAG, "Sensor Data Generation Scheduled");
+         mTask = SensorsSingleton.getAcquisitionRuntime().scheduleWithFixedDelay(
+             "DummySensorDataGenerator " + mSensor.getSensorID(), this, mSendDelay,
+             mSendDelay, TimeUnit.MILLISECONDS);
+      }
+   }
 
-      while (true) {
+   private synchronized void reschedule() {
+      if (mTask != null) {
+         mTask.cancel(false);
+         mTask = null;
+         start();
+      }
+   }
 
-         try {
-            Log.d(LOGTAG, "Sleep " + mSendDelay);
-            Thread.sleep(mSendDelay);
-         } catch (InterruptedException e) {
-            // TODO Auto-generated catch block
-            e.printStackTrace();
-         }
+   /**
+    * One Tick Of The Generator
+    */
+   public void run() {
+      if (mKillMe.get() == true) {
+         mIsActivated.set(false);
+         return;
+      }
 
-         Log.d(LOGTAG, "End Sleep");
-         if (mKillMe.get() == true) {
+      // SENSOR ACTIVATED
+      if (mIsActivated.get() == true) {
+         boolean success = generateSensorData();
+         if (!success) {
             mIsActivated.set(false);
-            break;
-         }
-
-         // SENSOR ACTIVATED
-         if (mIsActivated.get() == true) {
-            boolean success = generateSensorData();
-            if (!success) {
-               mIsActivated.set(false);
-            }
          }
       }
    }
@@ -142,8 +157,12 @@ public class DummySensorDataGenerator extends Thread  {
       return true;
    }
 
-   public void kill() {
+   public synchronized void kill() {
       mKillMe.set(true);
+      if (mTask != null) {
+         mTask.cancel(false);
+         mTask = null;
+      }
    }
 
 }
@@ -4,6 +4,7 @@ import android.os.Bundle;
 
 import org.opendatakit.sensors.*;
 import org.opendatakit.sensors.manager.DatabaseManager;
+import org.opendatakit.sensors.manager.ODKSensorManager;
 import org.opendatakit.sensors.manager.SensorNotFoundException;
 
 import java.util.ArrayList;
@@ -94,6 +95,14 @@ public class ODKDummyInternalSensor implements ODKSensor {
 
    @Override public void addSensorDataPacket(SensorDataPacket packet) {
       buffer.add(packet);
+      ODKSensorManager sensorManager = SensorsSingleton.getSensorManager();
+      if (sensorManager != null) {
+         sensorManager.packetBuffered(sensorId, packet, dbTransfer);
+      }
+   }
+
+   @Override public void acknowledgeSensorData() {
+      // debug data is not journaled
    }
 
    @Override public void dataBufferReset() {
@@ -16,9 +16,13 @@
 package org.opendatakit.sensors.manager;
 
 import android.content.Context;
+import android.os.Bundle;
 import org.opendatakit.sensors.*;
 
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 /**
  * 
@@ -61,6 +65,48 @@ public abstract class AbstractChannelManagerBase implements ChannelManager {
 		return sensorState;
 	}
 	
+	public boolean sensorConfigure(String id, String setting, Bundle params) {
+		// by default all settings go to the sensor driver
+		return false;
+	}
+	
+	public Future<?> sensorWriteAsync(final String id, final byte[] message) {
+		// without acknowledgements the write is done once it returns
+		FutureTask<Void> write = new FutureTask<Void>(new Runnable() {
+			public void run() {
+				sensorWrite(id, message);
+			}
+		}, null);
+		write.run();
+		return write;
+	}
+	
+	/**
+	 * @return a write that is already done, e.g. for a setting the channel
+	 * applied itself
+	 */
+	public static Future<?> completedWrite() {
+		FutureTask<Void> write = new FutureTask<Void>(new Runnable() {
+			public void run() {
+			}
+		}, null);
+		write.run();
+		return write;
+	}
+	
+	/**
+	 * @return a write that failed with an IllegalStateException for the reason
+	 */
+	public static Future<?> failedWrite(final String reason) {
+		FutureTask<Void> write = new FutureTask<Void>(new Callable<Void>() {
+			public Void call() {
+				throw new IllegalStateException(reason);
+			}
+		});
+		write.run();
+		return write;
+	}
+	
 	public List<ODKSensor> getRegisteredSensorList(CommunicationChannelType commType) {
 		return mSensorManager.getRegisteredSensors(commType);
 	}
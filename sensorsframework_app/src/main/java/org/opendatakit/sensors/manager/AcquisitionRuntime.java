@@ -0,0 +1,322 @@
+/*
+ * Copyright (C) 2026 ODK-X contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sensors.manager;
+
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads sensor acquisition runs on, shared by all channels:
+ * <ul>
+ * <li>an I/O pool for loops that block on a device (socket reads, USB
+ * requests), one thread per running loop up to a fixed budget</li>
+ * <li>a scheduler for timers and periodic work</li>
+ * <li>a small transfer pool for blocking writes to the database</li>
+ * </ul>
+ * Every task has a name, the thread running it carries that name and the
+ * running tasks can be listed, so a stuck sensor shows up in a thread dump.
+ */
+public class AcquisitionRuntime {
+
+   private static final String LOGTAG = AcquisitionRuntime.class.getSimpleName();
+
+   // most blocking loops running at once, past this submitIo refuses work
+   private static final int IO_THREAD_BUDGET = 32;
+   private static final int SCHEDULER_THREADS = 2;
+   // database writes running at once, more only queue behind the database
+   private static final int TRANSFER_THREADS = 2;
+   private static final long IDLE_THREAD_KEEP_ALIVE_S = 30;
+
+   /**
+    * Told when named tasks start and end, e.g. to collect statistics.
+    */
+   public interface TaskListener {
+      void taskStarted(String name);
+
+      /**
+       * @param failure the exception that ended the task, null if it returned
+       */
+      void taskFinished(String name, Throwable failure);
+   }
+
+   private final ThreadPoolExecutor ioPool;
+   private final ScheduledThreadPoolExecutor scheduler;
+   private final ThreadPoolExecutor transferPool;
+   private final Map<String, Future<?>> activeTasks;
+   private volatile TaskListener taskListener;
+
+   public AcquisitionRuntime() {
+      activeTasks = new ConcurrentHashMap<String, Future<?>>();
+
+      ioPool = new ThreadPoolExecutor(0, IO_THREAD_BUDGET, IDLE_THREAD_KEEP_ALIVE_S,
+          TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new NamedThreadFactory("io"));
+
+      scheduler = new ScheduledThreadPoolExecutor(SCHEDULER_THREADS,
+          new NamedThreadFactory("timer"));
+      scheduler.setRemoveOnCancelPolicy(true);
+
+      transferPool = new ThreadPoolExecutor(TRANSFER_THREADS, TRANSFER_THREADS,
+          IDLE_THREAD_KEEP_ALIVE_S, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+          new NamedThreadFactory("transfer"));
+      transferPool.allowCoreThreadTimeOut(true);
+   }
+
+   public void setTaskListener(TaskListener listener) {
+      taskListener = listener;
+   }
+
+   /**
+    * Runs a loop that blocks on a device on its own pooled thread.
+    *
+    * @throws RejectedExecutionException if the I/O thread budget is used up
+    */
+   public Future<?> submitIo(String name, Runnable task) {
+      return track(name, ioPool.submit(new NamedTask(name, task, true)));
+   }
+
+   /**
+    * Queues work that blocks on the database, such as writing sensor rows
+    * over IPC. It runs on a pool of its own, so it doesn't use up the I/O
+    * budget of device loops.
+    */
+   public Future<?> submitTransfer(String name, Runnable task) {
+      return track(name, transferPool.submit(new NamedTask(name, task, true)));
+   }
+
+   /**
+    * Runs a task once after a delay.
+    */
+   public ScheduledFuture<?> schedule(String name, Runnable task, long delay, TimeUnit unit) {
+      ScheduledFuture<?> future = scheduler.schedule(new NamedTask(name, task, true), delay, unit);
+      track(name, future);
+      return future;
+   }
+
+   /**
+    * Runs a task repeatedly until its future is cancelled.
+    */
+   public ScheduledFuture<?> scheduleWithFixedDelay(String name, Runnable task,
+       long initialDelay, long delay, TimeUnit unit) {
+      ScheduledFuture<?> future = scheduler.scheduleWithFixedDelay(
+          new NamedTask(name, task, false), initialDelay, delay, unit);
+      track(name, future);
+      return future;
+   }
+
+   /**
+    * Creates an executor that runs its tasks one at a time, in order, on the
+    * I/O pool. It holds a thread only while it has tasks, so components that
+    * block now and then, such as the USB lifecycle or a sensor's command
+    * writes, don't keep one parked.
+    */
+   public SerialExecutor newSerialExecutor(String name) {
+      return new SerialExecutor(name);
+   }
+
+   /**
+    * @return names of the tasks submitted and not yet finished or cancelled
+    */
+   public List<String> getActiveTaskNames() {
+      pruneFinishedTasks();
+      return new ArrayList<String>(activeTasks.keySet());
+   }
+
+   public int getIoThreadCount() {
+      return ioPool.getPoolSize();
+   }
+
+   /**
+    * Interrupts every running task. Loops blocked in device reads only notice
+    * once their owner closes the device.
+    */
+   public void shutdown() {
+      scheduler.shutdownNow();
+      ioPool.shutdownNow();
+      transferPool.shutdownNow();
+      activeTasks.clear();
+   }
+
+   private <T extends Future<?>> T track(String name, T future) {
+      // a task resubmitted under its name replaces the finished one
+      pruneFinishedTasks();
+      activeTasks.put(name, future);
+      return future;
+   }
+
+   private void pruneFinishedTasks() {
+      for (Map.Entry<String, Future<?>> entry : activeTasks.entrySet()) {
+         if (entry.getValue().isDone()) {
+            activeTasks.remove(entry.getKey(), entry.getValue());
+         }
+      }
+   }
+
+   /**
+    * Runs tasks in the order given, one at a time, on the I/O pool.
+    */
+   public class SerialExecutor implements Executor {
+
+      private final String name;
+      private final Queue<Runnable> tasks = new ArrayDeque<Runnable>();
+      private boolean draining = false;
+      private boolean shutdown = false;
+
+      SerialExecutor(String name) {
+         this.name = name;
+      }
+
+      /**
+       * @throws RejectedExecutionException if the executor was shut down, or
+       *                                    the I/O pool has no thread to start
+       *                                    draining on
+       */
+      @Override public void execute(Runnable task) {
+         synchronized (tasks) {
+            if (shutdown) {
+               throw new RejectedExecutionException(name + " is shut down");
+            }
+            tasks.add(task);
+            if (draining) {
+               return;
+            }
+            draining = true;
+         }
+         try {
+            submitIo(name, new Runnable() {
+               @Override public void run() {
+                  drain();
+               }
+            });
+         } catch (RejectedExecutionException e) {
+            synchronized (tasks) {
+               draining = false;
+               tasks.remove(task);
+            }
+            throw e;
+         }
+      }
+
+      /**
+       * Drops the tasks not started yet and refuses new ones. A task already
+       * running is left to finish.
+       */
+      public void shutdown() {
+         synchronized (tasks) {
+            shutdown = true;
+            tasks.clear();
+         }
+      }
+
+      public boolean isShutdown() {
+         synchronized (tasks) {
+            return shutdown;
+         }
+      }
+
+      private void drain() {
+         while (true) {
+            Runnable task;
+            synchronized (tasks) {
+               task = tasks.poll();
+               if (task == null) {
+                  draining = false;
+                  return;
+               }
+            }
+            try {
+               task.run();
+            } catch (RuntimeException e) {
+               Log.e(LOGTAG, "Task of " + name + " failed", e);
+            }
+         }
+      }
+   }
+
+   /**
+    * Names the running thread after the task and reports its end.
+    */
+   private class NamedTask implements Runnable {
+
+      private final String name;
+      private final Runnable task;
+      private final boolean runsOnce;
+
+      NamedTask(String name, Runnable task, boolean runsOnce) {
+         this.name = name;
+         this.task = task;
+         this.runsOnce = runsOnce;
+      }
+
+      @Override public void run() {
+         Thread thread = Thread.currentThread();
+         String poolName = thread.getName();
+         thread.setName(poolName + " " + name);
+         TaskListener listener = taskListener;
+         if (listener != null) {
+            listener.taskStarted(name);
+         }
+         Throwable failure = null;
+         try {
+            task.run();
+         } catch (RuntimeException e) {
+            failure = e;
+            Log.e(LOGTAG, "Task " + name + " failed", e);
+            throw e;
+         } catch (Error e) {
+            failure = e;
+            throw e;
+         } finally {
+            thread.setName(poolName);
+            if (listener != null && (runsOnce || failure != null)) {
+               listener.taskFinished(name, failure);
+            }
+         }
+      }
+   }
+
+   private static class NamedThreadFactory implements ThreadFactory {
+
+      private final String prefix;
+      private final AtomicInteger count = new AtomicInteger();
+
+      NamedThreadFactory(String pool) {
+         this.prefix = "acquisition-" + pool + "-";
+      }
+
+      @Override public Thread newThread(Runnable r) {
+         Thread thread = new Thread(r, prefix + count.incrementAndGet());
+         thread.setDaemon(true);
+         return thread;
+      }
+   }
+}
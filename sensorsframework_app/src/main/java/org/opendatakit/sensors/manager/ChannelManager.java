@@ -16,12 +16,15 @@
 package org.opendatakit.sensors.manager;
 
 
+import android.os.Bundle;
+
 import org.opendatakit.sensors.CommunicationChannelType;
 import org.opendatakit.sensors.DriverType;
 import org.opendatakit.sensors.ODKSensor;
 import org.opendatakit.sensors.SensorStateMachine;
 
 import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * 
@@ -62,6 +65,14 @@ public interface ChannelManager {
 	// Write data to sensor
 	public void sensorWrite(String id, byte[] message);
 	
+	// Write data to sensor, the future completes once the sensor acknowledged
+	// the message, or once it was sent on channels without acknowledgements
+	public Future<?> sensorWriteAsync(String id, byte[] message);
+	
+	// Apply a setting handled by the channel itself rather than the sensor driver,
+	// returns false if the setting is not a channel setting
+	public boolean sensorConfigure(String id, String setting, Bundle params);
+	
 	// Search for available sensors
 	public void searchForSensors();
 	
@@ -152,6 +152,14 @@ public class DatabaseManager {
       mOpenHelper = new DatabaseHelper(context);
    }
 
+   /**
+    * Opens the database, creating or upgrading it if needed. Called by a startup
+    * stage so the first query doesn't pay for it.
+    */
+   public synchronized void open() {
+      mOpenHelper.getWritableDatabase();
+   }
+
    public synchronized void closeDb() {
       mOpenHelper.close();
    }
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2026 ODK-X contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sensors.manager;
+
+import org.opendatakit.sensors.CommunicationChannelType;
+import org.opendatakit.sensors.DriverType;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The installed sensor drivers, keyed by driver type and by channel. Like the
+ * SensorRegistry, readers get an immutable snapshot and changes publish a new
+ * one, so a package being installed or removed never leaves a half updated
+ * list behind.
+ */
+class DriverTypeRegistry {
+
+   private volatile Snapshot current = new Snapshot(new ArrayList<DriverType>());
+
+   DriverType get(String sensorType) {
+      if (sensorType == null) {
+         return null;
+      }
+      return current.byType.get(sensorType);
+   }
+
+   /**
+    * @return unmodifiable, empty if the channel has no drivers
+    */
+   List<DriverType> byChannel(CommunicationChannelType channelType) {
+      List<DriverType> list = current.byChannel.get(channelType);
+      return list != null ? list : Collections.<DriverType>emptyList();
+   }
+
+   /**
+    * @return unmodifiable list of all drivers
+    */
+   List<DriverType> all() {
+      return current.all;
+   }
+
+   synchronized void replaceAll(Collection<DriverType> drivers) {
+      current = new Snapshot(new ArrayList<DriverType>(drivers));
+   }
+
+   /**
+    * Replaces the drivers of one package.
+    *
+    * @param driver the driver the package declares now, null if it declares
+    *               none or was removed
+    */
+   synchronized void replacePackage(String packageName, DriverType driver) {
+      List<DriverType> drivers = new ArrayList<DriverType>();
+      for (DriverType existing : current.all) {
+         if (!existing.getSensorPackageName().equals(packageName)) {
+            drivers.add(existing);
+         }
+      }
+      if (driver != null) {
+         drivers.add(driver);
+      }
+      current = new Snapshot(drivers);
+   }
+
+   private static class Snapshot {
+
+      final List<DriverType> all;
+      final Map<String, DriverType> byType;
+      final Map<CommunicationChannelType, List<DriverType>> byChannel;
+
+      Snapshot(List<DriverType> drivers) {
+         Map<String, DriverType> types = new HashMap<String, DriverType>();
+         Map<CommunicationChannelType, List<DriverType>> channels = new HashMap<CommunicationChannelType, List<DriverType>>();
+
+         for (DriverType driver : drivers) {
+            // the first package declaring a type keeps it, as the list scan did
+            if (!types.containsKey(driver.getSensorType())) {
+               types.put(driver.getSensorType(), driver);
+            }
+            List<DriverType> list = channels.get(driver.getCommunicationChannelType());
+            if (list == null) {
+               list = new ArrayList<DriverType>();
+               channels.put(driver.getCommunicationChannelType(), list);
+            }
+            list.add(driver);
+         }
+         for (Map.Entry<CommunicationChannelType, List<DriverType>> entry : channels.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+         }
+
+         all = Collections.unmodifiableList(drivers);
+         byType = Collections.unmodifiableMap(types);
+         byChannel = Collections.unmodifiableMap(channels);
+      }
+   }
+}
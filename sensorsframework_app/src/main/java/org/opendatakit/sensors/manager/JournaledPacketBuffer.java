@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2026 ODK-X contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sensors.manager;
+
+import android.util.Log;
+import org.opendatakit.sensors.SensorDataPacket;
+import org.opendatakit.sensors.SensorsSingleton;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The packets a sensor buffered and not yet handed out, kept in memory and,
+ * if the sensor has one, in its SensorJournal. Acknowledges the journal once
+ * the packets are stored elsewhere: when a client gets them, or for sensors
+ * transferring to the database while a transfer worker runs, when the worker
+ * calls acknowledge.
+ */
+public class JournaledPacketBuffer {
+
+   private static final String LOGTAG = JournaledPacketBuffer.class.getSimpleName();
+
+   private final String sensorId;
+   // null if the sensor has no journal
+   private final SensorJournal journal;
+
+   // guarded by itself, with the journal appends so both keep the same order
+   private final List<SensorDataPacket> packets = new ArrayList<SensorDataPacket>();
+   // last journal sequence number handed out
+   private volatile long handedOutSeq;
+
+   /**
+    * Packets taken out of the buffer together with the last journal sequence
+    * number among them.
+    */
+   public static final class Drained {
+      public final List<SensorDataPacket> packets;
+      final long seq;
+
+      Drained(List<SensorDataPacket> packets, long seq) {
+         this.packets = packets;
+         this.seq = seq;
+      }
+   }
+
+   /**
+    * @param journal null to buffer in memory only
+    */
+   public JournaledPacketBuffer(String sensorId, SensorJournal journal) {
+      this.sensorId = sensorId;
+      this.journal = journal;
+      if (journal != null) {
+         // what was buffered when the service last went down
+         packets.addAll(journal.recover());
+      }
+   }
+
+   public void add(SensorDataPacket packet) {
+      synchronized (packets) {
+         if (journal != null) {
+            try {
+               journal.append(packet);
+            } catch (IOException e) {
+               // still buffered in memory, only lost if the service dies
+               Log.e(LOGTAG, "Unable to journal packet of sensor " + sensorId, e);
+            }
+         }
+         packets.add(packet);
+      }
+   }
+
+   /**
+    * Takes every buffered packet out, oldest first.
+    */
+   public Drained drain() {
+      synchronized (packets) {
+         Drained drained = new Drained(new ArrayList<SensorDataPacket>(packets),
+             journal != null ? journal.getLastSequence() : 0);
+         packets.clear();
+         return drained;
+      }
+   }
+
+   /**
+    * Puts drained packets back in front of those buffered since, e.g. when
+    * the driver could not parse them yet.
+    */
+   public void restore(Drained drained) {
+      synchronized (packets) {
+         packets.addAll(0, drained.packets);
+      }
+   }
+
+   /**
+    * Records that the drained packets were handed out, and acknowledges them
+    * unless they wait for the transfer worker.
+    *
+    * @param dbTransfer true if the sensor transfers its data to the database
+    */
+   public void handedOut(Drained drained, boolean dbTransfer) {
+      handedOutSeq = drained.seq;
+      if (!waitsForTransfer(dbTransfer)) {
+         // in the hands of the client now
+         acknowledge();
+      }
+   }
+
+   /**
+    * Drops the packets handed out so far from the journal.
+    */
+   public void acknowledge() {
+      if (journal != null) {
+         journal.acknowledge(handedOutSeq);
+      }
+   }
+
+   /**
+    * Drops everything buffered, from memory and from the journal.
+    */
+   public void clear() {
+      synchronized (packets) {
+         packets.clear();
+         if (journal != null) {
+            journal.acknowledge(journal.getLastSequence());
+         }
+      }
+   }
+
+   /**
+    * @return true if the packets wait for the transfer worker to store them,
+    * false if handing them out is enough to acknowledge them
+    */
+   private static boolean waitsForTransfer(boolean dbTransfer) {
+      if (!dbTransfer) {
+         return false;
+      }
+      ODKSensorManager sensorManager = SensorsSingleton.getSensorManager();
+      return sensorManager != null && sensorManager.isDataTransferRunning();
+   }
+}
@@ -15,7 +15,11 @@
  */
 package org.opendatakit.sensors.manager;
 
+import android.content.BroadcastReceiver;
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.Bundle;
 import android.util.Log;
 import org.opendatakit.sensors.*;
 import org.opendatakit.sensors.bluetooth.BluetoothManager;
@@ -23,10 +27,20 @@ import org.opendatakit.sensors.builtin.BuiltInSensorType;
 import org.opendatakit.sensors.builtin.ODKBuiltInSensor;
 import org.opendatakit.sensors.drivers.ManifestMetadata;
 import org.opendatakit.sensors.dummy.DummyManager;
+import org.opendatakit.sensors.network.NetworkManager;
 import org.opendatakit.sensors.usb.USBManager;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.URLEncoder;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * @author wbrunette@gmail.com
@@ -35,22 +49,107 @@ import java.util.concurrent.ConcurrentHashMap;
 public class ODKSensorManager {
 
    private static final String LOGTAG = ODKSensorManager.class.getSimpleName();
+
+   // longest a binder call waits for startup before going ahead anyway
+   private static final long STARTUP_WAIT_MS = 30000;
+
+   private static final String JOURNAL_DIR_NAME = "journals";
+
+   /*
+    * Settings a client passes to configure that the service handles itself,
+    * see serviceConfigure. They never reach the channel or the driver and,
+    * unless noted, last until the service stops.
+    */
+
+   // starts or stops time series recording, boolean TIME_SERIES_RECORD_PARAM;
+   // kept in the time series store, so it lasts until a client changes it
+   public static final String TIME_SERIES_RECORDING_SETTING = "odk.sensors.timeseries.recording";
+   public static final String TIME_SERIES_RECORD_PARAM = "record";
+
+   // reads back what time series recording kept, from long
+   // TIME_SERIES_FROM_TIME_PARAM to long TIME_SERIES_TO_TIME_PARAM inclusive,
+   // in the time unit of the packets of the sensor; the following getSensorData
+   // calls return them, bundles of long TIME_SERIES_TIME_KEY and byte[]
+   // TIME_SERIES_PAYLOAD_KEY, until an empty list ends the read
+   public static final String TIME_SERIES_READ_SETTING = "odk.sensors.timeseries.read";
+   public static final String TIME_SERIES_FROM_TIME_PARAM = "fromTime";
+   public static final String TIME_SERIES_TO_TIME_PARAM = "toTime";
+   public static final String TIME_SERIES_TIME_KEY = "time";
+   public static final String TIME_SERIES_PAYLOAD_KEY = "payload";
+
+   // deletes what time series recording kept from before long
+   // TIME_SERIES_BEFORE_TIME_PARAM
+   public static final String TIME_SERIES_DELETE_SETTING = "odk.sensors.timeseries.deleteBefore";
+   public static final String TIME_SERIES_BEFORE_TIME_PARAM = "beforeTime";
+
+   // starts or stops moving the data of dbTransfer sensors to ODK-X, boolean
+   // DB_TRANSFER_ENABLED_PARAM; off until a client turns it on
+   public static final String DB_TRANSFER_SETTING = "odk.sensors.db.transfer";
+   public static final String DB_TRANSFER_ENABLED_PARAM = "enabled";
+
+   // when the data of a sensor is moved to ODK-X, int TRANSFER_HIGH_WATER_PARAM
+   // packets and long TRANSFER_MAX_LATENCY_MS_PARAM, see setTransferPolicy;
+   // a value left out keeps its default
+   public static final String TRANSFER_POLICY_SETTING = "odk.sensors.db.transferPolicy";
+   public static final String TRANSFER_HIGH_WATER_PARAM = "highWaterPackets";
+   public static final String TRANSFER_MAX_LATENCY_MS_PARAM = "maxLatencyMs";
+
+   // how long the driver may go unused before it is unbound, long
+   // DRIVER_IDLE_UNBIND_MS_PARAM, 0 keeps it bound
+   public static final String DRIVER_IDLE_UNBIND_SETTING = "odk.sensors.driver.idleUnbind";
+   public static final String DRIVER_IDLE_UNBIND_MS_PARAM = "ms";
    private DatabaseManager databaseManager;
 
-  // private WorkerThread workerThread;
+   // moves the data of the sensors registered with dbTransfer to ODK-X, only
+   // while a client turned DB_TRANSFER_SETTING on
+   private volatile WorkerThread workerThread;
    private Context svcContext;
 
-   private Map<String, ODKSensor> sensors;
-   private List<DriverType> driverTypes;
+   private final SensorRegistry sensors;
+   private final DriverTypeRegistry driverTypes;
+   private final DriverDiscoveryCache driverDiscoveryCache;
    private Map<CommunicationChannelType, ChannelManager> channelManagers;
 
+   // driver bindings of the external sensors and their driver types, by sensor id
+   private final Map<String, GenericDriverProxy> driverProxies;
+   private final Map<String, String> sensorDriverTypes;
+   private final BroadcastReceiver packageReceiver;
+
+   // when the data of each sensor is moved to the database
+   private final TransferScheduler transferScheduler;
+
+   // what each sensor buffered, kept on disk until consumed, by sensor id
+   private final File journalRoot;
+   private final Map<String, SensorJournal> journals;
+
+   // raw packets of the sensors in timeSeriesSensors are kept in the store
+   private final TimeSeriesStore timeSeries;
+   private final Set<String> timeSeriesSensors;
+   // packets read back through TIME_SERIES_READ_SETTING not returned yet
+   private final Map<String, Queue<SensorDataPacket>> timeSeriesReads;
+
+   // startup, see SensorsSingleton.construct
+   private volatile Future<?> registryReady;
+   private final Map<String, Future<?>> sensorReconnects;
+
    public ODKSensorManager(Context context, DatabaseManager dbManager, BluetoothManager btManager,
-       USBManager usbManager, DummyManager dummyManager) {
+       USBManager usbManager, DummyManager dummyManager, NetworkManager networkManager) {
 
       this.svcContext = context;
       this.databaseManager = dbManager;
 
-      sensors = new ConcurrentHashMap<String, ODKSensor>();
+      sensors = new SensorRegistry();
+      driverTypes = new DriverTypeRegistry();
+      driverDiscoveryCache = new DriverDiscoveryCache(context);
+      driverProxies = new ConcurrentHashMap<String, GenericDriverProxy>();
+      sensorDriverTypes = new ConcurrentHashMap<String, String>();
+      sensorReconnects = new ConcurrentHashMap<String, Future<?>>();
+      transferScheduler = new TransferScheduler();
+      journalRoot = new File(context.getFilesDir(), JOURNAL_DIR_NAME);
+      journals = new ConcurrentHashMap<String, SensorJournal>();
+      timeSeries = new TimeSeriesStore(context, SensorsSingleton.getAcquisitionRuntime());
+      timeSeriesSensors = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+      timeSeriesReads = new ConcurrentHashMap<String, Queue<SensorDataPacket>>();
       channelManagers = new HashMap<CommunicationChannelType, ChannelManager>();
 
       channelManagers.put(btManager.getCommChannelType(), btManager);
@@ -60,18 +159,38 @@ public class ODKSensorManager {
          channelManagers.put(dummyManager.getCommChannelType(), dummyManager);
       }
 
-      queryNupdateSensorDriverTypes();
+      if (networkManager != null) {
+         channelManagers.put(networkManager.getCommChannelType(), networkManager);
+      }
 
-      //XXX FIX THIS: This needs to move to the superclass. being done here because each f/w version has a different contenturi
+      // the drivers are discovered by a startup stage, queryNupdateSensorDriverTypes
 
-      // TODO: restore the automove. to maintain compatibility with non-ODK-X tools removed automatically transferring data to ODK-X Services.
-     // workerThread = new WorkerThread(svcContext, this);
-     // workerThread.start();
+      // pick up drivers installed, updated or removed while the service runs
+      packageReceiver = new BroadcastReceiver() {
+         @Override public void onReceive(Context context, Intent intent) {
+            if (intent.getData() == null) {
+               return;
+            }
+            if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())
+                && intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+               // PACKAGE_REPLACED follows
+               return;
+            }
+            driverPackageChanged(intent.getData().getSchemeSpecificPart());
+         }
+      };
+      // registered by registerPackageReceiver once discovery is done, so
+      // discovery can't overwrite what a package change put in
 
+      // to stay compatible with non-ODK-X tools data is not moved to ODK-X
+      // Services automatically, a client opts in through DB_TRANSFER_SETTING
    }
 
    public void initializeRegisteredSensors() {
 
+      // resume the time series recording of before the restart
+      timeSeriesSensors.addAll(timeSeries.recordingSensors());
+
       // discover built in sensors
       android.hardware.SensorManager builtInSensorManager = (android.hardware.SensorManager) svcContext
           .getSystemService(Context.SENSOR_SERVICE);
@@ -96,7 +215,7 @@ public class ODKSensorManager {
                   }
 
                   ODKSensor sensor = new ODKBuiltInSensor(sensorType, builtInSensorManager, id,
-                      appName, dbTransfer);
+                      appName, dbTransfer, openJournal(id));
                   addInternalSensor(id, sensor);
                } catch (Exception e) {
                   e.printStackTrace();
@@ -128,16 +247,7 @@ public class ODKSensorManager {
                       externalSensorData.id + " connected to driver " + externalSensorData.type);
 
                   if (externalSensorData.state == DetailedSensorState.CONNECTED) {
-                     try {
-                        channelManager.sensorConnect(externalSensorData.id);
-                        Log.d(LOGTAG, "connected to sensor " + externalSensorData.id + " over "
-                            + channelManager.getCommChannelType());
-                     } catch (SensorNotFoundException snfe) {
-                        updateSensorState(externalSensorData.id, DetailedSensorState.DISCONNECTED);
-                        Log.d(LOGTAG, "SensorNotFoundException. unable to connect to sensor "
-                            + externalSensorData.id + " over " + channelManager
-                            .getCommChannelType());
-                     }
+                     reconnect(channelManager, externalSensorData.id);
                   }
                }
             } else {
@@ -147,16 +257,286 @@ public class ODKSensorManager {
       }
    }
 
+   /**
+    * Reconnects a sensor saved as connected in the background, binder calls for
+    * the sensor wait for it in awaitSensor.
+    */
+   private void reconnect(final ChannelManager channelManager, final String id) {
+      Runnable connect = new Runnable() {
+         public void run() {
+            try {
+               channelManager.sensorConnect(id);
+               Log.d(LOGTAG, "connected to sensor " + id + " over "
+                   + channelManager.getCommChannelType());
+            } catch (SensorNotFoundException snfe) {
+               updateSensorState(id, DetailedSensorState.DISCONNECTED);
+               Log.d(LOGTAG, "SensorNotFoundException. unable to connect to sensor "
+                   + id + " over " + channelManager.getCommChannelType());
+            }
+         }
+      };
+      try {
+         sensorReconnects.put(id,
+             SensorsSingleton.getAcquisitionRuntime().submitIo("reconnect " + id, connect));
+      } catch (RejectedExecutionException e) {
+         connect.run();
+      }
+   }
+
+   /**
+    * Applies a setting the service handles itself rather than the channel or
+    * the driver of the sensor.
+    *
+    * @return false if the setting is not one of those
+    * @throws IllegalArgumentException if the value of the setting is invalid
+    */
+   public boolean serviceConfigure(String id, String setting, Bundle params) {
+      if (TIME_SERIES_RECORDING_SETTING.equals(setting)) {
+         setTimeSeriesRecording(id, params != null && params.getBoolean(TIME_SERIES_RECORD_PARAM));
+         return true;
+      }
+      if (TIME_SERIES_READ_SETTING.equals(setting)) {
+         if (params == null || !params.containsKey(TIME_SERIES_FROM_TIME_PARAM)
+             || !params.containsKey(TIME_SERIES_TO_TIME_PARAM)) {
+            throw new IllegalArgumentException(setting + " needs " + TIME_SERIES_FROM_TIME_PARAM
+                + " and " + TIME_SERIES_TO_TIME_PARAM);
+         }
+         readTimeSeries(id, params.getLong(TIME_SERIES_FROM_TIME_PARAM),
+             params.getLong(TIME_SERIES_TO_TIME_PARAM));
+         return true;
+      }
+      if (TIME_SERIES_DELETE_SETTING.equals(setting)) {
+         if (params == null || !params.containsKey(TIME_SERIES_BEFORE_TIME_PARAM)) {
+            throw new IllegalArgumentException(setting + " needs " + TIME_SERIES_BEFORE_TIME_PARAM);
+         }
+         timeSeries.deleteBefore(id, params.getLong(TIME_SERIES_BEFORE_TIME_PARAM));
+         return true;
+      }
+      if (DB_TRANSFER_SETTING.equals(setting)) {
+         if (params != null && params.getBoolean(DB_TRANSFER_ENABLED_PARAM)) {
+            startDataTransfer();
+         } else {
+            stopDataTransfer();
+         }
+         return true;
+      }
+      if (TRANSFER_POLICY_SETTING.equals(setting)) {
+         if (params == null) {
+            throw new IllegalArgumentException(setting + " needs a watermark or a deadline");
+         }
+         setTransferPolicy(id,
+             params.getInt(TRANSFER_HIGH_WATER_PARAM, TransferScheduler.DEFAULT_HIGH_WATER_PACKETS),
+             params.getLong(TRANSFER_MAX_LATENCY_MS_PARAM, TransferScheduler.DEFAULT_MAX_LATENCY_MS));
+         return true;
+      }
+      if (DRIVER_IDLE_UNBIND_SETTING.equals(setting)) {
+         if (params == null || !params.containsKey(DRIVER_IDLE_UNBIND_MS_PARAM)) {
+            throw new IllegalArgumentException(setting + " needs " + DRIVER_IDLE_UNBIND_MS_PARAM);
+         }
+         setDriverIdleUnbindMs(id, params.getLong(DRIVER_IDLE_UNBIND_MS_PARAM));
+         return true;
+      }
+      return false;
+   }
+
+   /**
+    * Sets how long the driver of a sensor may go unused before it is
+    * unbound. 0 keeps it bound while the sensor is registered.
+    */
+   public void setDriverIdleUnbindMs(String id, long millis) {
+      if (millis < 0) {
+         throw new IllegalArgumentException("Idle unbind period can not be negative");
+      }
+      GenericDriverProxy proxy = driverProxies.get(id);
+      if (proxy != null) {
+         proxy.setIdleUnbindMs(millis);
+      }
+   }
+
+   public TransferScheduler getTransferScheduler() {
+      return transferScheduler;
+   }
+
+   /**
+    * Starts or stops keeping the raw packets of a sensor in the time series
+    * store, for sensors too fast for a database row per reading. Recording
+    * resumes when the service restarts.
+    */
+   public void setTimeSeriesRecording(String id, boolean record) {
+      timeSeries.setRecording(id, record);
+      if (record) {
+         timeSeriesSensors.add(id);
+      } else if (timeSeriesSensors.remove(id)) {
+         timeSeries.flush(id);
+      }
+   }
+
+   /**
+    * Reads back the packets time series recording kept for the sensor with
+    * fromTime <= time <= toTime, for takeTimeSeriesRead to return. Replaces
+    * a read not fully returned yet.
+    */
+   public void readTimeSeries(String id, long fromTime, long toTime) {
+      if (fromTime > toTime) {
+         throw new IllegalArgumentException("Time series read ends before it starts");
+      }
+      timeSeriesReads.put(id,
+          new ConcurrentLinkedQueue<SensorDataPacket>(timeSeries.read(id, fromTime, toTime)));
+   }
+
+   /**
+    * @param maxNumReadings 0 or less for all of them
+    * @return the next packets of the last readTimeSeries of the sensor, empty
+    * once all were returned, null if it has no read to return
+    */
+   public List<Bundle> takeTimeSeriesRead(String id, long maxNumReadings) {
+      Queue<SensorDataPacket> pending = timeSeriesReads.get(id);
+      if (pending == null) {
+         return null;
+      }
+      List<Bundle> readings = new ArrayList<Bundle>();
+      SensorDataPacket packet;
+      while ((maxNumReadings <= 0 || readings.size() < maxNumReadings)
+          && (packet = pending.poll()) != null) {
+         Bundle reading = new Bundle();
+         reading.putLong(TIME_SERIES_TIME_KEY, packet.getTime());
+         reading.putByteArray(TIME_SERIES_PAYLOAD_KEY, packet.getPayload());
+         readings.add(reading);
+      }
+      if (readings.isEmpty()) {
+         // the client saw the end of the read, live readings are next
+         timeSeriesReads.remove(id, pending);
+      }
+      return readings;
+   }
+
+   /**
+    * Called by a sensor for each packet it buffers.
+    */
+   public void packetBuffered(String id, SensorDataPacket packet, boolean dbTransfer) {
+      // without a transfer thread nobody waits for the scheduler
+      if (dbTransfer && workerThread != null) {
+         transferScheduler.packetBuffered(id);
+      }
+      if (timeSeriesSensors.contains(id)) {
+         timeSeries.append(id, packet);
+      }
+   }
+
+   /**
+    * Sets when the data of a sensor is moved to the database: once it buffered
+    * highWaterPackets packets, or once its oldest packet waited maxLatencyMs.
+    * Either may be 0 for no limit, but not both.
+    */
+   public void setTransferPolicy(String id, int highWaterPackets, long maxLatencyMs) {
+      if (highWaterPackets == 0 && maxLatencyMs == 0) {
+         throw new IllegalArgumentException("A transfer policy needs a watermark or a deadline");
+      }
+      transferScheduler.setPolicy(id, highWaterPackets, maxLatencyMs);
+   }
+
+   /**
+    * Starts moving the data of the sensors registered with dbTransfer to the
+    * ODK-X database. Sensors registered without it are left to their clients.
+    * Off unless a client asks for it, the choice is not kept across restarts.
+    */
+   public synchronized void startDataTransfer() {
+      if (workerThread != null && workerThread.isAlive()) {
+         return;
+      }
+      WorkerThread worker = new WorkerThread(svcContext, this);
+      try {
+         worker.start();
+         workerThread = worker;
+      } catch (RejectedExecutionException e) {
+         Log.e(LOGTAG, "No I/O thread left for the database transfer");
+      }
+   }
+
+   public synchronized void stopDataTransfer() {
+      if (workerThread != null) {
+         workerThread.stopthread();
+         workerThread = null;
+      }
+   }
+
+   /**
+    * @return true while a WorkerThread is moving sensor data to the database
+    */
+   public boolean isDataTransferRunning() {
+      WorkerThread worker = workerThread;
+      return worker != null && worker.isAlive();
+   }
+
+   /**
+    * Starts following driver installs, updates and removals. Called at the
+    * end of the driver discovery stage.
+    */
+   public void registerPackageReceiver() {
+      IntentFilter packageFilter = new IntentFilter();
+      packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+      packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+      packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+      packageFilter.addDataScheme("package");
+      svcContext.registerReceiver(packageReceiver, packageFilter);
+   }
+
+   /**
+    * @param ready done once the registered sensors are loaded, the channels
+    *              may still be initializing
+    */
+   public void setRegistryReady(Future<?> ready) {
+      registryReady = ready;
+   }
+
+   /**
+    * Waits until the sensors registered before the service started are loaded.
+    */
+   public void awaitRegisteredSensors() {
+      awaitStartup(registryReady, "registered sensors");
+   }
+
+   /**
+    * Like getSensor, but first waits for startup to load the sensor and, if it
+    * was connected before, to reconnect it. Only the startup work for this
+    * sensor is waited for.
+    */
+   public ODKSensor awaitSensor(String id) {
+      awaitRegisteredSensors();
+      if (id != null) {
+         awaitStartup(sensorReconnects.get(id), "reconnect of " + id);
+      }
+      return sensors.get(id);
+   }
+
+   private static void awaitStartup(Future<?> stage, String name) {
+      if (stage == null || stage.isDone()) {
+         return;
+      }
+      try {
+         stage.get(STARTUP_WAIT_MS, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+         Log.e(LOGTAG, "startup stage " + name + " failed", e.getCause());
+      } catch (TimeoutException e) {
+         Log.w(LOGTAG, "gave up waiting for " + name);
+      }
+   }
+
    private boolean connectToDriver(String id, String appName, boolean dbTransfer, DriverType
        driver) {
       // create the sensor
       ODKExternalSensor sensorFacade = null;
       try {
-         DriverCommunicator sensorDriver = new GenericDriverProxy(driver.getSensorPackageName(),
+         // binds on first use, not here, and unbinds again when left idle
+         GenericDriverProxy sensorDriver = new GenericDriverProxy(driver.getSensorPackageName(),
              driver.getSensorDriverAddress(), this.svcContext);
+         driverProxies.put(id, sensorDriver);
+         sensorDriverTypes.put(id, driver.getSensorType());
          sensorFacade = new ODKExternalSensor(id, appName, dbTransfer, sensorDriver,
              channelManagers.get(driver.getCommunicationChannelType()),
-             driver.getReadingUiIntentStr(), driver.getConfigUiIntentStr());
+             driver.getReadingUiIntentStr(), driver.getConfigUiIntentStr(), openJournal(id));
       } catch (Exception e) {
          e.printStackTrace();
          return false;
@@ -166,8 +546,26 @@ public class ODKSensorManager {
       return true;
    }
 
+   /**
+    * @return the journal of the sensor, null if it can't be opened
+    */
+   private SensorJournal openJournal(String id) {
+      SensorJournal journal = journals.get(id);
+      if (journal != null) {
+         return journal;
+      }
+      try {
+         journal = new SensorJournal(new File(journalRoot, URLEncoder.encode(id, "UTF-8")));
+         journals.put(id, journal);
+         return journal;
+      } catch (IOException e) {
+         Log.e(LOGTAG, "Unable to open journal of sensor " + id + ", buffering in memory only", e);
+         return null;
+      }
+   }
+
    private void shutdownAllSensors() {
-      for (ODKSensor sensor : sensors.values()) {
+      for (ODKSensor sensor : sensors.all()) {
          try {
             sensor.shutdown();
          } catch (SensorNotFoundException snfe) {
@@ -177,35 +575,72 @@ public class ODKSensorManager {
    }
 
    public void queryNupdateSensorDriverTypes() {
-      List<DriverType> allDrivers = new ArrayList<DriverType>();
-      List<DriverType> btDrivers = SensorDriverDiscovery
-          .getAllDriversForChannel(svcContext, CommunicationChannelType.BLUETOOTH,
-              ManifestMetadata.FRAMEWORK_VERSION_2);
-      allDrivers.addAll(btDrivers);
+      // one pass over the packages, or only the changed ones if the cache is warm
+      List<DriverType> installed = driverDiscoveryCache
+          .getDrivers(ManifestMetadata.FRAMEWORK_VERSION_2);
 
-      List<DriverType> usbDrivers = SensorDriverDiscovery
-          .getAllDriversForChannel(svcContext, CommunicationChannelType.USB,
-              ManifestMetadata.FRAMEWORK_VERSION_2);
-      allDrivers.addAll(usbDrivers);
+      List<DriverType> allDrivers = new ArrayList<DriverType>();
+      for (CommunicationChannelType channelType : driverChannelTypes()) {
+         for (DriverType driver : installed) {
+            if (driver.getCommunicationChannelType() == channelType) {
+               allDrivers.add(driver);
+            }
+         }
+      }
+      driverTypes.replaceAll(allDrivers);
+   }
 
+   /**
+    * The channels drivers are loaded for, in the order they are searched.
+    */
+   private List<CommunicationChannelType> driverChannelTypes() {
+      List<CommunicationChannelType> channelTypes = new ArrayList<CommunicationChannelType>();
+      channelTypes.add(CommunicationChannelType.BLUETOOTH);
+      channelTypes.add(CommunicationChannelType.USB);
       if (SensorsSingleton.DEBUG) {
-         List<DriverType> dummyDrivers = SensorDriverDiscovery
-             .getAllDriversForChannel(svcContext, CommunicationChannelType.DUMMY,
-                 ManifestMetadata.FRAMEWORK_VERSION_2);
-         allDrivers.addAll(dummyDrivers);
+         channelTypes.add(CommunicationChannelType.DUMMY);
+      }
+      ChannelManager networkManager = findNetworkManager();
+      if (networkManager != null) {
+         channelTypes.add(networkManager.getCommChannelType());
       }
-      driverTypes = allDrivers;
+      return channelTypes;
    }
 
-   public DriverType getDriverType(String type) {
-      DriverType foundDriverType = null;
-      for (DriverType driverType : driverTypes) {
-         if (driverType.getSensorType().equals(type)) {
-            foundDriverType = driverType;
-            break;
+   /**
+    * Re-resolves the driver of one package and rebinds the sensors using it.
+    * Sensors whose driver was removed are unbound until it comes back.
+    */
+   private void driverPackageChanged(String packageName) {
+      DriverType driver = SensorDriverDiscovery.getDriverInPackage(svcContext, packageName,
+          driverChannelTypes(), ManifestMetadata.FRAMEWORK_VERSION_2);
+      driverTypes.replacePackage(packageName, driver);
+
+      for (GenericDriverProxy proxy : driverProxies.values()) {
+         if (!proxy.getPackageName().equals(packageName)) {
+            continue;
+         }
+         if (driver != null) {
+            Log.d(LOGTAG, "rebinding to updated driver " + packageName);
+            proxy.rebind(driver.getSensorDriverAddress());
+         } else {
+            Log.d(LOGTAG, "driver " + packageName + " removed, unbinding");
+            proxy.shutdown();
          }
       }
-      return foundDriverType;
+   }
+
+   private ChannelManager findNetworkManager() {
+      for (ChannelManager channelManager : channelManagers.values()) {
+         if (channelManager instanceof NetworkManager) {
+            return channelManager;
+         }
+      }
+      return null;
+   }
+
+   public DriverType getDriverType(String type) {
+      return driverTypes.get(type);
    }
 
    public ODKSensor getSensor(String id) {
@@ -251,8 +686,14 @@ public class ODKSensorManager {
    }
 
    public void shutdown() {
+      try {
+         svcContext.unregisterReceiver(packageReceiver);
+      } catch (IllegalArgumentException e) {
+         Log.d(LOGTAG, "package receiver already unregistered");
+      }
       shutdownAllSensors();
-   //   workerThread.stopthread();
+      timeSeries.close();
+      stopDataTransfer();
    }
 
    public boolean addSensor(String id, DriverType driver, String appName, boolean
@@ -280,39 +721,70 @@ public class ODKSensorManager {
       return true;
    }
 
+   /**
+    * @return unmodifiable list of the sensors with data to transfer to the db
+    */
    public List<ODKSensor> getSensorsToTransferToDb() {
-      List<ODKSensor> sensorList = new ArrayList<ODKSensor>();
+      return sensors.toTransferToDb();
+   }
 
-      for (ODKSensor sensor : sensors.values()) {
-         if (sensor.transferDataToDb() && sensor.hasAppNameForDatabase()) {
-            sensorList.add(sensor);
-         }
-      }
-      return sensorList;
+   /**
+    * @return unmodifiable list of the sensors writing to the database of the app
+    */
+   public List<ODKSensor> getSensorsForAppName(String appName) {
+      return sensors.byAppName(appName);
+   }
+
+   /**
+    * Sets where the data of a sensor goes, keeping the registry indexes up to date.
+    */
+   public void setSensorDatabaseTarget(ODKSensor sensor, String appName, boolean transferToDb) {
+      sensor.setAppNameForDatabase(appName);
+      sensor.setDbTransfer(transferToDb);
+      sensors.reindex();
    }
 
    public void removeAllSensors() {
       shutdownAllSensors();
-      sensors = new Hashtable<String, ODKSensor>();
+      timeSeriesSensors.clear();
+      timeSeriesReads.clear();
+      for (ODKSensor sensor : sensors.all()) {
+         timeSeries.deleteSensor(sensor.getSensorID());
+      }
+      sensors.clear();
+      driverProxies.clear();
+      sensorDriverTypes.clear();
+      sensorReconnects.clear();
+      for (SensorJournal journal : journals.values()) {
+         journal.delete();
+      }
+      journals.clear();
+      transferScheduler.clear();
 
       // TODO: after mobisys consider what is the right thing
       databaseManager.deleteAllExternalSensors();
       databaseManager.deleteAllInternalSensorsMetadata();
    }
 
+   /**
+    * @return unmodifiable list of the installed drivers
+    */
    public List<DriverType> getDriverTypes() {
-      return driverTypes;
+      return driverTypes.all();
    }
 
-   public List<ODKSensor> getRegisteredSensors(CommunicationChannelType channelType) {
-      List<ODKSensor> sensorList = new ArrayList<ODKSensor>();
+   /**
+    * @return unmodifiable list of the installed drivers for the channel
+    */
+   public List<DriverType> getDriverTypes(CommunicationChannelType channelType) {
+      return driverTypes.byChannel(channelType);
+   }
 
-      for (ODKSensor sensor : sensors.values()) {
-         if (sensor.getCommunicationChannelType() == channelType) {
-            sensorList.add(sensor);
-         }
-      }
-      return sensorList;
+   /**
+    * @return unmodifiable list of the sensors on the channel
+    */
+   public List<ODKSensor> getRegisteredSensors(CommunicationChannelType channelType) {
+      return sensors.byChannel(channelType);
    }
 
    public void updateSensorState(String id, DetailedSensorState state) {
@@ -356,8 +828,12 @@ public class ODKSensorManager {
    }
 
    public DriverType getSensorDriverType(String sensorId) {
-      DriverType sensorDriverType = getDriverType(
-          databaseManager.externalSensorQueryType(sensorId));
+      // known for every sensor bound to a driver, the db is only asked for the rest
+      String driverTypeName = sensorDriverTypes.get(sensorId);
+      if (driverTypeName == null) {
+         driverTypeName = databaseManager.externalSensorQueryType(sensorId);
+      }
+      DriverType sensorDriverType = getDriverType(driverTypeName);
       return sensorDriverType;
 
    }
@@ -0,0 +1,257 @@
+/*
+ * Copyright (C) 2026 ODK-X contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sensors.manager;
+
+import android.util.Log;
+import org.opendatakit.sensors.SensorDataPacket;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * An append-only journal of the packets a sensor buffered, so they survive
+ * the service being killed. Packets are written in order to memory mapped
+ * segment files; the pages belong to the kernel, so a packet is safe once
+ * it is in the buffer, without a write call. Segments whose packets were all
+ * acknowledged are deleted. On restart recover returns the packets that were
+ * never acknowledged.
+ * <p>
+ * A record is the payload length plus one, the sequence number, the packet
+ * time and the payload. The length goes in last, so a record cut short by a
+ * crash reads as the end of the segment.
+ */
+public class SensorJournal {
+
+   private static final String LOGTAG = SensorJournal.class.getSimpleName();
+
+   private static final String ACK_FILE_NAME = "ack";
+   private static final String SEGMENT_SUFFIX = ".seg";
+   private static final int SEGMENT_BYTES = 1024 * 1024;
+   // length, sequence number and time
+   private static final int RECORD_HEADER_BYTES = 4 + 8 + 8;
+
+   private final File dir;
+   private final MappedByteBuffer ackBuffer;
+
+   // sealed segments, oldest first, kept as file and sequence range only
+   private final List<Segment> segments = new ArrayList<Segment>();
+   // the segment appended to and its mapping, both null until the next append
+   private Segment active = null;
+   private MappedByteBuffer activeBuffer = null;
+
+   private long nextSeq;
+   private long acked;
+   private List<SensorDataPacket> recovered;
+
+   /**
+    * Opens the journal in the directory, reading back what it holds.
+    *
+    * @throws IOException if the directory or its files can't be used
+    */
+   public SensorJournal(File dir) throws IOException {
+      this.dir = dir;
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+         throw new IOException("Unable to create journal directory " + dir);
+      }
+      ackBuffer = map(new File(dir, ACK_FILE_NAME), 8);
+      acked = ackBuffer.getLong(0);
+      nextSeq = acked + 1;
+      recovered = readSegments();
+   }
+
+   /**
+    * @return the packets not acknowledged before the last shutdown, oldest
+    * first; empty on later calls
+    */
+   public synchronized List<SensorDataPacket> recover() {
+      List<SensorDataPacket> packets = recovered;
+      recovered = new ArrayList<SensorDataPacket>();
+      return packets;
+   }
+
+   /**
+    * @return the sequence number of the packet
+    */
+   public synchronized long append(SensorDataPacket packet) throws IOException {
+      byte[] payload = packet.getPayload();
+      int length = payload != null ? payload.length : 0;
+      int recordBytes = RECORD_HEADER_BYTES + length;
+      if (active == null || activeBuffer.remaining() < recordBytes) {
+         roll(recordBytes);
+      }
+
+      MappedByteBuffer buffer = activeBuffer;
+      int start = buffer.position();
+      long seq = nextSeq++;
+      buffer.putLong(start + 4, seq);
+      buffer.putLong(start + 12, packet.getTime());
+      buffer.position(start + RECORD_HEADER_BYTES);
+      if (length > 0) {
+         buffer.put(payload);
+      }
+      // commits the record
+      buffer.putInt(start, length + 1);
+      active.lastSeq = seq;
+      return seq;
+   }
+
+   /**
+    * @return the sequence number of the last packet appended, 0 if none
+    */
+   public synchronized long getLastSequence() {
+      return nextSeq - 1;
+   }
+
+   /**
+    * Marks all packets up to and including seq as stored elsewhere and
+    * deletes the segments holding only such packets.
+    */
+   public synchronized void acknowledge(long seq) {
+      seq = Math.min(seq, nextSeq - 1);
+      if (seq <= acked) {
+         return;
+      }
+      acked = seq;
+      ackBuffer.putLong(0, acked);
+
+      Iterator<Segment> iter = segments.iterator();
+      while (iter.hasNext()) {
+         Segment segment = iter.next();
+         if (segment.lastSeq > acked) {
+            break;
+         }
+         if (!segment.file.delete()) {
+            Log.w(LOGTAG, "Unable to delete " + segment.file);
+         }
+         iter.remove();
+      }
+      if (segments.isEmpty() && active != null && active.lastSeq <= acked) {
+         // the next packet starts a fresh segment
+         active.file.delete();
+         active = null;
+         activeBuffer = null;
+      }
+   }
+
+   /**
+    * Removes the journal and its directory, for a sensor that is gone.
+    */
+   public synchronized void delete() {
+      segments.clear();
+      active = null;
+      activeBuffer = null;
+      File[] files = dir.listFiles();
+      if (files != null) {
+         for (File file : files) {
+            file.delete();
+         }
+      }
+      dir.delete();
+   }
+
+   /**
+    * Seals the active segment and starts a new one. The mapping of the sealed
+    * segment is dropped, only acknowledge needs it again, by file.
+    */
+   private void roll(int recordBytes) throws IOException {
+      if (active != null) {
+         activeBuffer.force();
+         segments.add(active);
+         active = null;
+         activeBuffer = null;
+      }
+      File file = new File(dir, String.format(Locale.US, "%020d", nextSeq) + SEGMENT_SUFFIX);
+      activeBuffer = map(file, Math.max(SEGMENT_BYTES, recordBytes));
+      active = new Segment(file);
+   }
+
+   private List<SensorDataPacket> readSegments() throws IOException {
+      List<SensorDataPacket> packets = new ArrayList<SensorDataPacket>();
+      File[] files = dir.listFiles();
+      if (files == null) {
+         return packets;
+      }
+      // the zero padded names sort by first sequence number
+      Arrays.sort(files);
+
+      for (File file : files) {
+         if (!file.getName().endsWith(SEGMENT_SUFFIX)) {
+            continue;
+         }
+         MappedByteBuffer buffer = map(file, (int) file.length());
+         Segment segment = new Segment(file);
+         int pos = 0;
+         while (pos + RECORD_HEADER_BYTES <= buffer.limit()) {
+            int length = buffer.getInt(pos) - 1;
+            if (length < 0 || length > buffer.limit() - pos - RECORD_HEADER_BYTES) {
+               // the end of what was written, or a record cut short
+               break;
+            }
+            long seq = buffer.getLong(pos + 4);
+            if (seq > acked) {
+               byte[] payload = new byte[length];
+               buffer.position(pos + RECORD_HEADER_BYTES);
+               buffer.get(payload);
+               packets.add(new SensorDataPacket(payload, buffer.getLong(pos + 12)));
+            }
+            segment.lastSeq = seq;
+            nextSeq = Math.max(nextSeq, seq + 1);
+            pos += RECORD_HEADER_BYTES + length;
+         }
+
+         if (segment.lastSeq <= acked) {
+            file.delete();
+         } else {
+            segments.add(segment);
+         }
+      }
+      if (!packets.isEmpty()) {
+         Log.i(LOGTAG, "Recovered " + packets.size() + " packets from " + dir);
+      }
+      return packets;
+   }
+
+   private static MappedByteBuffer map(File file, int size) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+         // the mapping stays valid once the file is closed
+         return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+      } finally {
+         raf.close();
+      }
+   }
+
+   /**
+    * A segment file and the last sequence number it holds; its first is in
+    * the file name.
+    */
+   private static class Segment {
+      final File file;
+      long lastSeq = 0;
+
+      Segment(File file) {
+         this.file = file;
+      }
+   }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2026 ODK-X contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sensors.manager;
+
+import org.opendatakit.sensors.CommunicationChannelType;
+import org.opendatakit.sensors.ODKSensor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The registered sensors, by id and indexed by channel type, by app name and
+ * by whether their data goes to the database. Readers get the current
+ * snapshot, which is never changed, so lookups on the data path take no lock
+ * and allocate nothing. Changes copy the snapshot, rebuild the indexes and
+ * publish the copy in one write; registrations are rare, reads happen for
+ * every packet.
+ */
+class SensorRegistry {
+
+   private static final Snapshot EMPTY = new Snapshot(new HashMap<String, ODKSensor>());
+
+   private volatile Snapshot current = EMPTY;
+
+   ODKSensor get(String id) {
+      return current.byId.get(id);
+   }
+
+   Collection<ODKSensor> all() {
+      return current.byId.values();
+   }
+
+   /**
+    * @return unmodifiable, empty if the channel has no sensors
+    */
+   List<ODKSensor> byChannel(CommunicationChannelType channelType) {
+      List<ODKSensor> list = current.byChannel.get(channelType);
+      return list != null ? list : Collections.<ODKSensor>emptyList();
+   }
+
+   /**
+    * @return unmodifiable, empty if the app has no sensors
+    */
+   List<ODKSensor> byAppName(String appName) {
+      List<ODKSensor> list = current.byAppName.get(appName);
+      return list != null ? list : Collections.<ODKSensor>emptyList();
+   }
+
+   /**
+    * @return unmodifiable list of the sensors whose data is transferred to the
+    * database of their app
+    */
+   List<ODKSensor> toTransferToDb() {
+      return current.toTransferToDb;
+   }
+
+   synchronized void put(String id, ODKSensor sensor) {
+      Map<String, ODKSensor> copy = new HashMap<String, ODKSensor>(current.byId);
+      copy.put(id, sensor);
+      current = new Snapshot(copy);
+   }
+
+   synchronized void remove(String id) {
+      if (current.byId.containsKey(id)) {
+         Map<String, ODKSensor> copy = new HashMap<String, ODKSensor>(current.byId);
+         copy.remove(id);
+         current = new Snapshot(copy);
+      }
+   }
+
+   synchronized void clear() {
+      current = EMPTY;
+   }
+
+   /**
+    * Rebuilds the indexes, to be called after the app name or database
+    * transfer flag of a registered sensor changed.
+    */
+   synchronized void reindex() {
+      current = new Snapshot(new HashMap<String, ODKSensor>(current.byId));
+   }
+
+   private static class Snapshot {
+
+      final Map<String, ODKSensor> byId;
+      final Map<CommunicationChannelType, List<ODKSensor>> byChannel;
+      final Map<String, List<ODKSensor>> byAppName;
+      final List<ODKSensor> toTransferToDb;
+
+      Snapshot(Map<String, ODKSensor> sensors) {
+         Map<CommunicationChannelType, List<ODKSensor>> channels = new HashMap<CommunicationChannelType, List<ODKSensor>>();
+         Map<String, List<ODKSensor>> apps = new HashMap<String, List<ODKSensor>>();
+         List<ODKSensor> transfer = new ArrayList<ODKSensor>();
+
+         for (ODKSensor sensor : sensors.values()) {
+            add(channels, sensor.getCommunicationChannelType(), sensor);
+            if (sensor.hasAppNameForDatabase()) {
+               add(apps, sensor.getAppNameForDatabase(), sensor);
+               if (sensor.transferDataToDb()) {
+                  transfer.add(sensor);
+               }
+            }
+         }
+
+         byId = Collections.unmodifiableMap(sensors);
+         byChannel = freeze(channels);
+         byAppName = freeze(apps);
+         toTransferToDb = Collections.unmodifiableList(transfer);
+      }
+
+      private static <K> void add(Map<K, List<ODKSensor>> index, K key, ODKSensor sensor) {
+         List<ODKSensor> list = index.get(key);
+         if (list == null) {
+            list = new ArrayList<ODKSensor>();
+            index.put(key, list);
+         }
+         list.add(sensor);
+      }
+
+      private static <K> Map<K, List<ODKSensor>> freeze(Map<K, List<ODKSensor>> index) {
+         for (Map.Entry<K, List<ODKSensor>> entry : index.entrySet()) {
+            entry.setValue(Collections.unmodifiableList(entry.getValue()));
+         }
+         return Collections.unmodifiableMap(index);
+      }
+   }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2026 ODK-X contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sensors.manager;
+
+import android.content.ContentValues;
+import android.os.Bundle;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.opendatakit.aggregate.odktables.rest.ElementDataType;
+import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.opendatakit.database.data.ColumnDefinition;
+import org.opendatakit.database.data.ColumnList;
+import org.opendatakit.database.data.OrderedColumns;
+import org.opendatakit.sensors.DataSeries;
+import org.opendatakit.utilities.ODKJsonNames;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The table definition of a driver, parsed once from the JSON in its
+ * manifest. Once the table is open, rowWriter turns the columns of the table
+ * into a fixed list of typed extractors, so writing a reading is a walk over
+ * an array instead of a pass over the schema.
+ */
+final class TablePlan {
+
+   private final String tableId;
+   private final ColumnList columns;
+
+   private TablePlan(String tableId, ColumnList columns) {
+      this.tableId = tableId;
+      this.columns = columns;
+   }
+
+   /**
+    * @throws IllegalArgumentException if the definition does not name a table
+    */
+   static TablePlan compile(String tableDefinition) throws JSONException {
+      if (tableDefinition == null) {
+         throw new IllegalArgumentException("The tableDefinition is null!");
+      }
+      JSONObject theTableDef = (new JSONObject(tableDefinition))
+          .getJSONObject(ODKJsonNames.jsonTableStr);
+      String tableId = theTableDef.getString(ODKJsonNames.jsonTableIdStr);
+
+      if (tableId == null) {
+         throw new IllegalArgumentException("The tableDefinition does not specify the tableId!");
+      }
+
+      List<Column> columns = new ArrayList<Column>();
+      // Create the columns for the driver table
+      JSONArray colJsonArray = theTableDef.getJSONArray(ODKJsonNames.jsonColumnsStr);
+
+      for (int i = 0; i < colJsonArray.length(); i++) {
+         JSONObject colJson = colJsonArray.getJSONObject(i);
+         String elementKey = colJson.getString(ODKJsonNames.jsonElementKeyStr);
+         String elementName = colJson.getString(ODKJsonNames.jsonElementNameStr);
+         String elementType = colJson.getString(ODKJsonNames.jsonElementTypeStr);
+         String listChildElementKeys = colJson
+             .getString(ODKJsonNames.jsonListChildElementKeysStr);
+         columns.add(new Column(elementKey, elementName, elementType, listChildElementKeys));
+      }
+      return new TablePlan(tableId, new ColumnList(columns));
+   }
+
+   String getTableId() {
+      return tableId;
+   }
+
+   /**
+    * @return the columns to create the table with if it does not exist
+    */
+   ColumnList getColumns() {
+      return columns;
+   }
+
+   /**
+    * @param orderedDefs the columns of the table as it exists in the database
+    */
+   static RowWriter rowWriter(OrderedColumns orderedDefs) {
+      List<String> keys = new ArrayList<String>();
+      List<ColumnKind> kinds = new ArrayList<ColumnKind>();
+
+      // store data values into the user-defined columns of the driver table
+      for (ColumnDefinition col : orderedDefs.getColumnDefinitions()) {
+         if (!col.isUnitOfRetention()) {
+            continue;
+         }
+         String colName = col.getElementKey();
+         keys.add(colName);
+         if (colName.equals(DataSeries.SENSOR_ID)) {
+            // special treatment
+            kinds.add(ColumnKind.SENSOR_ID);
+         } else {
+            kinds.add(ColumnKind.forType(col.getType().getDataType()));
+         }
+      }
+      return new RowWriter(orderedDefs, keys.toArray(new String[keys.size()]),
+          kinds.toArray(new ColumnKind[kinds.size()]));
+   }
+
+   /**
+    * Writes readings into the columns of one open table.
+    */
+   static final class RowWriter {
+
+      private final OrderedColumns orderedDefs;
+      private final String[] keys;
+      private final ColumnKind[] kinds;
+
+      private RowWriter(OrderedColumns orderedDefs, String[] keys, ColumnKind[] kinds) {
+         this.orderedDefs = orderedDefs;
+         this.keys = keys;
+         this.kinds = kinds;
+      }
+
+      OrderedColumns getOrderedColumns() {
+         return orderedDefs;
+      }
+
+      ContentValues toContentValues(String sensorId, Bundle dataBundle) {
+         ContentValues tablesValues = new ContentValues(keys.length);
+         for (int i = 0; i < keys.length; i++) {
+            kinds[i].put(tablesValues, keys[i], sensorId, dataBundle);
+         }
+         return tablesValues;
+      }
+   }
+
+   private enum ColumnKind {
+      SENSOR_ID {
+         @Override void put(ContentValues values, String key, String sensorId, Bundle data) {
+            values.put(key, sensorId);
+         }
+      },
+      BOOL {
+         @Override void put(ContentValues values, String key, String sensorId, Bundle data) {
+            Integer colData = data.containsKey(key) ? (data.getBoolean(key) ? 1 : 0) : null;
+            values.put(key, colData);
+         }
+      },
+      INTEGER {
+         @Override void put(ContentValues values, String key, String sensorId, Bundle data) {
+            Integer colData = data.containsKey(key) ? data.getInt(key) : null;
+            values.put(key, colData);
+         }
+      },
+      NUMBER {
+         @Override void put(ContentValues values, String key, String sensorId, Bundle data) {
+            Double colData = data.containsKey(key) ? data.getDouble(key) : null;
+            values.put(key, colData);
+         }
+      },
+      STRING {
+         // everything else is a string value coming across the wire...
+         @Override void put(ContentValues values, String key, String sensorId, Bundle data) {
+            String colData = data.containsKey(key) ? data.getString(key) : null;
+            values.put(key, colData);
+         }
+      };
+
+      abstract void put(ContentValues values, String key, String sensorId, Bundle data);
+
+      static ColumnKind forType(ElementDataType dataType) {
+         if (dataType == ElementDataType.bool) {
+            return BOOL;
+         } else if (dataType == ElementDataType.integer) {
+            return INTEGER;
+         } else if (dataType == ElementDataType.number) {
+            return NUMBER;
+         }
+         return STRING;
+      }
+   }
+}
@@ -0,0 +1,503 @@
+/*
+ * Copyright (C) 2026 ODK-X contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sensors.manager;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.os.SystemClock;
+import android.util.Log;
+import org.opendatakit.sensors.SensorDataPacket;
+import org.opendatakit.sensors.usb.USBCommon;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the raw packets of high rate sensors in a database of its own next to
+ * sensors.db. Packets are grouped per sensor into chunks of up to 4096
+ * packets, all less than one second after the first, and a chunk is stored
+ * as one row: a blob of time deltas and payloads, indexed by sensor id and
+ * start time. Rows are only ever inserted, in batches off the capture thread;
+ * a time range is read back by decoding the few chunks that overlap it. The
+ * sensors recording are kept in the same database, so recording resumes when
+ * the service restarts.
+ */
+public class TimeSeriesStore {
+
+   // logging
+   private static final String LOGTAG = "TimeSeriesStore";
+
+   // database metadata
+   private static final String DATABASE_NAME = "timeseries.db";
+   private static final int DATABASE_VERSION = 2;
+
+   public static final int MAX_CHUNK_PACKETS = 4096;
+   public static final long MAX_CHUNK_SPAN_MS = 1000;
+   private static final int MAX_CHUNK_BYTES = 64 * 1024;
+
+   /**
+    * Chunk Table
+    */
+   private class ChunkTable {
+      // cannot instantiate class
+      private ChunkTable() {
+      }
+
+      public static final String TABLE_NAME = "chunks";
+      public static final String SENSOR_ID = "sensor_id"; // sensor id
+      public static final String START_TIME = "start_time"; // time of the first packet
+      public static final String END_TIME = "end_time"; // latest time of any packet
+      public static final String PACKETS = "packets"; // number of packets
+      public static final String DATA = "data"; // encoded packets
+      public static final String INDEX_NAME = "chunks_by_sensor_time";
+   }
+
+   /**
+    * Recording Table
+    */
+   private class RecordingTable {
+      // cannot instantiate class
+      private RecordingTable() {
+      }
+
+      public static final String TABLE_NAME = "recording";
+      public static final String SENSOR_ID = "sensor_id"; // sensor id (primary key)
+   }
+
+   /**
+    * Open, create, and upgrade the database file.
+    */
+   private static class DatabaseHelper extends SQLiteOpenHelper {
+
+      DatabaseHelper(Context context) {
+         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+      }
+
+      @Override public void onCreate(SQLiteDatabase db) {
+         try {
+            db.execSQL("CREATE TABLE " + ChunkTable.TABLE_NAME + " (" +
+                ChunkTable.SENSOR_ID + " TEXT NOT NULL," +
+                ChunkTable.START_TIME + " INTEGER NOT NULL," +
+                ChunkTable.END_TIME + " INTEGER NOT NULL," +
+                ChunkTable.PACKETS + " INTEGER NOT NULL," +
+                ChunkTable.DATA + " BLOB NOT NULL" + ");");
+            db.execSQL("CREATE INDEX " + ChunkTable.INDEX_NAME + " ON " +
+                ChunkTable.TABLE_NAME + " (" + ChunkTable.SENSOR_ID + "," +
+                ChunkTable.START_TIME + ");");
+            db.execSQL("CREATE TABLE " + RecordingTable.TABLE_NAME + " (" +
+                RecordingTable.SENSOR_ID + " TEXT PRIMARY KEY" + ");");
+         } catch (SQLException e) {
+            Log.w(LOGTAG, "DatabaseHelper onCreate Failed!", e);
+         }
+      }
+
+      @Override public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+         Log.w(LOGTAG, "DatabaseHelper onUpgrade: Upgrading database from version " + oldVersion
+             + " to " + newVersion + ", which will destroy all old data");
+         try {
+            db.execSQL("DROP TABLE IF EXISTS " + ChunkTable.TABLE_NAME);
+            db.execSQL("DROP TABLE IF EXISTS " + RecordingTable.TABLE_NAME);
+         } catch (SQLException e) {
+            Log.w(LOGTAG, "DatabaseHelper onUpgrade Failed!", e);
+         }
+         onCreate(db);
+      }
+   }
+
+   private final DatabaseHelper openHelper;
+   private final AcquisitionRuntime runtime;
+   // runs while some chunk is open, null otherwise
+   private ScheduledFuture<?> sealTask = null;
+   private boolean closed = false;
+
+   // the chunk each sensor is filling
+   private final Map<String, ChunkBuilder> openChunks = new HashMap<String, ChunkBuilder>();
+   // sealed chunks not in the database yet, oldest first
+   private final List<Chunk> unwritten = new ArrayList<Chunk>();
+   private boolean writeScheduled = false;
+
+   // held while chunks move from memory to the database, so a read sees each
+   // chunk once; taken before the lock of the store, never after
+   private final Object writeLock = new Object();
+
+   public TimeSeriesStore(Context context, AcquisitionRuntime runtime) {
+      this.openHelper = new DatabaseHelper(context);
+      this.runtime = runtime;
+   }
+
+   public synchronized void append(String sensorId, SensorDataPacket packet) {
+      ChunkBuilder builder = openChunks.get(sensorId);
+      if (builder != null && !builder.fits(packet.getTime())) {
+         // keeps every packet of a chunk within MAX_CHUNK_SPAN_MS of its start
+         seal(builder);
+         builder = null;
+      }
+      if (builder == null) {
+         builder = new ChunkBuilder(sensorId, packet.getTime());
+         openChunks.put(sensorId, builder);
+         startSealTask();
+      }
+      builder.add(packet);
+      if (builder.packets >= MAX_CHUNK_PACKETS || builder.data.size() >= MAX_CHUNK_BYTES) {
+         seal(builder);
+      }
+   }
+
+   /**
+    * Seals the chunk the sensor is filling, for instance once it stops
+    * recording.
+    */
+   public synchronized void flush(String sensorId) {
+      ChunkBuilder builder = openChunks.get(sensorId);
+      if (builder != null) {
+         seal(builder);
+      }
+   }
+
+   /**
+    * @return the packets of the sensor with fromTime <= time <= toTime, in the
+    * order they arrived
+    */
+   public List<SensorDataPacket> read(String sensorId, long fromTime, long toTime) {
+      List<SensorDataPacket> packets = new ArrayList<SensorDataPacket>();
+
+      synchronized (writeLock) {
+         SQLiteDatabase db = openHelper.getReadableDatabase();
+         // no chunk spans more than MAX_CHUNK_SPAN_MS, which bounds the index
+         // range scanned from below
+         Cursor c = db.query(ChunkTable.TABLE_NAME,
+             new String[] { ChunkTable.START_TIME, ChunkTable.DATA },
+             ChunkTable.SENSOR_ID + "=? AND " + ChunkTable.START_TIME + ">=? AND "
+                 + ChunkTable.START_TIME + "<=? AND " + ChunkTable.END_TIME + ">=?",
+             new String[] { sensorId, Long.toString(fromTime - MAX_CHUNK_SPAN_MS),
+                 Long.toString(toTime), Long.toString(fromTime) }, null, null,
+             ChunkTable.START_TIME + ",rowid");
+         try {
+            while (c.moveToNext()) {
+               decode(c.getLong(0), c.getBlob(1), fromTime, toTime, packets);
+            }
+         } finally {
+            c.close();
+         }
+
+         // and what is still on its way to the database
+         synchronized (this) {
+            for (Chunk chunk : unwritten) {
+               if (chunk.sensorId.equals(sensorId) && chunk.startTime <= toTime
+                   && chunk.endTime >= fromTime) {
+                  decode(chunk.startTime, chunk.data, fromTime, toTime, packets);
+               }
+            }
+            ChunkBuilder builder = openChunks.get(sensorId);
+            if (builder != null && builder.startTime <= toTime && builder.endTime >= fromTime) {
+               decode(builder.startTime, builder.data.toByteArray(), fromTime, toTime, packets);
+            }
+         }
+      }
+      return packets;
+   }
+
+   /**
+    * Deletes the chunks of the sensor that end before the time, including
+    * those not in the database yet.
+    */
+   public void deleteBefore(String sensorId, long time) {
+      synchronized (writeLock) {
+         synchronized (this) {
+            Iterator<Chunk> iter = unwritten.iterator();
+            while (iter.hasNext()) {
+               Chunk chunk = iter.next();
+               if (chunk.sensorId.equals(sensorId) && chunk.endTime < time) {
+                  iter.remove();
+               }
+            }
+         }
+         SQLiteDatabase db = openHelper.getWritableDatabase();
+         db.delete(ChunkTable.TABLE_NAME,
+             ChunkTable.SENSOR_ID + "=? AND " + ChunkTable.END_TIME + "<?",
+             new String[] { sensorId, Long.toString(time) });
+      }
+   }
+
+   /**
+    * Deletes every chunk of the sensor and stops it recording.
+    */
+   public void deleteSensor(String sensorId) {
+      synchronized (writeLock) {
+         synchronized (this) {
+            openChunks.remove(sensorId);
+            Iterator<Chunk> iter = unwritten.iterator();
+            while (iter.hasNext()) {
+               if (iter.next().sensorId.equals(sensorId)) {
+                  iter.remove();
+               }
+            }
+         }
+         SQLiteDatabase db = openHelper.getWritableDatabase();
+         db.delete(ChunkTable.TABLE_NAME, ChunkTable.SENSOR_ID + "=?", new String[] { sensorId });
+         db.delete(RecordingTable.TABLE_NAME, RecordingTable.SENSOR_ID + "=?",
+             new String[] { sensorId });
+      }
+   }
+
+   /**
+    * Stores whether the sensor records, see recordingSensors.
+    */
+   public void setRecording(String sensorId, boolean record) {
+      try {
+         SQLiteDatabase db = openHelper.getWritableDatabase();
+         if (record) {
+            ContentValues values = new ContentValues();
+            values.put(RecordingTable.SENSOR_ID, sensorId);
+            db.insertWithOnConflict(RecordingTable.TABLE_NAME, null, values,
+                SQLiteDatabase.CONFLICT_REPLACE);
+         } else {
+            db.delete(RecordingTable.TABLE_NAME, RecordingTable.SENSOR_ID + "=?",
+                new String[] { sensorId });
+         }
+      } catch (SQLException e) {
+         Log.w(LOGTAG, "Unable to store whether " + sensorId + " records", e);
+      }
+   }
+
+   /**
+    * @return the ids of the sensors recording when the service last stopped
+    */
+   public List<String> recordingSensors() {
+      List<String> ids = new ArrayList<String>();
+      SQLiteDatabase db = openHelper.getReadableDatabase();
+      Cursor c = db.query(RecordingTable.TABLE_NAME, new String[] { RecordingTable.SENSOR_ID },
+          null, null, null, null, null);
+      try {
+         while (c.moveToNext()) {
+            ids.add(c.getString(0));
+         }
+      } finally {
+         c.close();
+      }
+      return ids;
+   }
+
+   /**
+    * Writes out everything buffered and closes the database.
+    */
+   public void close() {
+      synchronized (this) {
+         closed = true;
+         stopSealTask();
+         for (ChunkBuilder builder : new ArrayList<ChunkBuilder>(openChunks.values())) {
+            seal(builder);
+         }
+      }
+      writeUnwritten();
+      openHelper.close();
+   }
+
+   /**
+    * Seals the chunks open for MAX_CHUNK_SPAN_MS, so a sensor that goes quiet
+    * doesn't leave its last chunk in memory.
+    */
+   private synchronized void sealExpired() {
+      long now = SystemClock.elapsedRealtime();
+      for (ChunkBuilder builder : new ArrayList<ChunkBuilder>(openChunks.values())) {
+         if (now - builder.openedAt >= MAX_CHUNK_SPAN_MS) {
+            seal(builder);
+         }
+      }
+      if (openChunks.isEmpty()) {
+         // nothing is recording, the next chunk opened starts it again
+         stopSealTask();
+      }
+   }
+
+   // called holding the lock
+   private void startSealTask() {
+      if (sealTask != null || closed) {
+         return;
+      }
+      try {
+         sealTask = runtime.scheduleWithFixedDelay("timeseries seal", new Runnable() {
+            public void run() {
+               sealExpired();
+            }
+         }, MAX_CHUNK_SPAN_MS, MAX_CHUNK_SPAN_MS, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+         // shutting down, close seals what is open
+      }
+   }
+
+   // called holding the lock
+   private void stopSealTask() {
+      if (sealTask != null) {
+         sealTask.cancel(false);
+         sealTask = null;
+      }
+   }
+
+   // called holding the lock
+   private void seal(ChunkBuilder builder) {
+      openChunks.remove(builder.sensorId);
+      unwritten.add(new Chunk(builder.sensorId, builder.startTime, builder.endTime,
+          builder.packets, builder.data.toByteArray()));
+      if (!writeScheduled) {
+         writeScheduled = true;
+         try {
+            runtime.submitIo("timeseries write", new Runnable() {
+               public void run() {
+                  writeUnwritten();
+               }
+            });
+         } catch (RejectedExecutionException e) {
+            // tried again when the next chunk is sealed
+            writeScheduled = false;
+         }
+      }
+   }
+
+   /**
+    * Inserts the sealed chunks in one transaction per batch, without holding
+    * the lock the capture threads append under.
+    */
+   private void writeUnwritten() {
+      while (true) {
+         synchronized (writeLock) {
+            List<Chunk> batch;
+            synchronized (this) {
+               if (unwritten.isEmpty()) {
+                  writeScheduled = false;
+                  return;
+               }
+               batch = new ArrayList<Chunk>(unwritten);
+            }
+
+            try {
+               SQLiteDatabase db = openHelper.getWritableDatabase();
+               db.beginTransaction();
+               try {
+                  ContentValues values = new ContentValues();
+                  for (Chunk chunk : batch) {
+                     values.put(ChunkTable.SENSOR_ID, chunk.sensorId);
+                     values.put(ChunkTable.START_TIME, chunk.startTime);
+                     values.put(ChunkTable.END_TIME, chunk.endTime);
+                     values.put(ChunkTable.PACKETS, chunk.packets);
+                     values.put(ChunkTable.DATA, chunk.data);
+                     db.insertOrThrow(ChunkTable.TABLE_NAME, null, values);
+                  }
+                  db.setTransactionSuccessful();
+               } finally {
+                  db.endTransaction();
+               }
+            } catch (SQLException e) {
+               Log.e(LOGTAG, "Unable to write " + batch.size() + " chunks, dropping them", e);
+            }
+
+            synchronized (this) {
+               unwritten.removeAll(batch);
+            }
+         }
+      }
+   }
+
+   /**
+    * Adds the packets of a chunk within the time range to the list.
+    */
+   static void decode(long startTime, byte[] data, long fromTime, long toTime,
+       List<SensorDataPacket> packets) {
+      int[] pos = new int[] { 0 };
+      long time = startTime;
+      while (pos[0] < data.length) {
+         time += USBCommon.decodeZigZag(USBCommon.readVarint(data, pos));
+         int length = (int) USBCommon.readVarint(data, pos);
+         if (time >= fromTime && time <= toTime) {
+            byte[] payload = new byte[length];
+            System.arraycopy(data, pos[0], payload, 0, length);
+            packets.add(new SensorDataPacket(payload, time));
+         }
+         pos[0] += length;
+      }
+   }
+
+   /**
+    * The chunk a sensor is filling. Each packet is the time since the packet
+    * before as a zigzag varint, the payload length as a varint and the
+    * payload.
+    */
+   static class ChunkBuilder {
+      final String sensorId;
+      final long startTime;
+      final long openedAt = SystemClock.elapsedRealtime();
+      final ByteArrayOutputStream data = new ByteArrayOutputStream();
+      long lastTime;
+      long endTime;
+      int packets = 0;
+
+      ChunkBuilder(String sensorId, long startTime) {
+         this.sensorId = sensorId;
+         this.startTime = startTime;
+         this.lastTime = startTime;
+         this.endTime = startTime;
+      }
+
+      /**
+       * @return true if the time fits in this chunk without it spanning
+       * MAX_CHUNK_SPAN_MS or more
+       */
+      boolean fits(long time) {
+         return time >= startTime && time - startTime < MAX_CHUNK_SPAN_MS;
+      }
+
+      void add(SensorDataPacket packet) {
+         byte[] payload = packet.getPayload();
+         int length = payload != null ? payload.length : 0;
+         long time = packet.getTime();
+         USBCommon.writeVarint(data, USBCommon.encodeZigZag(time - lastTime));
+         USBCommon.writeVarint(data, length);
+         if (length > 0) {
+            data.write(payload, 0, length);
+         }
+         lastTime = time;
+         endTime = Math.max(endTime, time);
+         packets++;
+      }
+   }
+
+   private static class Chunk {
+      final String sensorId;
+      final long startTime;
+      final long endTime;
+      final int packets;
+      final byte[] data;
+
+      Chunk(String sensorId, long startTime, long endTime, int packets, byte[] data) {
+         this.sensorId = sensorId;
+         this.startTime = startTime;
+         this.endTime = endTime;
+         this.packets = packets;
+         this.data = data;
+      }
+   }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2026 ODK-X contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sensors.manager;
+
+import android.os.SystemClock;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decides when the data of a sensor is moved to the database. A sensor is due
+ * once it has buffered its high-water mark of packets, or once the oldest
+ * packet not transferred yet is older than its maximum latency. While no
+ * sensor has anything buffered the transfer thread sleeps, so the phone can
+ * too.
+ *
+ * Counting a packet only touches the counter of its own sensor. The monitor
+ * is taken when the first packet of a backlog sets a deadline earlier than
+ * the one the transfer thread waits for, and when a sensor becomes due.
+ */
+public class TransferScheduler {
+
+   public static final int DEFAULT_HIGH_WATER_PACKETS = 500;
+   public static final long DEFAULT_MAX_LATENCY_MS = 30000;
+
+   private static final Policy DEFAULT_POLICY = new Policy(DEFAULT_HIGH_WATER_PACKETS,
+       DEFAULT_MAX_LATENCY_MS);
+
+   private final Map<String, Policy> policies = new ConcurrentHashMap<String, Policy>();
+   private final ConcurrentHashMap<String, Backlog> backlogs =
+       new ConcurrentHashMap<String, Backlog>();
+
+   // earliest deadline the waiting thread knows about, written under the
+   // monitor; Long.MAX_VALUE while it is not waiting, so every new deadline
+   // wakes it
+   private volatile long wakeAt = Long.MAX_VALUE;
+
+   /**
+    * @param highWaterPackets packets buffered before a transfer starts, 0 for no
+    *                         limit
+    * @param maxLatencyMs     longest a packet waits for the transfer, 0 for no
+    *                         limit
+    */
+   public void setPolicy(String sensorId, int highWaterPackets, long maxLatencyMs) {
+      if (highWaterPackets < 0 || maxLatencyMs < 0) {
+         throw new IllegalArgumentException("Transfer policy can not be negative");
+      }
+      policies.put(sensorId, new Policy(highWaterPackets, maxLatencyMs));
+   }
+
+   public void removePolicy(String sensorId) {
+      policies.remove(sensorId);
+      backlogs.remove(sensorId);
+   }
+
+   /**
+    * Forgets the policies and backlogs of all sensors.
+    */
+   public void clear() {
+      policies.clear();
+      backlogs.clear();
+   }
+
+   /**
+    * Called by a sensor for each packet it buffers for the database.
+    */
+   public void packetBuffered(String sensorId) {
+      Backlog backlog = backlogFor(sensorId);
+      if (backlog.due) {
+         return;
+      }
+      int packets = backlog.packets.incrementAndGet();
+      Policy policy = policyFor(sensorId);
+      if (packets == 1 && policy.maxLatencyMs > 0) {
+         long deadline = SystemClock.elapsedRealtime() + policy.maxLatencyMs;
+         backlog.deadline = deadline;
+         if (deadline < wakeAt) {
+            wake();
+         }
+      }
+      if (policy.highWaterPackets > 0 && packets == policy.highWaterPackets) {
+         backlog.due = true;
+         wake();
+      }
+   }
+
+   /**
+    * Makes sensors due right away, for instance to continue a transfer that
+    * stopped before all their data was written.
+    */
+   public void markDue(Collection<String> sensorIds) {
+      for (String sensorId : sensorIds) {
+         backlogFor(sensorId).due = true;
+      }
+      wake();
+   }
+
+   /**
+    * Blocks until a sensor is due for a transfer.
+    *
+    * @param maxWaitMs returns after this long even if no sensor is due
+    * @return the sensors due, their backlog starts over; empty if the wait ran out
+    */
+   public synchronized Set<String> awaitDue(long maxWaitMs) throws InterruptedException {
+      long giveUpAt = SystemClock.elapsedRealtime() + maxWaitMs;
+      while (true) {
+         // set before the scan, so a deadline the scan misses sees it and wakes us
+         wakeAt = Long.MAX_VALUE;
+         long now = SystemClock.elapsedRealtime();
+         long nextDeadline = Long.MAX_VALUE;
+         Set<String> ready = new HashSet<String>();
+         for (Map.Entry<String, Backlog> entry : backlogs.entrySet()) {
+            Backlog backlog = entry.getValue();
+            if (backlog.due || backlog.deadline <= now) {
+               ready.add(entry.getKey());
+               backlog.reset();
+            } else {
+               nextDeadline = Math.min(nextDeadline, backlog.deadline);
+            }
+         }
+
+         if (!ready.isEmpty() || now >= giveUpAt) {
+            return ready;
+         }
+
+         wakeAt = Math.min(nextDeadline, giveUpAt);
+         wait(wakeAt - now);
+      }
+   }
+
+   private synchronized void wake() {
+      notifyAll();
+   }
+
+   private Backlog backlogFor(String sensorId) {
+      Backlog backlog = backlogs.get(sensorId);
+      if (backlog == null) {
+         Backlog created = new Backlog();
+         backlog = backlogs.putIfAbsent(sensorId, created);
+         if (backlog == null) {
+            backlog = created;
+         }
+      }
+      return backlog;
+   }
+
+   private Policy policyFor(String sensorId) {
+      Policy policy = policies.get(sensorId);
+      return policy != null ? policy : DEFAULT_POLICY;
+   }
+
+   private static class Policy {
+      final int highWaterPackets;
+      final long maxLatencyMs;
+
+      Policy(int highWaterPackets, long maxLatencyMs) {
+         this.highWaterPackets = highWaterPackets;
+         this.maxLatencyMs = maxLatencyMs;
+      }
+   }
+
+   /**
+    * What a sensor has buffered since its last transfer.
+    */
+   private static class Backlog {
+      final AtomicInteger packets = new AtomicInteger();
+      volatile long deadline = Long.MAX_VALUE;
+      volatile boolean due;
+
+      /**
+       * Starts a new backlog. The flag and the deadline are cleared before the
+       * count, so the next packet counted as the first sets a new deadline.
+       */
+      void reset() {
+         due = false;
+         deadline = Long.MAX_VALUE;
+         packets.set(0);
+      }
+   }
+}
@@ -20,14 +20,8 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.util.Log;
-import org.json.JSONArray;
-import org.json.JSONObject;
-import org.opendatakit.aggregate.odktables.rest.ElementDataType;
-import org.opendatakit.aggregate.odktables.rest.ElementType;
-import org.opendatakit.aggregate.odktables.rest.entity.Column;
+import org.json.JSONException;
 import org.opendatakit.consts.IntentConsts;
-import org.opendatakit.database.data.ColumnDefinition;
-import org.opendatakit.database.data.ColumnList;
 import org.opendatakit.database.data.OrderedColumns;
 import org.opendatakit.database.service.DbHandle;
 import org.opendatakit.database.service.IDbInterface;
@@ -37,32 +31,73 @@ import org.opendatakit.database.service.UserDbInterface;
 import org.opendatakit.database.service.UserDbInterfaceImpl;
 import org.opendatakit.exception.ServicesAvailabilityException;
 import org.opendatakit.provider.DataTableColumns;
-import org.opendatakit.sensors.DataSeries;
 import org.opendatakit.sensors.DriverType;
 import org.opendatakit.sensors.ODKSensor;
+import org.opendatakit.sensors.SensorsSingleton;
 import org.opendatakit.utilities.LocalizationUtils;
-import org.opendatakit.utilities.ODKJsonNames;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
+ * Moves the readings of the sensors registered with dbTransfer into their
+ * ODK-X tables. ODK-X offers no transactions through UserDbInterface, so
+ * every reading is inserted with its own call; a turn only shares the open
+ * database, the compiled table plan and the schema check between them.
+ *
  * @author wbrunette@gmail.com
  * @author rohitchaudhri@gmail.com
  */
-public class WorkerThread extends Thread {
+public class WorkerThread implements Runnable {
    private static final String TAG = "SensorsWorkerThread";
 
+   // a reading the database keeps refusing is dropped after this many tries
+   private static final int MAX_INSERT_ATTEMPTS = 3;
+   // most readings held for retry per sensor while the database is unavailable
+   private static final int MAX_PENDING_ROWS = 10000;
+
+   // with nothing due, look at every sensor this often anyway
+   private static final long IDLE_SWEEP_MS = 15 * 60 * 1000;
+   // delay before readings the database refused are tried again
+   private static final long RETRY_DELAY_MS = 3000;
+   // longest wait between attempts to reach the database service, which may
+   // not be installed at all
+   private static final long MAX_BIND_BACKOFF_MS = 10 * 60 * 1000;
+   // most readings of one sensor written in a turn, the rest waits for the next turn
+   private static final int MAX_ROWS_PER_TURN = 1000;
+
    private AtomicBoolean isRunning;
+   private Future<?> task;
    private Context serviceContext;
    private ODKSensorManager sensorManager;
    private ServiceConnectionWrapper databaseServiceConnection = null;
    private UserDbInterface databaseService = null;
 
+   // compiled table definitions, by the definition in the driver manifest
+   private final Map<String, TablePlan> tablePlans = new ConcurrentHashMap<String, TablePlan>();
+   // writers for the tables opened so far, by lane
+   private final Map<String, TablePlan.RowWriter> rowWriters = new ConcurrentHashMap<String, TablePlan.RowWriter>();
+
+   // readings not written yet, by sensor id, only touched by the lane of the sensor
+   private final Map<String, List<PendingRow>> pendingRows = new ConcurrentHashMap<String, List<PendingRow>>();
+
+   // lanes with a transfer queued or running, at most one each so rows stay in order
+   private final Set<String> activeLanes = Collections.newSetFromMap(
+       new ConcurrentHashMap<String, Boolean>());
+   // sensors whose lane was busy last cycle, only touched by this thread
+   private final Set<String> deferred = new HashSet<String>();
+
    public WorkerThread(Context context, ODKSensorManager manager) {
-      super("WorkerThread");
       isRunning = new AtomicBoolean(true);
       serviceContext = context;
       sensorManager = manager;
@@ -111,10 +146,15 @@ public class WorkerThread extends Thread {
             Intent bind_intent = new Intent();
             bind_intent.setClassName(IntentConsts.Database.DATABASE_SERVICE_PACKAGE,
                 IntentConsts.Database.DATABASE_SERVICE_CLASS);
-            serviceContext.bindService(bind_intent, databaseServiceConnection,
+            boolean bound = serviceContext.bindService(bind_intent, databaseServiceConnection,
                 Context.BIND_AUTO_CREATE | ((Build.VERSION.SDK_INT >= 14) ?
                     Context.BIND_ADJUST_WITH_ACTIVITY :
                     0));
+            if (!bound) {
+               // e.g. ODK-X Services is not installed, try again later
+               Log.w(TAG, "Unable to bind to Database service");
+               unbindDatabaseBinderWrapper();
+            }
          }
       }
    }
@@ -154,171 +194,363 @@ public class WorkerThread extends Thread {
       bindToService();
    }
 
-   public void stopthread() {
+   /**
+    * Runs the transfer loop on the I/O pool of the acquisition runtime.
+    *
+    * @throws RejectedExecutionException if the pool has no thread left
+    */
+   public synchronized void start() {
+      task = SensorsSingleton.getAcquisitionRuntime().submitIo("db transfer", this);
+   }
+
+   /**
+    * @return true from start until the transfer loop has exited
+    */
+   public synchronized boolean isAlive() {
+      return task != null && !task.isDone();
+   }
+
+   public synchronized void stopthread() {
       isRunning.set(false);
-      this.interrupt();
+      if (task != null) {
+         task.cancel(true);
+      }
    }
 
    @Override public void run() {
       Log.d(TAG, "worker thread started");
 
+      TransferScheduler scheduler = sensorManager.getTransferScheduler();
+      long bindBackoffMs = RETRY_DELAY_MS;
       while (isRunning.get()) {
          bindToService();
 
          while ((isRunning.get()) && (getDatabase() != null)) {
+            bindBackoffMs = RETRY_DELAY_MS;
             try {
-               for (ODKSensor sensor : sensorManager.getSensorsToTransferToDb()) {
-                  moveSensorDataToDB(sensor);
-               }
+               // sleep until a sensor reaches its watermark or deadline
+               Set<String> due = scheduler.awaitDue(pendingRows.isEmpty() && deferred.isEmpty() ?
+                   IDLE_SWEEP_MS :
+                   RETRY_DELAY_MS);
+               transferCycle(scheduler, due);
+            } catch (InterruptedException iex) {
+               Log.w(TAG, "Sensors worker thread interrupted");
+            }
+         }
 
-               Thread.sleep(3000);
+         if (isRunning.get()) {
+            try {
+               // waiting for the database service to connect, longer each
+               // time it doesn't
+               Thread.sleep(bindBackoffMs);
             } catch (InterruptedException iex) {
                Log.w(TAG, "Sensors worker thread interrupted");
             }
+            bindBackoffMs = Math.min(bindBackoffMs * 2, MAX_BIND_BACKOFF_MS);
          }
       }
 
       shutdownServices();
    }
 
-   private void moveSensorDataToDB(ODKSensor aSensor) {
-      if (aSensor != null) {
-         List<Bundle> bundles = aSensor.getSensorData(0);// XXX for now this gets
-         // all data fm sensor
-         if (bundles != null) {
-            Iterator<Bundle> iter = bundles.iterator();
-            while (iter.hasNext()) {
-               Bundle aBundle = iter.next();
-
-               DriverType driver = sensorManager.getSensorDriverType(aSensor.getSensorID());
-               if (driver != null && driver.getTableDefinitionStr() != null) {
-                  parseSensorDataAndInsertIntoTable(aSensor, driver.getTableDefinitionStr(),
-                      aBundle);
-               }
-
+   /**
+    * Hands the sensors due, those with readings pending a retry and those
+    * deferred last cycle to the transfer pool, one lane per app and table.
+    * The sensors of a lane are written in turn by a single task, and a lane
+    * never has two tasks, so the rows of a table stay in order while
+    * different tables are written at the same time.
+    *
+    * @param due the sensors the scheduler found due, empty to sweep all
+    */
+   private void transferCycle(TransferScheduler scheduler, Set<String> due) {
+      Map<String, List<ODKSensor>> sensorsByLane = new HashMap<String, List<ODKSensor>>();
+      for (ODKSensor sensor : sensorManager.getSensorsToTransferToDb()) {
+         String sensorId = sensor.getSensorID();
+         if (!due.isEmpty() && !due.contains(sensorId) && !deferred.contains(sensorId)
+             && !pendingRows.containsKey(sensorId)) {
+            continue;
+         }
+         String laneKey = laneKey(sensor);
+         List<ODKSensor> laneSensors = sensorsByLane.get(laneKey);
+         if (laneSensors == null) {
+            laneSensors = new ArrayList<ODKSensor>();
+            sensorsByLane.put(laneKey, laneSensors);
+         }
+         laneSensors.add(sensor);
+      }
+      deferred.clear();
+
+      for (Map.Entry<String, List<ODKSensor>> entry : sensorsByLane.entrySet()) {
+         String laneKey = entry.getKey();
+         if (!activeLanes.add(laneKey)) {
+            // still writing the last rows of this table
+            for (ODKSensor sensor : entry.getValue()) {
+               deferred.add(sensor.getSensorID());
             }
+            continue;
+         }
+         String appName = entry.getValue().get(0).getAppNameForDatabase();
+         try {
+            SensorsSingleton.getAcquisitionRuntime().submitTransfer("transfer " + laneKey,
+                new TableLane(scheduler, appName, laneKey, entry.getValue()));
+         } catch (RejectedExecutionException e) {
+            // shutting down
+            activeLanes.remove(laneKey);
          }
       }
    }
 
-   private void parseSensorDataAndInsertIntoTable(ODKSensor aSensor, String strTableDef,
-       Bundle dataBundle) {
-
-      ContentValues tablesValues = new ContentValues();
-      DbHandle db = null;
-      try {
-         db = getDatabase().openDatabase(aSensor.getAppNameForDatabase());
-
-         if (strTableDef == null) {
-            throw new IllegalArgumentException("The tableDefinition is null!");
+   /**
+    * @return the app name and table id the data of the sensor is written to,
+    * or a lane of its own if its table is not known
+    */
+   private String laneKey(ODKSensor sensor) {
+      String appName = sensor.getAppNameForDatabase();
+      DriverType driver = sensorManager.getSensorDriverType(sensor.getSensorID());
+      if (driver != null && driver.getTableDefinitionStr() != null) {
+         try {
+            return appName + '/' + planFor(driver.getTableDefinitionStr()).getTableId();
+         } catch (JSONException e) {
+            // reported when the sensor is written
+         } catch (RuntimeException e) {
+            // reported when the sensor is written
          }
+      }
+      return appName + "/#" + sensor.getSensorID();
+   }
 
-         JSONObject theTableDef = (new JSONObject(strTableDef))
-             .getJSONObject(ODKJsonNames.jsonTableStr);
-         String tableId = theTableDef.getString(ODKJsonNames.jsonTableIdStr);
+   private TablePlan planFor(String tableDefinition) throws JSONException {
+      TablePlan plan = tablePlans.get(tableDefinition);
+      if (plan == null) {
+         plan = TablePlan.compile(tableDefinition);
+         tablePlans.put(tableDefinition, plan);
+      }
+      return plan;
+   }
 
-         if (tableId == null) {
-            throw new IllegalArgumentException("The tableDefinition does not specify the tableId!");
-         }
+   /**
+    * Writes the sensors of one lane, opening the database of the app once for
+    * all of them.
+    */
+   private final class TableLane implements Runnable {
+
+      private final TransferScheduler scheduler;
+      private final String appName;
+      private final String laneKey;
+      private final List<ODKSensor> sensors;
+
+      TableLane(TransferScheduler scheduler, String appName, String laneKey,
+          List<ODKSensor> sensors) {
+         this.scheduler = scheduler;
+         this.appName = appName;
+         this.laneKey = laneKey;
+         this.sensors = sensors;
+      }
 
-         OrderedColumns orderedDefs;
-         // if the table does not exist, create it.
-         // NOTE: if the table does exist, we don't verify that the table schema matches.
-         // if we want to do that, always take the not-exists branch...
-         if (!getDatabase().hasTableId(aSensor.getAppNameForDatabase(), db, tableId)) {
-
-            List<Column> columns = new ArrayList<Column>();
-            // Create the columns for the driver table
-            JSONArray colJsonArray = theTableDef.getJSONArray(ODKJsonNames.jsonColumnsStr);
-
-            for (int i = 0; i < colJsonArray.length(); i++) {
-               JSONObject colJson = colJsonArray.getJSONObject(i);
-               String elementKey = colJson.getString(ODKJsonNames.jsonElementKeyStr);
-               String elementName = colJson.getString(ODKJsonNames.jsonElementNameStr);
-               String elementType = colJson.getString(ODKJsonNames.jsonElementTypeStr);
-               String listChildElementKeys = colJson
-                   .getString(ODKJsonNames.jsonListChildElementKeysStr);
-               columns.add(new Column(elementKey, elementName, elementType, listChildElementKeys));
+      @Override public void run() {
+         List<String> unfinished = new ArrayList<String>();
+         try {
+            UserDbInterface database = getDatabase();
+            if (database == null) {
+               return;
             }
 
-            // Create the table for driver
-            ColumnList cols = new ColumnList(columns);
-            orderedDefs = getDatabase()
-                .createOrOpenTableWithColumns(aSensor.getAppNameForDatabase(), db, tableId, cols);
-         } else {
-            orderedDefs = getDatabase()
-                .getUserDefinedColumns(aSensor.getAppNameForDatabase(), db, tableId);
-         }
-
-         // store data values into the user-defined columns of the driver table
-         for (ColumnDefinition col : orderedDefs.getColumnDefinitions()) {
-            if (!col.isUnitOfRetention()) {
-               continue;
+            DbHandle db = null;
+            try {
+               db = database.openDatabase(appName);
+               for (ODKSensor sensor : sensors) {
+                  try {
+                     if (moveSensorDataToDB(database, appName, db, sensor, laneKey)) {
+                        unfinished.add(sensor.getSensorID());
+                     } else if (!pendingRows.containsKey(sensor.getSensorID())) {
+                        // everything taken from the sensor is written, or given up on
+                        sensor.acknowledgeSensorData();
+                     }
+                  } catch (RuntimeException e) {
+                     Log.e(TAG, "Transfer failed for sensor " + sensor.getSensorID(), e);
+                  }
+               }
+            } catch (ServicesAvailabilityException e) {
+               // the rows not written yet stay pending for the next cycle
+               Log.w(TAG, "Database unavailable for " + appName + ", retrying next cycle");
+            } finally {
+               if (db != null) {
+                  try {
+                     database.closeDatabase(appName, db);
+                  } catch (ServicesAvailabilityException e) {
+                     e.printStackTrace();
+                  }
+               }
             }
+         } finally {
+            activeLanes.remove(laneKey);
+            if (!unfinished.isEmpty()) {
+               // take the next turn right away, behind the lanes already queued
+               scheduler.markDue(unfinished);
+            }
+         }
+      }
+   }
 
-            String colName = col.getElementKey();
-            ElementType type = col.getType();
-
-            if (colName.equals(DataSeries.SENSOR_ID)) {
-
-               // special treatment
-               tablesValues.put(colName, aSensor.getSensorID());
-
-            } else if (type.getDataType() == ElementDataType.bool) {
-
-               Boolean boolColData = dataBundle.containsKey(colName) ?
-                   dataBundle.getBoolean(colName) :
-                   null;
-               Integer colData = (boolColData == null) ? null : (boolColData ? 1 : 0);
-               tablesValues.put(colName, colData);
-
-            } else if (type.getDataType() == ElementDataType.integer) {
+   /**
+    * Writes up to MAX_ROWS_PER_TURN readings of a sensor, so a sensor with a
+    * large backlog can't hold its lane and the pool threads to itself.
+    *
+    * @return true if readings are left for another turn
+    */
+   private boolean moveSensorDataToDB(UserDbInterface database, String appName, DbHandle db,
+       ODKSensor aSensor, String tableKey) throws ServicesAvailabilityException {
+      String sensorId = aSensor.getSensorID();
+      List<PendingRow> rows = takePendingRows(sensorId);
+
+      List<Bundle> bundles = aSensor.getSensorData(0);// XXX for now this gets
+      // all data fm sensor
+      if (bundles != null) {
+         for (Bundle aBundle : bundles) {
+            rows.add(new PendingRow(aBundle));
+         }
+      }
+      if (rows.isEmpty()) {
+         return false;
+      }
 
-               Integer colData = dataBundle.containsKey(colName) ?
-                   dataBundle.getInt(colName) :
-                   null;
-               tablesValues.put(colName, colData);
+      DriverType driver = sensorManager.getSensorDriverType(sensorId);
+      if (driver == null || driver.getTableDefinitionStr() == null) {
+         return false;
+      }
 
-            } else if (type.getDataType() == ElementDataType.number) {
+      List<PendingRow> nextTurn = new ArrayList<PendingRow>();
+      if (rows.size() > MAX_ROWS_PER_TURN) {
+         nextTurn.addAll(rows.subList(MAX_ROWS_PER_TURN, rows.size()));
+         rows = new ArrayList<PendingRow>(rows.subList(0, MAX_ROWS_PER_TURN));
+      }
 
-               Double colData = dataBundle.containsKey(colName) ?
-                   dataBundle.getDouble(colName) :
-                   null;
-               tablesValues.put(colName, colData);
+      String tableId;
+      TablePlan.RowWriter writer;
+      try {
+         TablePlan plan = planFor(driver.getTableDefinitionStr());
+         tableId = plan.getTableId();
 
-            } else {
-               // everything else is a string value coming across the wire...
-               String colData = dataBundle.containsKey(colName) ?
-                   dataBundle.getString(colName) :
-                   null;
-               tablesValues.put(colName, colData);
-            }
+         writer = rowWriters.get(tableKey);
+         if (writer == null) {
+            writer = TablePlan.rowWriter(openTable(database, appName, db, plan));
+            rowWriters.put(tableKey, writer);
          }
+      } catch (ServicesAvailabilityException e) {
+         rows.addAll(nextTurn);
+         putPendingRows(sensorId, rows);
+         throw e;
+      } catch (JSONException e) {
+         // the driver's definition won't get better by retrying
+         Log.e(TAG, "Bad table definition for sensor " + sensorId + ", dropping "
+             + (rows.size() + nextTurn.size()) + " readings", e);
+         return false;
+      } catch (RuntimeException e) {
+         Log.e(TAG, "Unable to open table for sensor " + sensorId + ", dropping "
+             + (rows.size() + nextTurn.size()) + " readings", e);
+         return false;
+      }
 
-         if (tablesValues.size() > 0) {
-            Log.i(TAG, "Writing db values for sensor:" + aSensor.getSensorID());
-            String rowId = tablesValues.containsKey(DataTableColumns.ID) ?
-                tablesValues.getAsString(DataTableColumns.ID) :
-                null;
-            if (rowId == null) {
-               rowId = LocalizationUtils.genUUID();
+      Log.i(TAG, "Writing " + rows.size() + " db rows for sensor:" + sensorId);
+      OrderedColumns orderedDefs = writer.getOrderedColumns();
+      List<PendingRow> failed = new ArrayList<PendingRow>();
+      Iterator<PendingRow> iter = rows.iterator();
+      try {
+         while (iter.hasNext()) {
+            PendingRow row = iter.next();
+            ContentValues tablesValues = writer.toContentValues(sensorId, row.data);
+            if (tablesValues.size() == 0) {
+               continue;
+            }
+            if (row.rowId == null) {
+               row.rowId = tablesValues.containsKey(DataTableColumns.ID) ?
+                   tablesValues.getAsString(DataTableColumns.ID) :
+                   null;
+               if (row.rowId == null) {
+                  // fixed on the first attempt so a retry can't insert the reading twice
+                  row.rowId = LocalizationUtils.genUUID();
+               }
             }
-            // don't require current user to have appropriate privileges to insert data
-            getDatabase().privilegedInsertRowWithId(aSensor.getAppNameForDatabase(), db, tableId,
-                orderedDefs, tablesValues, rowId, true);
-         }
-      } catch (ServicesAvailabilityException e) {
-         e.printStackTrace();
-      } catch (Exception e) {
-         e.printStackTrace();
-      } finally {
-         if (db != null) {
             try {
-               getDatabase().closeDatabase(aSensor.getAppNameForDatabase(), db);
+               // one call per reading, see the class comment
+               // don't require current user to have appropriate privileges to insert data
+               database.privilegedInsertRowWithId(appName, db, tableId, orderedDefs, tablesValues,
+                   row.rowId, true);
             } catch (ServicesAvailabilityException e) {
-               e.printStackTrace();
+               failed.add(row);
+               throw e;
+            } catch (Exception e) {
+               // the table may have changed under us, look at it again next time
+               rowWriters.remove(tableKey);
+               row.attempts++;
+               if (row.attempts < MAX_INSERT_ATTEMPTS) {
+                  failed.add(row);
+               } else {
+                  Log.e(TAG, "Dropping reading " + row.rowId + " of sensor " + sensorId
+                      + " after " + row.attempts + " attempts", e);
+               }
             }
          }
+      } finally {
+         // whatever wasn't written goes back, ahead of the next readings
+         while (iter.hasNext()) {
+            failed.add(iter.next());
+         }
+         if (!failed.isEmpty()) {
+            failed.addAll(nextTurn);
+            putPendingRows(sensorId, failed);
+         } else if (!nextTurn.isEmpty()) {
+            // not a failure, so not trimmed to MAX_PENDING_ROWS
+            pendingRows.put(sensorId, nextTurn);
+         }
+      }
+      return !nextTurn.isEmpty();
+   }
+
+   /**
+    * Creates the table of a driver if it does not exist.
+    *
+    * @return the user defined columns of the table
+    */
+   private OrderedColumns openTable(UserDbInterface database, String appName, DbHandle db,
+       TablePlan plan) throws ServicesAvailabilityException {
+
+      // if the table does not exist, create it.
+      // NOTE: if the table does exist, we don't verify that the table schema matches.
+      // if we want to do that, always take the not-exists branch...
+      if (!database.hasTableId(appName, db, plan.getTableId())) {
+         // Create the table for driver
+         return database.createOrOpenTableWithColumns(appName, db, plan.getTableId(),
+             plan.getColumns());
+      }
+      return database.getUserDefinedColumns(appName, db, plan.getTableId());
+   }
+
+   private List<PendingRow> takePendingRows(String sensorId) {
+      List<PendingRow> rows = pendingRows.remove(sensorId);
+      return rows != null ? rows : new ArrayList<PendingRow>();
+   }
+
+   private void putPendingRows(String sensorId, List<PendingRow> rows) {
+      if (rows.size() > MAX_PENDING_ROWS) {
+         Log.e(TAG, "Dropping " + (rows.size() - MAX_PENDING_ROWS)
+             + " oldest readings of sensor " + sensorId);
+         rows = new ArrayList<PendingRow>(rows.subList(rows.size() - MAX_PENDING_ROWS,
+             rows.size()));
+      }
+      pendingRows.put(sensorId, rows);
+   }
+
+   /**
+    * A reading on its way to the database.
+    */
+   private static class PendingRow {
+      final Bundle data;
+      String rowId;
+      int attempts;
+
+      PendingRow(Bundle data) {
+         this.data = data;
       }
    }
 }
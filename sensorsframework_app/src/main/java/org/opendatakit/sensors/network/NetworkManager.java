@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2026 ODK-X contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sensors.network;
+
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import org.opendatakit.sensors.CommunicationChannelType;
+import org.opendatakit.sensors.DriverType;
+import org.opendatakit.sensors.ODKSensor;
+import org.opendatakit.sensors.SensorDataPacket;
+import org.opendatakit.sensors.SensorsSingleton;
+import org.opendatakit.sensors.manager.AbstractChannelManagerBase;
+import org.opendatakit.sensors.manager.DetailedSensorState;
+import org.opendatakit.sensors.manager.DiscoverableDevice;
+import org.opendatakit.sensors.manager.SensorNotFoundException;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Reaches sensors that stream over TCP or UDP, such as Wi-Fi probes. One
+ * NetworkSelector task on the I/O pool multiplexes the sockets of every
+ * sensor, so the number of probes is not limited by threads. Bytes are handed
+ * to the sensor as they arrive (raw framing), the driver does the parsing as
+ * it does for Bluetooth.
+ *
+ * Network sensors can not be discovered, they are registered by address
+ * (tcp://host:port or udp://host:port).
+ */
+public class NetworkManager extends AbstractChannelManagerBase {
+
+	private static final String LOGTAG = NetworkManager.class.getSimpleName();
+
+	/**
+	 * Name of the channel type network drivers declare. The manager is only
+	 * created when the sensors interface library knows this type.
+	 */
+	public static final String CHANNEL_TYPE_NAME = "NETWORK";
+
+	public static final String NETWORK_STATE_CHANGE = "org.opendatakit.sensors.NetworkStateChange";
+
+	// how long shutdown waits for the selector to close the sockets
+	private static final long SHUTDOWN_WAIT_MS = 2000;
+
+	private volatile NetworkSelector selector;
+
+	public NetworkManager(Context context, CommunicationChannelType channelType) {
+		super(context, channelType);
+	}
+
+	@Override
+	public void initializeSensors() {
+		try {
+			selector = new NetworkSelector(selectorListener);
+		} catch (IOException e) {
+			Log.e(LOGTAG, "Unable to open selector, network sensors disabled", e);
+			return;
+		}
+		try {
+			SensorsSingleton.getAcquisitionRuntime().submitIo("network selector", selector);
+		} catch (RejectedExecutionException e) {
+			Log.e(LOGTAG, "No I/O thread left for the selector, network sensors disabled");
+			selector.close();
+			selector = null;
+		}
+	}
+
+	@Override
+	public List<DiscoverableDevice> getDiscoverableSensor() {
+		// probes are added by address, there is nothing to scan for
+		return new ArrayList<DiscoverableDevice>();
+	}
+
+	public void searchForSensors() {
+		// nothing to search, see getDiscoverableSensor
+	}
+
+	public boolean sensorRegister(String id, DriverType sensorType, String appName) {
+		if (id == null || sensorType == null) {
+			Log.d(LOGTAG, "registration FAILED. sensorID or sensorType is null");
+			return false;
+		}
+		if (!NetworkSensorConnection.isNetworkSensorId(id)) {
+			Log.e(LOGTAG, "registration FAILED. " + id + " is not tcp://host:port or udp://host:port");
+			return false;
+		}
+		if (mSensorManager.getSensor(id) != null) {
+			return true;
+		}
+		if (mSensorManager.addSensor(id, sensorType, appName, false)) {
+			Intent i = new Intent();
+			i.setAction(NETWORK_STATE_CHANGE);
+			mContext.sendBroadcast(i);
+			return true;
+		}
+		return false;
+	}
+
+	public void sensorConnect(String id) throws SensorNotFoundException {
+		if (mSensorManager.getSensor(id) == null) {
+			throw new SensorNotFoundException("Sensor not found in sensor manager");
+		}
+		NetworkSelector current = selector;
+		if (current == null) {
+			throw new SensorNotFoundException("Network channel not running");
+		}
+		if (current.get(id) != null) {
+			return;
+		}
+
+		NetworkSensorConnection connection;
+		SelectableChannel channel;
+		try {
+			connection = new NetworkSensorConnection(id);
+			channel = connection.open();
+		} catch (IllegalArgumentException e) {
+			throw new SensorNotFoundException(e.getMessage());
+		} catch (IOException e) {
+			Log.e(LOGTAG, "Unable to open socket to " + id, e);
+			mSensorManager.updateSensorState(id, DetailedSensorState.DISCONNECTED);
+			return;
+		}
+		current.add(connection, channel);
+	}
+
+	public void sensorDisconnect(String id) throws SensorNotFoundException {
+		NetworkSelector current = selector;
+		if (current != null) {
+			current.remove(id);
+		}
+		if (mSensorManager.getSensor(id) != null) {
+			mSensorManager.updateSensorState(id, DetailedSensorState.DISCONNECTED);
+		}
+	}
+
+	public void startSensorDataAcquisition(String id, byte[] command) {
+		ODKSensor sensor = mSensorManager.getSensor(id);
+		if (sensor != null) {
+			sensor.dataBufferReset();
+		}
+		NetworkSelector current = selector;
+		NetworkSensorConnection connection = current != null ? current.get(id) : null;
+		if (connection != null) {
+			connection.setAcquiring(true);
+			if (command != null && command.length > 0) {
+				sensorWrite(id, command);
+			}
+			current.updateInterest(connection);
+		}
+	}
+
+	public void stopSensorDataAcquisition(String id, byte[] command) {
+		NetworkSelector current = selector;
+		NetworkSensorConnection connection = current != null ? current.get(id) : null;
+		if (connection != null) {
+			if (command != null && command.length > 0) {
+				sensorWrite(id, command);
+			}
+			connection.setAcquiring(false);
+			current.updateInterest(connection);
+		}
+	}
+
+	public void sensorWrite(String id, byte[] message) {
+		NetworkSelector current = selector;
+		NetworkSensorConnection connection = current != null ? current.get(id) : null;
+		if (connection != null) {
+			connection.queueWrite(message);
+			current.updateInterest(connection);
+		}
+	}
+
+	public void removeAllSensors() {
+		NetworkSelector current = selector;
+		if (current == null) {
+			return;
+		}
+		for (String id : current.getSensorIds()) {
+			try {
+				sensorDisconnect(id);
+			} catch (SensorNotFoundException e) {
+				// already gone
+			}
+		}
+	}
+
+	public void shutdown() {
+		removeAllSensors();
+		NetworkSelector current = selector;
+		selector = null;
+		if (current == null) {
+			return;
+		}
+		current.shutdown();
+		try {
+			if (!current.awaitTermination(SHUTDOWN_WAIT_MS)) {
+				Log.w(LOGTAG, "Network selector did not stop in time");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private final NetworkSelector.Listener selectorListener = new NetworkSelector.Listener() {
+
+		public void connected(NetworkSensorConnection connection) {
+			Log.d(LOGTAG, "Connected to " + connection.getSensorId());
+			mSensorManager.updateSensorState(connection.getSensorId(), DetailedSensorState.CONNECTED);
+		}
+
+		public void dataReceived(NetworkSensorConnection connection, byte[] data) {
+			mSensorManager.addSensorDataPacket(connection.getSensorId(),
+					new SensorDataPacket(data, System.currentTimeMillis()));
+		}
+
+		public void connectionLost(NetworkSensorConnection connection) {
+			mSensorManager.updateSensorState(connection.getSensorId(),
+					DetailedSensorState.DISCONNECTED);
+		}
+	};
+}
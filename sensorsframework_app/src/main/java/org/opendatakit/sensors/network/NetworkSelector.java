@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2026 ODK-X contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sensors.network;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The selector loop of the NetworkManager and the connections it owns. All
+ * socket I/O runs on the thread executing run; other threads only queue
+ * tasks for it. Once the loop has stopped no task is accepted any more, and
+ * every connection it still held, including the ones whose close was only
+ * queued, is closed before run returns.
+ */
+class NetworkSelector implements Runnable {
+
+	private static final String LOGTAG = NetworkSelector.class.getSimpleName();
+
+	// reads per ready key, so one chatty probe can't starve the rest
+	private static final int MAX_READS_PER_SELECT = 16;
+
+	/**
+	 * Told about connections coming and going and the bytes they read. Called
+	 * on the selector thread.
+	 */
+	interface Listener {
+		void connected(NetworkSensorConnection connection);
+
+		void dataReceived(NetworkSensorConnection connection, byte[] data);
+
+		void connectionLost(NetworkSensorConnection connection);
+	}
+
+	private final Listener listener;
+	private final Selector selector;
+	private final Map<String, NetworkSensorConnection> connections;
+
+	// work for the selector thread, guarded by itself together with stopped
+	private final Queue<Runnable> tasks;
+	private boolean stopped = false;
+
+	private volatile boolean running = true;
+	private final CountDownLatch terminated = new CountDownLatch(1);
+
+	NetworkSelector(Listener listener) throws IOException {
+		this.listener = listener;
+		this.selector = Selector.open();
+		this.connections = new ConcurrentHashMap<String, NetworkSensorConnection>();
+		this.tasks = new ConcurrentLinkedQueue<Runnable>();
+	}
+
+	NetworkSensorConnection get(String sensorId) {
+		return connections.get(sensorId);
+	}
+
+	List<String> getSensorIds() {
+		return new ArrayList<String>(connections.keySet());
+	}
+
+	/**
+	 * Takes over an opened connection and registers its channel.
+	 *
+	 * @return false if the sensor already had a connection or the selector
+	 *         has stopped, the connection is closed then
+	 */
+	boolean add(final NetworkSensorConnection connection, final SelectableChannel channel) {
+		if (connections.putIfAbsent(connection.getSensorId(), connection) != null) {
+			// someone else got there first
+			connection.close();
+			return false;
+		}
+		boolean queued = runOnSelector(new Runnable() {
+			public void run() {
+				int ops = connection.isTcp() ? SelectionKey.OP_CONNECT : 0;
+				try {
+					connection.setKey(channel.register(selector, ops, connection));
+				} catch (IOException e) {
+					Log.e(LOGTAG, "Unable to register " + connection.getSensorId(), e);
+					drop(connection);
+					return;
+				}
+				if (!connection.isTcp()) {
+					connected(connection);
+				}
+			}
+		});
+		if (!queued) {
+			connections.remove(connection.getSensorId(), connection);
+			connection.close();
+		}
+		return queued;
+	}
+
+	/**
+	 * Closes the connection of the sensor, if it has one.
+	 */
+	void remove(String sensorId) {
+		final NetworkSensorConnection connection = connections.remove(sensorId);
+		if (connection == null) {
+			return;
+		}
+		boolean queued = runOnSelector(new Runnable() {
+			public void run() {
+				connection.close();
+			}
+		});
+		if (!queued) {
+			// the selector thread is done with its sockets
+			connection.close();
+		}
+	}
+
+	/**
+	 * Reads while the sensor is acquiring and writes while commands are queued.
+	 * A sensor that isn't acquiring is left unread, so TCP pushes back on it.
+	 */
+	void updateInterest(final NetworkSensorConnection connection) {
+		runOnSelector(new Runnable() {
+			public void run() {
+				SelectionKey key = connection.getKey();
+				if (key == null || !key.isValid()
+						|| (key.interestOps() & SelectionKey.OP_CONNECT) != 0) {
+					// not connected yet, connected() sets the interest
+					return;
+				}
+				int ops = 0;
+				if (connection.isAcquiring()) {
+					ops |= SelectionKey.OP_READ;
+				}
+				if (connection.hasPendingWrites()) {
+					ops |= SelectionKey.OP_WRITE;
+				}
+				key.interestOps(ops);
+			}
+		});
+	}
+
+	/**
+	 * Asks the loop to stop. It closes every connection on its way out.
+	 */
+	void shutdown() {
+		running = false;
+		selector.wakeup();
+	}
+
+	/**
+	 * @return true if the loop has stopped and closed its sockets in time
+	 */
+	boolean awaitTermination(long timeoutMs) throws InterruptedException {
+		return terminated.await(timeoutMs, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Closes everything without running the loop, for a selector that was
+	 * never started.
+	 */
+	void close() {
+		running = false;
+		stop();
+	}
+
+	private boolean runOnSelector(Runnable task) {
+		synchronized (tasks) {
+			if (stopped) {
+				return false;
+			}
+			tasks.add(task);
+		}
+		selector.wakeup();
+		return true;
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				Log.e(LOGTAG, "Selector task failed", e);
+			}
+		}
+	}
+
+	public void run() {
+		try {
+			while (running) {
+				runTasks();
+
+				try {
+					selector.select();
+				} catch (IOException e) {
+					Log.e(LOGTAG, "Selector failed", e);
+					break;
+				}
+
+				Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+				while (selected.hasNext()) {
+					SelectionKey key = selected.next();
+					selected.remove();
+					NetworkSensorConnection connection = (NetworkSensorConnection) key.attachment();
+					try {
+						handleReady(key, connection);
+					} catch (IOException e) {
+						Log.d(LOGTAG, "Lost connection to " + connection.getSensorId() + ": "
+								+ e.getMessage());
+						drop(connection);
+					}
+				}
+			}
+		} finally {
+			stop();
+		}
+	}
+
+	private void stop() {
+		synchronized (tasks) {
+			if (stopped) {
+				return;
+			}
+			stopped = true;
+		}
+		// closes queued before the loop saw the shutdown
+		runTasks();
+		for (NetworkSensorConnection connection : connections.values()) {
+			connection.close();
+		}
+		connections.clear();
+		try {
+			selector.close();
+		} catch (IOException e) {
+			Log.d(LOGTAG, "Unable to close selector");
+		}
+		terminated.countDown();
+	}
+
+	private void connected(NetworkSensorConnection connection) {
+		SelectionKey key = connection.getKey();
+		key.interestOps(0);
+		listener.connected(connection);
+		updateInterest(connection);
+	}
+
+	private void drop(NetworkSensorConnection connection) {
+		connection.close();
+		if (connections.remove(connection.getSensorId(), connection)) {
+			listener.connectionLost(connection);
+		}
+	}
+
+	private void handleReady(SelectionKey key, NetworkSensorConnection connection)
+			throws IOException {
+		if (!key.isValid()) {
+			return;
+		}
+		if (key.isConnectable()) {
+			if (connection.finishConnect()) {
+				connected(connection);
+			}
+			return;
+		}
+		if (key.isReadable()) {
+			for (int i = 0; i < MAX_READS_PER_SELECT; i++) {
+				byte[] data = connection.read();
+				if (data == null) {
+					break;
+				}
+				listener.dataReceived(connection, data);
+			}
+		}
+		if (key.isValid() && key.isWritable()) {
+			if (connection.flushWrites()) {
+				key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+			}
+		}
+	}
+}
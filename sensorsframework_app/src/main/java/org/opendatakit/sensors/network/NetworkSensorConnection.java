@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2026 ODK-X contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sensors.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The socket of one network sensor. Sensor ids are URIs naming the transport
+ * and the address of the probe, tcp://host:port or udp://host:port. The socket
+ * is opened by the caller of sensorConnect, so name lookups don't hold up the
+ * selector; after that all I/O happens on the selector thread of the
+ * NetworkManager and other threads only queue writes.
+ */
+class NetworkSensorConnection {
+
+	static final String TCP_SCHEME = "tcp";
+	static final String UDP_SCHEME = "udp";
+
+	// largest datagram a probe may send, also the TCP read size
+	private static final int READ_BUFFER_SIZE = 65507;
+
+	private final String sensorId;
+	private final boolean tcp;
+	private final InetSocketAddress address;
+
+	// only touched by the selector thread
+	private SelectableChannel channel;
+	private SelectionKey key;
+	private ByteBuffer readBuffer;
+	private ByteBuffer currentWrite;
+
+	private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+	private volatile boolean acquiring = false;
+
+	NetworkSensorConnection(String sensorId) {
+		this.sensorId = sensorId;
+		URI uri = parseSensorId(sensorId);
+		this.tcp = TCP_SCHEME.equals(uri.getScheme());
+		this.address = InetSocketAddress.createUnresolved(uri.getHost(), uri.getPort());
+	}
+
+	/**
+	 * @throws IllegalArgumentException
+	 *             if the id is not a tcp:// or udp:// address with a port
+	 */
+	static URI parseSensorId(String sensorId) {
+		URI uri;
+		try {
+			uri = new URI(sensorId);
+		} catch (URISyntaxException e) {
+			throw new IllegalArgumentException("Not a network sensor id: " + sensorId, e);
+		}
+		if (!(TCP_SCHEME.equals(uri.getScheme()) || UDP_SCHEME.equals(uri.getScheme()))
+				|| uri.getHost() == null || uri.getPort() < 0) {
+			throw new IllegalArgumentException("Not a network sensor id: " + sensorId);
+		}
+		return uri;
+	}
+
+	static boolean isNetworkSensorId(String sensorId) {
+		try {
+			parseSensorId(sensorId);
+			return true;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	String getSensorId() {
+		return sensorId;
+	}
+
+	boolean isAcquiring() {
+		return acquiring;
+	}
+
+	void setAcquiring(boolean acquiring) {
+		this.acquiring = acquiring;
+	}
+
+	/**
+	 * Opens the non-blocking socket. For TCP the connect completes later on
+	 * OP_CONNECT, a UDP socket is ready right away.
+	 *
+	 * @return the channel to register with the selector
+	 */
+	SelectableChannel open() throws IOException {
+		InetSocketAddress resolved = new InetSocketAddress(address.getHostName(),
+				address.getPort());
+		if (resolved.isUnresolved()) {
+			throw new IOException("Unable to resolve " + address.getHostName());
+		}
+		readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+		if (tcp) {
+			SocketChannel socket = SocketChannel.open();
+			socket.configureBlocking(false);
+			socket.socket().setTcpNoDelay(true);
+			socket.connect(resolved);
+			channel = socket;
+		} else {
+			DatagramChannel datagram = DatagramChannel.open();
+			datagram.configureBlocking(false);
+			// only accept datagrams from the probe
+			datagram.connect(resolved);
+			channel = datagram;
+		}
+		return channel;
+	}
+
+	boolean isTcp() {
+		return tcp;
+	}
+
+	void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	SelectionKey getKey() {
+		return key;
+	}
+
+	/**
+	 * @return true once the TCP handshake is done
+	 */
+	boolean finishConnect() throws IOException {
+		return ((SocketChannel) channel).finishConnect();
+	}
+
+	/**
+	 * Reads what the socket has into the pooled direct buffer.
+	 *
+	 * @return the bytes read, null if there were none, or throws once the
+	 *         remote end has closed
+	 */
+	byte[] read() throws IOException {
+		readBuffer.clear();
+		int count;
+		if (tcp) {
+			count = ((SocketChannel) channel).read(readBuffer);
+			if (count < 0) {
+				throw new IOException("Connection closed by " + sensorId);
+			}
+		} else {
+			count = ((DatagramChannel) channel).read(readBuffer);
+		}
+		if (count <= 0) {
+			return null;
+		}
+		readBuffer.flip();
+		byte[] data = new byte[count];
+		readBuffer.get(data);
+		return data;
+	}
+
+	void queueWrite(byte[] message) {
+		byte[] copy = new byte[message.length];
+		System.arraycopy(message, 0, copy, 0, message.length);
+		writeQueue.add(ByteBuffer.wrap(copy));
+	}
+
+	boolean hasPendingWrites() {
+		return currentWrite != null || !writeQueue.isEmpty();
+	}
+
+	/**
+	 * Writes queued commands until the socket would block.
+	 *
+	 * @return true if everything queued has been written
+	 */
+	boolean flushWrites() throws IOException {
+		while (true) {
+			if (currentWrite == null) {
+				currentWrite = writeQueue.poll();
+				if (currentWrite == null) {
+					return true;
+				}
+			}
+			if (tcp) {
+				((SocketChannel) channel).write(currentWrite);
+			} else {
+				((DatagramChannel) channel).write(currentWrite);
+			}
+			if (currentWrite.hasRemaining()) {
+				return false;
+			}
+			currentWrite = null;
+		}
+	}
+
+	void close() {
+		if (key != null) {
+			key.cancel();
+			key = null;
+		}
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// already gone
+			}
+			channel = null;
+		}
+		currentWrite = null;
+		readBuffer = null;
+	}
+}
@@ -107,6 +107,11 @@ public class SensorService extends Service {
 			usbManager.shutdown();
 			usbManager = null;
 		}	
+
+		//shutdown network
+		if(SensorsSingleton.getNetworkManager() != null) {
+			SensorsSingleton.getNetworkManager().shutdown();
+		}
 			
 		// close db
 		if(mDatabaseManager != null) {
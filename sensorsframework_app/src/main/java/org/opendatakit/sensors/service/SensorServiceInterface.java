@@ -24,6 +24,7 @@ import org.opendatakit.sensors.bluetooth.BluetoothManager;
 import org.opendatakit.sensors.manager.ODKSensorManager;
 import org.opendatakit.sensors.manager.SensorNotFoundException;
 import org.opendatakit.sensors.dummy.DummyManager;
+import org.opendatakit.sensors.network.NetworkManager;
 import org.opendatakit.sensors.usb.USBManager;
 
 import java.util.ArrayList;
@@ -52,7 +53,7 @@ public class SensorServiceInterface extends IODKSensorService.Stub {
 
    public void sensorConnect(String id) throws RemoteException {
       Log.d(TAG, "sensorConnect. id: " + id);
-      ODKSensor sensor = mSensorManager.getSensor(id);
+      ODKSensor sensor = mSensorManager.awaitSensor(id);
 
       try {
          if (sensor != null) {
@@ -68,17 +69,19 @@ public class SensorServiceInterface extends IODKSensorService.Stub {
    public List<Bundle> getSensorData(String id, long maxNumReadings) throws RemoteException {
       List<Bundle> dataFmSensor = new ArrayList<Bundle>();
 
-      ODKSensor sensor = mSensorManager.getSensor(id);
+      ODKSensor sensor = mSensorManager.awaitSensor(id);
 
       if (sensor != null) {
-         dataFmSensor = sensor.getSensorData(maxNumReadings);
+         // a time series read comes before the live readings
+         List<Bundle> recorded = mSensorManager.takeTimeSeriesRead(id, maxNumReadings);
+         dataFmSensor = recorded != null ? recorded : sensor.getSensorData(maxNumReadings);
       }
 
       return dataFmSensor;
    }
 
    @Override public void sendDataToSensor(String id, Bundle dataToEncode) throws RemoteException {
-      ODKSensor sensor = mSensorManager.getSensor(id);
+      ODKSensor sensor = mSensorManager.awaitSensor(id);
 
       if (sensor != null) {
          sensor.sendDataToSensor(dataToEncode);
@@ -87,11 +90,10 @@ public class SensorServiceInterface extends IODKSensorService.Stub {
 
    public boolean startSensor(String id, boolean transferToDb, String appNameForDatabase) throws
        RemoteException {
-      ODKSensor sensor = mSensorManager.getSensor(id);
+      ODKSensor sensor = mSensorManager.awaitSensor(id);
 
       if (sensor != null) {
-         sensor.setAppNameForDatabase(appNameForDatabase);
-         sensor.setDbTransfer(transferToDb);
+         mSensorManager.setSensorDatabaseTarget(sensor, appNameForDatabase, transferToDb);
          boolean stat = sensor.startSensor();
          return stat;
       } else {
@@ -100,7 +102,7 @@ public class SensorServiceInterface extends IODKSensorService.Stub {
    }
 
    public boolean stopSensor(String id) throws RemoteException {
-      ODKSensor sensor = mSensorManager.getSensor(id);
+      ODKSensor sensor = mSensorManager.awaitSensor(id);
 
       if (sensor != null) {
          return sensor.stopSensor();
@@ -110,14 +112,23 @@ public class SensorServiceInterface extends IODKSensorService.Stub {
    }
 
    public void configure(String id, String setting, Bundle params) throws RemoteException {
-      ODKSensor sensor = mSensorManager.getSensor(id);
+      ODKSensor sensor = mSensorManager.awaitSensor(id);
 
       try {
-         if (sensor != null) {
+         // the service interface is fixed, so the service's own settings
+         // come through configure too
+         if (sensor != null && !mSensorManager.serviceConfigure(id, setting, params)) {
             sensor.configure(setting, params);
          }
       } catch (ParameterMissingException pmx) {
          throw new RemoteException();
+      } catch (IllegalArgumentException e) {
+         Log.e(TAG, e.getMessage());
+         throw new RemoteException();
+      } catch (IllegalStateException e) {
+         // the sensor did not acknowledge the setting
+         Log.e(TAG, e.getMessage());
+         throw new RemoteException();
       }
    }
 
@@ -126,6 +137,7 @@ public class SensorServiceInterface extends IODKSensorService.Stub {
       if (mSensorManager == null)
          Log.e(TAG, "Sensor manager is null");
 
+      mSensorManager.awaitSensor(id);
       SensorStateMachine state = mSensorManager.getSensorState(id);
       if (state == null) {
          Log.e(TAG, "State is null");
@@ -137,6 +149,7 @@ public class SensorServiceInterface extends IODKSensorService.Stub {
 
    public boolean isBusy(String id) throws RemoteException {
 
+      mSensorManager.awaitSensor(id);
       SensorStateMachine state = mSensorManager.getSensorState(id);
       if (state == null) {
          Log.e(TAG, "State is null");
@@ -148,6 +161,8 @@ public class SensorServiceInterface extends IODKSensorService.Stub {
    public boolean addSensor(String id, String driverType, String commChannel, String appName)
        throws RemoteException {
       Log.d(TAG, "Inside Add sensor");
+      // needs the drivers and the sensors already registered
+      mSensorManager.awaitRegisteredSensors();
 
       try {
          // Add to communication channel manager
@@ -165,6 +180,12 @@ public class SensorServiceInterface extends IODKSensorService.Stub {
                return mDummyManager
                    .sensorRegister(id, mSensorManager.getDriverType(driverType), appName);
             default:
+               NetworkManager networkManager = SensorsSingleton.getNetworkManager();
+               if (networkManager != null
+                   && networkManager.getCommChannelType() == commChannelType) {
+                  return networkManager
+                      .sensorRegister(id, mSensorManager.getDriverType(driverType), appName);
+               }
                break;
             }
          }
@@ -177,39 +198,43 @@ public class SensorServiceInterface extends IODKSensorService.Stub {
    }
 
    public boolean hasSensor(String id) throws RemoteException {
-      return (mSensorManager.getSensor(id) != null);
+      return (mSensorManager.awaitSensor(id) != null);
    }
 
    public void removeAllSensors() throws RemoteException {
+      mSensorManager.awaitRegisteredSensors();
       mSensorManager.removeAllSensors();
       mBtManager.removeAllSensors();
       mUsbManager.removeAllSensors();
       mDummyManager.removeAllSensors();
+      if (SensorsSingleton.getNetworkManager() != null) {
+         SensorsSingleton.getNetworkManager().removeAllSensors();
+      }
    }
 
    @Override public String getSensorReadingUiIntentStr(String id) throws RemoteException {
-      if (mSensorManager.getSensor(id) != null) {
+      if (mSensorManager.awaitSensor(id) != null) {
          return mSensorManager.getSensorReadingUiIntentStr(id);
       }
       return null;
    }
 
    @Override public String getSensorConfigUiIntentStr(String id) throws RemoteException {
-      if (mSensorManager.getSensor(id) != null) {
+      if (mSensorManager.awaitSensor(id) != null) {
          return mSensorManager.getSensorConfigUiIntentStr(id);
       }
       return null;
    }
 
    @Override public boolean hasSensorReadingUi(String id) throws RemoteException {
-      if (mSensorManager.getSensor(id) != null) {
+      if (mSensorManager.awaitSensor(id) != null) {
          return mSensorManager.hasSensorReadingUi(id);
       }
       return false;
    }
 
    @Override public boolean hasSensorConfigUi(String id) throws RemoteException {
-      if (mSensorManager.getSensor(id) != null) {
+      if (mSensorManager.awaitSensor(id) != null) {
          return mSensorManager.hasSensorConfigUi(id);
       }
       return false;
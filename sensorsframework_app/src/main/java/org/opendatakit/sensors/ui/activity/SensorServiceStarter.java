@@ -15,12 +15,8 @@
  */
 package org.opendatakit.sensors.ui.activity;
 
-import java.util.Iterator;
-import java.util.List;
-
 import org.opendatakit.sensors.SensorsSingleton;
-import org.opendatakit.sensors.manager.DiscoverableDevice;
-import org.opendatakit.sensors.usb.USBDiscoverableDevice;
+import org.opendatakit.sensors.usb.USBManager;
 
 import android.app.Activity;
 import android.app.ActivityManager;
@@ -57,27 +53,10 @@ public class SensorServiceStarter extends Activity {
 		
 		if(serviceRunning()) {
 			Log.d(TAG,"SensorService already started, checking for ADK board!");
-			
-			List<DiscoverableDevice> devList = SensorsSingleton.getUSBManager().getDiscoverableSensor();
-			
-			if(devList == null){
-				Log.e(TAG, "No sensor list received!");
-			} else 
-			{
-				
-				String totalList = "";
-				Iterator<DiscoverableDevice> deviceIterator = devList.iterator();
-				while(deviceIterator.hasNext())
-				{
-					USBDiscoverableDevice newDevice = (USBDiscoverableDevice) deviceIterator.next();
-					if (newDevice.connectionLost == false)
-					{
-						totalList += newDevice.getDeviceId() + ";";
-					}
-				}
-				
-				Log.d(TAG, "Got list: " + totalList);
-				
+			// the service's receiver never sees the accessory attach intent
+			USBManager usbManager = SensorsSingleton.getUSBManager();
+			if(usbManager != null) {
+				usbManager.accessoryAttached();
 			}
 			
 		} else {
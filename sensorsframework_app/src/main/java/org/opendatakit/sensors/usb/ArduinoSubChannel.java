@@ -20,17 +20,21 @@ import android.content.Context;
 import android.content.Intent;
 import android.hardware.usb.UsbAccessory;
 import android.hardware.usb.UsbManager;
+import android.os.Bundle;
 import android.os.ParcelFileDescriptor;
 import android.util.Log;
 
 import org.opendatakit.sensors.DriverType;
 import org.opendatakit.sensors.ODKSensor;
 import org.opendatakit.sensors.SensorDataPacket;
+import org.opendatakit.sensors.SensorsSingleton;
 import org.opendatakit.sensors.ServiceConstants;
+import org.opendatakit.sensors.manager.AbstractChannelManagerBase;
 import org.opendatakit.sensors.manager.DetailedSensorState;
 import org.opendatakit.sensors.manager.DiscoverableDevice;
 import org.opendatakit.sensors.manager.ODKSensorManager;
 import org.opendatakit.sensors.manager.SensorNotFoundException;
+import org.opendatakit.sensors.usb.a3pTransport.A3PCommandFuture;
 import org.opendatakit.sensors.usb.a3pTransport.A3PSession;
 
 import java.io.IOException;
@@ -39,6 +43,11 @@ import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 
@@ -62,10 +71,13 @@ public class ArduinoSubChannel implements USBCommSubChannel, Runnable {
 	    private ParcelFileDescriptor myParcelFD;	// The file descriptor to our accessory
 	    private volatile List<String> deviceIDs;	// List of ids of sensors discovered on the ADK device
 		
-		private Thread workerThread;				// The worker to process incoming USBMessages
-		private boolean workerRun;					// Flag to indicate whether to keep running the worker thread
+		private Future<?> workerTask;				// The worker to process incoming USBMessages, on the I/O pool
+		private volatile boolean workerRun;			// Flag to indicate whether to keep running the worker
+		private CountDownLatch workerStopped;		// Counted down when the worker's run() returns
 		
 		private A3PSession a3pSession;				// Reference to the A3PSession managing the current connection
+		private volatile A3PCommandFuture pendingEnumeration;	// The ENUMERATE_SENSORS command waiting for its reply
+		private final Object enumerationLock = new Object();	// Guards pendingEnumeration across sending and the reply
 		private boolean usbInited = false;
 		public String A3P_DEVICE_ID = "0";
 		private ODKSensorManager mSensorManager;
@@ -100,6 +112,11 @@ public class ArduinoSubChannel implements USBCommSubChannel, Runnable {
 		return false;
 	}
 	
+	public static boolean isAuthorized(Context svcContext) {
+		UsbManager usbManager = (UsbManager) svcContext.getSystemService(Context.USB_SERVICE);
+		return adkAccessory != null && usbManager.hasPermission(adkAccessory);
+	}
+	
 	public static void authorize(Context svcContext, PendingIntent usbAuthPendingIntent) {
 		androidUsbManager = ((UsbManager) svcContext.getSystemService(Context.USB_SERVICE));
 		
@@ -126,20 +143,20 @@ public class ArduinoSubChannel implements USBCommSubChannel, Runnable {
     		}
     	}
 
-    	if(workerThread != null){
-    		Log.d(TAG, "Ending worker thread and waiting for it to stop");
-    		// Kill the worker thread and wait for it to stop
+    	if(workerTask != null){
+    		Log.d(TAG, "Ending worker and waiting for it to stop");
+    		// Kill the worker and wait for it to stop
     		workerRun = false;
-    		workerThread.interrupt();
-    		while(workerThread.isAlive()){
+    		workerTask.cancel(true);
+    		boolean stopped = false;
+    		while(!stopped){
     			try{
-    				synchronized(this){
-    					this.wait(100);
-    				}
+    				stopped = workerStopped.await(100, TimeUnit.MILLISECONDS);
 				} catch (InterruptedException e){
 					// Do nothing if interrupted.
 				}
 	    	}
+    		workerTask = null;
     	}
 
 		closeMyAccessory();		
@@ -150,7 +167,10 @@ public class ArduinoSubChannel implements USBCommSubChannel, Runnable {
     // Initialize the USB
     private void initUSB() {
     	if(initA3P()) {
-    		initThread();
+    		if(!initThread()) {
+    			markSensorsDisconnected();
+    			return;
+    		}
     		int retries = 0;
     		while(++retries < MAX_RETRIES_FOR_CONN_READY) {
     			if(a3pSession.isConnected()) {
@@ -201,18 +221,23 @@ public class ArduinoSubChannel implements USBCommSubChannel, Runnable {
 
 			int retries = 0;
 			while (deviceIDs.size() == 0 && (retries < MAX_RETRIES_FOR_DISCOVERY)) {
-				sendDeviceListRequest();
+				A3PCommandFuture enumeration = sendDeviceListRequest();
 				retries++;
+				if(enumeration == null) {
+					break;
+				}
 				if(DEBUG_VERBOSE)
-					Log.d(TAG, "blocking for notify. retry cnt: " + retries);
-				synchronized(deviceIDs) {
-					try {
-						deviceIDs.wait(2000);
-						Log.d(TAG, "woke up with " + deviceIDs.size());
-					}
-					catch(InterruptedException iex) {
-						iex.printStackTrace();
-					}
+					Log.d(TAG, "waiting for sensor list. retry cnt: " + retries);
+				try {
+					enumeration.get();
+					Log.d(TAG, "sensor list received with " + deviceIDs.size());
+				}
+				catch(ExecutionException eex) {
+					Log.d(TAG, "no sensor list: " + eex.getCause());
+				}
+				catch(InterruptedException iex) {
+					iex.printStackTrace();
+					break;
 				}
 			}
 
@@ -316,10 +341,30 @@ public class ArduinoSubChannel implements USBCommSubChannel, Runnable {
 		return false;
 	}
 
-	private void sendDeviceListRequest(){
+	// The board can't be reached, e.g. the I/O pool had no thread for its workers
+	private void markSensorsDisconnected() {
+		List<String> ids;
+		synchronized(deviceIDs) {
+			ids = new ArrayList<String>(deviceIDs);
+		}
+		for(String id : ids) {
+			if(mSensorManager.getSensor(id) != null) {
+				mSensorManager.updateSensorState(id, DetailedSensorState.DISCONNECTED);
+			}
+		}
+	}
+
+	// The board answers with an identification string from sensor 0, which completes the command
+	private A3PCommandFuture sendDeviceListRequest(){
 		byte[] payload = new byte[1];
 		payload[0] = ENUMERATE_SENSORS;
-		sensorWrite("0",payload);
+		// the reply can arrive before sendCommand returns, the input worker
+		// waits on the lock until the future is in place
+		synchronized(enumerationLock) {
+			A3PCommandFuture enumeration = sendCommand(A3P_DEVICE_ID, payload, true);
+			pendingEnumeration = enumeration;
+			return enumeration;
+		}
 	}		
 	
     /*
@@ -429,8 +474,14 @@ public class ArduinoSubChannel implements USBCommSubChannel, Runnable {
     			}
 
     			// Attempt to initiate connection
-    			a3pSession.startConnection();
-    			a3pInited = true;
+    			try {
+    				a3pSession.startConnection();
+    				a3pInited = true;
+    			} catch (RejectedExecutionException e) {
+    				Log.e(TAG, "No I/O threads left for the A3P workers");
+    				closeMyAccessory();
+    				markSensorsDisconnected();
+    			}
     		}
     		else {
     			Log.e(TAG, "Cannot create A3PSession. openMyAccessory failed!");
@@ -461,25 +512,47 @@ public class ArduinoSubChannel implements USBCommSubChannel, Runnable {
 //    }
 
 	// Idempotent
-    private void initThread(){
-    	if(workerThread != null && workerThread.isAlive()){
-    		Log.e(TAG, "Thread already running!");
-    	} else {
-	    	
-			// Setup and start worker thread
-			workerRun = true;
-			workerThread = new Thread(null, this, "USB Manager Worker Thread");
-			workerThread.start();
+    private boolean initThread(){
+    	if(workerTask != null && workerStopped.getCount() > 0){
+    		Log.e(TAG, "Worker already running!");
+    		return true;
     	}
+	    	
+		// Setup and start the worker on the I/O pool
+		workerRun = true;
+		workerStopped = new CountDownLatch(1);
+		try {
+			workerTask = SensorsSingleton.getAcquisitionRuntime().submitIo("ADK worker", this);
+			return true;
+		} catch (RejectedExecutionException e) {
+			Log.e(TAG, "No I/O thread left for the ADK worker");
+			workerTask = null;
+			workerRun = false;
+			return false;
+		}
     }
 
 	public void run() {
+		try {
+			processPayloads();
+		} finally {
+			workerStopped.countDown();
+		}
+	}
+
+	private void processPayloads() {
 		String LOG_TAG = ArduinoSubChannel.TAG + "worker";
 		
 		while(workerRun){
 			
 			if(a3pSession != null){
-				USBPayload nextPayload = a3pSession.getNextPayload();
+				USBPayload nextPayload;
+				try {
+					nextPayload = a3pSession.getNextPayload();
+				} catch (IllegalArgumentException e) {
+					Log.e(LOG_TAG, "Dropping malformed series payload: " + e.getMessage());
+					continue;
+				}
 				
 				if(nextPayload == null){
 					try{
@@ -526,21 +599,40 @@ public class ArduinoSubChannel implements USBCommSubChannel, Runnable {
 							synchronized(deviceIDs) {
 								deviceIDs.clear();
 								deviceIDs.addAll(Arrays.asList(ids));
-								Log.d(LOG_TAG, "notifying with devices " + deviceIDs.size());
-								deviceIDs.notifyAll();								
-							}																					
+							}
+							
+							A3PCommandFuture enumeration;
+							synchronized(enumerationLock) {
+								enumeration = pendingEnumeration;
+								pendingEnumeration = null;
+							}
+							if(enumeration != null) {
+								Log.d(LOG_TAG, "completing sensor list request with devices " + deviceIDs.size());
+								a3pSession.completeCommand(enumeration.getMessageNumber(), nextPayload);
+							}
 						}
 					}
 					else 
 					{
 						
-						SensorDataPacket sdp;
-						if(nextPayload.isReadingSeries()) {
-							sdp = new SensorDataPacket(nextPayload.getRawBytes(), nextPayload.getSeriesTimestamp(), nextPayload.getNumOfReadingsInSeries());
+						String sensorID = String.valueOf(nextPayload.getSensorID());
+						if(nextPayload.hasReadingTimestamps()) {
+							// compact series carry a timestamp per reading, so hand each
+							// reading to the driver as a one-reading series at its own time
+							long[] readingTimestamps = nextPayload.getReadingTimestamps();
+							for(int i = 0; i < readingTimestamps.length; i++) {
+								mSensorManager.addSensorDataPacket(sensorID, new SensorDataPacket(
+										nextPayload.getReadingBytes(i), readingTimestamps[i], 1));
+							}
 						} else {
-							sdp = new SensorDataPacket(nextPayload.getRawBytes(), nextPayload.getAndroidTimeStamp());
+							SensorDataPacket sdp;
+							if(nextPayload.isReadingSeries()) {
+								sdp = new SensorDataPacket(nextPayload.getRawBytes(), nextPayload.getSeriesTimestamp(), nextPayload.getNumOfReadingsInSeries());
+							} else {
+								sdp = new SensorDataPacket(nextPayload.getRawBytes(), nextPayload.getAndroidTimeStamp());
+							}
+							mSensorManager.addSensorDataPacket(sensorID,sdp);
 						}
-						mSensorManager.addSensorDataPacket(String.valueOf(nextPayload.getSensorID()),sdp);
 					}
 				}
 			}
@@ -586,6 +678,22 @@ public class ArduinoSubChannel implements USBCommSubChannel, Runnable {
 	}
 
 	public void sensorWrite(String id, byte[] message) {		
+		sendCommand(id, message, false);
+	}
+
+	/**
+	 * @return completes once the board ACKs the message, fails if the session
+	 *         closes or DEFAULT_COMMAND_TIMEOUT_MS passes first
+	 */
+	public Future<?> sensorWriteAsync(String id, byte[] message) {
+		A3PCommandFuture command = sendCommand(id, message, false);
+		if(command == null) {
+			return AbstractChannelManagerBase.failedWrite("Unable to send to sensor " + id);
+		}
+		return command;
+	}
+	
+	private A3PCommandFuture sendCommand(String id, byte[] message, boolean awaitResponse) {
 		
 		boolean sessionInited = true;
 		
@@ -601,7 +709,8 @@ public class ArduinoSubChannel implements USBCommSubChannel, Runnable {
 				long ts = Calendar.getInstance().getTimeInMillis();
 				USBPayload payload = new USBPayload(message, ts, Long.parseLong(id), false);
 				try {
-					a3pSession.enqueuePayloadToSend(payload);   					
+					return a3pSession.enqueuePayloadToSend(payload, awaitResponse,
+							A3PSession.DEFAULT_COMMAND_TIMEOUT_MS);
 				}
 				catch (IllegalStateException e){
 					Log.e(TAG, "Connection is currently closed!  Packet cannot be enqueued!");
@@ -616,6 +725,12 @@ public class ArduinoSubChannel implements USBCommSubChannel, Runnable {
 		else {
 			Log.d(TAG, "SensorID: " + id + " unknown. Packet cannot be enqueued!");
 		}
+		return null;
+	}
+
+	public boolean sensorConfigure(String id, String setting, Bundle params) {
+		// the ADK link has no settings of its own, everything goes to the board
+		return false;
 	}
 
 	public void searchForSensors() {		
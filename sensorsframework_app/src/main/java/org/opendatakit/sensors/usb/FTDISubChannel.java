@@ -24,24 +24,41 @@ import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
+import android.hardware.usb.UsbRequest;
+import android.os.Build;
+import android.os.Bundle;
 import android.util.Log;
 
 import org.opendatakit.sensors.DriverType;
 import org.opendatakit.sensors.ODKSensor;
 import org.opendatakit.sensors.SensorDataPacket;
+import org.opendatakit.sensors.SensorsSingleton;
 import org.opendatakit.sensors.ServiceConstants;
+import org.opendatakit.sensors.manager.AbstractChannelManagerBase;
 import org.opendatakit.sensors.manager.DetailedSensorState;
 import org.opendatakit.sensors.manager.DiscoverableDevice;
 import org.opendatakit.sensors.manager.ODKSensorManager;
 import org.opendatakit.sensors.manager.SensorNotFoundException;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
+ * Handles every FTDI serial adapter attached to the phone. Each adapter is its
+ * own sensor, identified by the serial number burned into the chip, with its
+ * own connection, line settings and reader thread, so several probes on a hub
+ * stream in parallel.
  * 
  * @author wbrunette@gmail.com
  * @author rohitchaudhri@gmail.com
@@ -51,9 +68,49 @@ public class FTDISubChannel implements USBCommSubChannel {
 	
 	private static final String TAG = "FTDIChannel";
 
-	private static final String FIXED_ID = "FTDI";
+	// prefix of the sensor id of an adapter, followed by its serial number
+	private static final String ID_PREFIX = "FTDI_";
+	private static final String USB_DEVICE_ROOT = "/dev/bus/usb/";
 	
-	private static final int MAX_BUFFER_SIZE = 64;
+	// settings handled by the channel through sensorConfigure
+	public static final String BAUD_RATE_SETTING = "ftdiBaudRate";
+	public static final String LATENCY_TIMER_SETTING = "ftdiLatencyTimer";
+	public static final String FLOW_CONTROL_SETTING = "ftdiFlowControl";
+
+	// values of FLOW_CONTROL_SETTING
+	public static final String FLOW_CONTROL_NONE = "none";
+	public static final String FLOW_CONTROL_RTS_CTS = "rts_cts";
+	public static final String FLOW_CONTROL_DTR_DSR = "dtr_dsr";
+	public static final String FLOW_CONTROL_XON_XOFF = "xon_xoff";
+
+	private static final int DEFAULT_BAUD_RATE = 9600;
+	private static final int DEFAULT_LATENCY_TIMER_MS = 16;
+
+	// number of IN requests kept queued so the endpoint is never left without a buffer
+	private static final int NUM_QUEUED_READS = 4;
+
+	// USB packets per IN request, the chip fills them back to back at high rates
+	private static final int PACKETS_PER_READ = 16;
+
+	// modem status bytes the FTDI chip puts in front of every USB packet
+	private static final int FTDI_STATUS_SIZE = 2;
+
+	// FTDI vendor requests
+	private static final int SIO_RESET = 0x00;
+	private static final int SIO_MODEM_CTRL = 0x01;
+	private static final int SIO_SET_FLOW_CTRL = 0x02;
+	private static final int SIO_SET_BAUD_RATE = 0x03;
+	private static final int SIO_SET_DATA = 0x04;
+	private static final int SIO_SET_LATENCY_TIMER = 0x09;
+
+	private static final int SIO_DISABLE_FLOW_CTRL = 0x0;
+	private static final int SIO_RTS_CTS_HS = 0x1 << 8;
+	private static final int SIO_DTR_DSR_HS = 0x2 << 8;
+	private static final int SIO_XON_XOFF_HS = 0x4 << 8;
+	private static final int XON_CHAR = 0x11;
+	private static final int XOFF_CHAR = 0x13;
+
+	private static final int CONTROL_TIMEOUT_MS = 10000;
 
 	private static final int FTDI_VENDOR = 1027;
 
@@ -67,65 +124,84 @@ public class FTDISubChannel implements USBCommSubChannel {
 
 	private static UsbManager androidUsbManager;
 
-	private UsbDeviceConnection ftdiConnection;
-
-	private static UsbDevice ftdiDevice;
-
-	private UsbInterface ftdiInterface;
-
-	private UsbEndpoint ftdiIn;
-
-	private UsbEndpoint ftdiOut;
-
-	private boolean usbDeviceClaimed;
+	// attached adapters by sensor id
+	private final Map<String, FTDIAdapter> adapters;
 	
-	private DataProcessor processor;
 	private ODKSensorManager mSensorManager;
 	private Context mContext;
 	private List<DiscoverableDevice> mDiscoverableDeviceList;
 
 	public FTDISubChannel(Context context, ODKSensorManager sensorManager) {
-		usbDeviceClaimed = false;
 		mContext = context;
 		mSensorManager = sensorManager;
+		androidUsbManager = (UsbManager) context
+				.getSystemService(Context.USB_SERVICE);
 
+		adapters = new ConcurrentHashMap<String, FTDIAdapter>();
 		mDiscoverableDeviceList = new ArrayList<DiscoverableDevice>();
 	}
 
+	static boolean isFtdiDevice(UsbDevice device) {
+		return device.getVendorId() == FTDI_VENDOR
+				&& device.getProductId() == FTDI_PRODUCT;
+	}
+
 	public static boolean scanForDevice(Context svcContext) {
-		boolean found = false;
 		Map<String, UsbDevice> devices = ((UsbManager) svcContext
 				.getSystemService(Context.USB_SERVICE)).getDeviceList();
 
-		if (!devices.isEmpty()) {
-			Log.e(TAG, "DEVICES Found");
-
-			for (UsbDevice device : devices.values()) {
-
-				if (device.getVendorId() == FTDI_VENDOR
-						&& device.getProductId() == FTDI_PRODUCT) {
-					Log.e(TAG, "FTDI DEVICE Found");
-					found = true;
-					ftdiDevice = device;
-					break;
-				}
+		for (UsbDevice device : devices.values()) {
+			if (isFtdiDevice(device)) {
+				Log.e(TAG, "FTDI DEVICE Found");
+				return true;
 			}
 		}
-		// else {
-		// Log.e(TAG, "DEVICES NOT Found");
-		// }
-		return found;
+		return false;
 	}
 
+	/**
+	 * Asks for permission on every attached FTDI adapter that does not have it
+	 * yet.
+	 */
 	public static void authorize(Context svcContext,
 			PendingIntent usbAuthPendingIntent) {
 		androidUsbManager = ((UsbManager) svcContext
 				.getSystemService(Context.USB_SERVICE));
 
-		if (!androidUsbManager.hasPermission(ftdiDevice)) {
-			androidUsbManager.requestPermission(ftdiDevice,
-					usbAuthPendingIntent);
+		for (UsbDevice device : androidUsbManager.getDeviceList().values()) {
+			if (isFtdiDevice(device) && !androidUsbManager.hasPermission(device)) {
+				androidUsbManager.requestPermission(device,
+						usbAuthPendingIntent);
+			}
+		}
+	}
+
+	/**
+	 * The serial number of the chip stays the same whichever port or hub the
+	 * adapter is plugged into. Without permission the serial is not readable
+	 * on newer Android versions, so the USB device id is used until it is.
+	 * Chips sharing a serial are told apart in getDiscoverableSensor.
+	 */
+	static String sensorIdFor(UsbDevice device) {
+		String serial = null;
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+			try {
+				serial = device.getSerialNumber();
+			} catch (SecurityException e) {
+				Log.d(TAG, "no permission to read serial of " + device.getDeviceName());
+			}
+		}
+		if (serial == null || serial.length() == 0) {
+			serial = String.valueOf(device.getDeviceId());
 		}
+		return ID_PREFIX + serial;
+	}
+
+	/**
+	 * @return true if the sensor id is one this channel hands out
+	 */
+	public static boolean ownsSensorId(String sensorId) {
+		return sensorId != null && sensorId.startsWith(ID_PREFIX);
 	}
 
 	public void initializeSensors() {
@@ -142,6 +218,22 @@ public class FTDISubChannel implements USBCommSubChannel {
 		Map<String, UsbDevice> devices = androidUsbManager.getDeviceList();
 		mDiscoverableDeviceList.clear();
 
+		// adapters that were unplugged, before their ids are handed out again
+		Set<String> attachedNames = new HashSet<String>();
+		for (UsbDevice device : devices.values()) {
+			if (isFtdiDevice(device)) {
+				attachedNames.add(device.getDeviceName());
+			}
+		}
+		Iterator<FTDIAdapter> adapterIterator = adapters.values().iterator();
+		while (adapterIterator.hasNext()) {
+			FTDIAdapter adapter = adapterIterator.next();
+			if (!attachedNames.contains(adapter.device.getDeviceName())) {
+				adapter.shutdown();
+				adapterIterator.remove();
+			}
+		}
+
 		if (devices.isEmpty()) {
 			Log.e(TAG, "NO Devices Found");
 		} else {
@@ -149,13 +241,12 @@ public class FTDISubChannel implements USBCommSubChannel {
 
 			for (UsbDevice device : devices.values()) {
 
-				if (device.getVendorId() == FTDI_VENDOR
-						&& device.getProductId() == FTDI_PRODUCT) {
+				if (isFtdiDevice(device)) {
+					String sensorID = keyAdapter(device).sensorId;
+					Log.e(TAG, "FOUND FTDI Device " + sensorID);
 
-					Log.e(TAG, "FOUND FTDI Device");
-					//String sensorID = String.valueOf(device.getDeviceId());
 					USBDiscoverableDevice newDiscoverableDevice = new USBDiscoverableDevice(
-							FIXED_ID, this.mSensorManager);
+							sensorID, this.mSensorManager);
 					newDiscoverableDevice.connectionLost = false;
 
 					deviceList.add(newDiscoverableDevice);
@@ -171,9 +262,82 @@ public class FTDISubChannel implements USBCommSubChannel {
 				}
 			}
 		}
+
 		return deviceList;
 	}
 
+	/**
+	 * Finds or creates the adapter for an attached device and files it under
+	 * its sensor id. An adapter first seen without permission is moved to its
+	 * serial number id once the serial is readable, unless it is already open.
+	 */
+	private FTDIAdapter keyAdapter(UsbDevice device) {
+		FTDIAdapter adapter = null;
+		for (FTDIAdapter candidate : adapters.values()) {
+			if (candidate.device.getDeviceName().equals(device.getDeviceName())) {
+				adapter = candidate;
+			}
+		}
+
+		String sensorID = sensorIdFor(device);
+		FTDIAdapter holder = adapters.get(sensorID);
+		if (holder != null && holder != adapter) {
+			// a clone chip reporting the same serial number
+			sensorID = withDeviceSuffix(sensorID, device.getDeviceName());
+		}
+
+		if (adapter == null) {
+			adapter = new FTDIAdapter(sensorID, device);
+			adapters.put(sensorID, adapter);
+		} else if (!adapter.sensorId.equals(sensorID) && !adapter.claimed) {
+			Log.d(TAG, "FTDI adapter " + adapter.sensorId + " is now " + sensorID);
+			adapters.remove(adapter.sensorId);
+			adapter.sensorId = sensorID;
+			adapters.put(sensorID, adapter);
+		}
+		return adapter;
+	}
+
+	/**
+	 * Tells apart adapters whose chips share a serial number by the USB
+	 * device path, e.g. /dev/bus/usb/001/004 gives the suffix _001_004.
+	 */
+	static String withDeviceSuffix(String sensorId, String deviceName) {
+		String path = deviceName.startsWith(USB_DEVICE_ROOT)
+				? deviceName.substring(USB_DEVICE_ROOT.length()) : deviceName;
+		while (path.startsWith("/")) {
+			path = path.substring(1);
+		}
+		return sensorId + "_" + path.replace('/', '_');
+	}
+
+	/**
+	 * Closes the adapter that was unplugged, leaving the others streaming.
+	 * 
+	 * @return true if other FTDI adapters are still attached
+	 */
+	public boolean deviceDetached(UsbDevice device) {
+		Iterator<FTDIAdapter> adapterIterator = adapters.values().iterator();
+		while (adapterIterator.hasNext()) {
+			FTDIAdapter adapter = adapterIterator.next();
+			if (adapter.device.getDeviceName().equals(device.getDeviceName())) {
+				Log.d(TAG, "FTDI adapter " + adapter.sensorId + " detached");
+				adapter.shutdown();
+				adapterIterator.remove();
+				if (mSensorManager.getSensor(adapter.sensorId) != null) {
+					mSensorManager.updateSensorState(adapter.sensorId,
+							DetailedSensorState.DISCONNECTED);
+				}
+				for (DiscoverableDevice discoverable : mDiscoverableDeviceList) {
+					if (discoverable.getDeviceId().equals(adapter.sensorId)) {
+						discoverable.connectionLost();
+					}
+				}
+			}
+		}
+		return !adapters.isEmpty();
+	}
+
 	/*
 	 * Sensor connection methods
 	 */
@@ -243,82 +407,31 @@ public class FTDISubChannel implements USBCommSubChannel {
 	}
 
 	public void sensorConnect(String id) throws SensorNotFoundException {
-		if (mDiscoverableDeviceList == null
-				|| mDiscoverableDeviceList.size() == 0) {
+		FTDIAdapter adapter = adapters.get(id);
+		if (adapter == null) {
 			// re init once again
 			getDiscoverableSensor();
+			adapter = adapters.get(id);
 		}
 
-		if (ftdiDevice != null) {
-				// && id.equals(String.valueOf(ftdiDevice.getDeviceId()))) {
-
-			Log.e(TAG, "Number of interfaces:" + ftdiDevice.getInterfaceCount());
-			ftdiInterface = ftdiDevice.getInterface(0);
-			if (ftdiInterface == null) {
-				Log.e(TAG, "NO USB INTERFACE! STOPPING!!!!!!!!!!!!!!!!!!!!");
-				return;
-			}
-
-			if (ftdiInterface.getEndpointCount() == 2) {
-				Log.e(TAG,
-						"Number of endpoints:"
-								+ ftdiInterface.getEndpointCount());
-				UsbEndpoint endpoint0 = ftdiInterface.getEndpoint(0);
-				UsbEndpoint endpoint1 = ftdiInterface.getEndpoint(1);
-				if (endpoint0.getDirection() == UsbConstants.USB_DIR_IN
-						&& endpoint1.getDirection() == UsbConstants.USB_DIR_OUT) {
-					ftdiIn = endpoint0;
-					ftdiOut = endpoint1;
-				} else if (endpoint0.getDirection() == UsbConstants.USB_DIR_OUT
-						&& endpoint1.getDirection() == UsbConstants.USB_DIR_IN) {
-					ftdiIn = endpoint1;
-					ftdiOut = endpoint0;
-				} else {
-					Log.e(TAG,
-							"CAN'T FIGURE OUT DIRECTION of endpoints! STOPPING!!!!!!!!!!!!!!!!!!!!");
-					return;
-				}
-
-			} else {
-				Log.e(TAG,
-						"INCORRECT Number of endpoints! STOPPING!!!!!!!!!!!!!!!!!!!!");
-				return;
-			}
-
-			Log.e(TAG, "Opening Device");
-			ftdiConnection = androidUsbManager.openDevice(ftdiDevice);
-			usbDeviceClaimed = ftdiConnection.claimInterface(ftdiInterface,
-					true);
-
-			if (usbDeviceClaimed) {
-				ftdiConnection.controlTransfer(OUT_REQ_TYPE, 0x00, 0x00, 0,
-						null, 0, 10000);
-				ftdiConnection.controlTransfer(OUT_REQ_TYPE, 0x01, 0x00, 0,
-						null, 0, 10000);
-				ftdiConnection.controlTransfer(OUT_REQ_TYPE, 0x02, 0x00, 0,
-						null, 0, 10000);
-
-				// configure device
-				// set baud rate
-				ftdiConnection.controlTransfer(OUT_REQ_TYPE, 0x03, 312, 4,
-						null, 0, 10000);
-				// set data bits, stop bits, and parity
-				int config = 0x08; // (8, 0, 0)
-				ftdiConnection.controlTransfer(OUT_REQ_TYPE, 0x04, config, 0,
-						null, 0, 10000);
-
-				mSensorManager.updateSensorState(id,
-						DetailedSensorState.CONNECTED);
-			} else {
-				mSensorManager.updateSensorState(id,
-						DetailedSensorState.DISCONNECTED);
-			}
+		if (adapter == null) {
+			throw new SensorNotFoundException("No FTDI adapter attached for sensor " + id);
 		}
 
+		if (adapter.open()) {
+			mSensorManager.updateSensorState(id,
+					DetailedSensorState.CONNECTED);
+		} else {
+			mSensorManager.updateSensorState(id,
+					DetailedSensorState.DISCONNECTED);
+		}
 	}
 
 	public void sensorDisconnect(String id) throws SensorNotFoundException {
-		closeFtdiConnection();
+		FTDIAdapter adapter = adapters.get(id);
+		if (adapter != null) {
+			adapter.shutdown();
+		}
 		
 		ODKSensor sensor = mSensorManager.getSensor(id);
 		if (sensor != null) {
@@ -328,20 +441,101 @@ public class FTDISubChannel implements USBCommSubChannel {
 	}
 
 	public void sensorWrite(String id, byte[] message) {
+		FTDIAdapter adapter = adapters.get(id);
 		ODKSensor sensor = mSensorManager.getSensor(id);
-		if (sensor != null) {
-			// bulk transfer on ftdiout
-			int bytesTransfered = ftdiConnection.bulkTransfer(ftdiOut, message,
-					message.length, 500);
+		if (adapter != null && sensor != null) {
+			adapter.write(message);
+		}
+	}
 
-			if (bytesTransfered < 0) {
-				Log.e(TAG, "error writing data to ftdi connection");
+	public Future<?> sensorWriteAsync(String id, byte[] message) {
+		// a serial line has no acknowledgements, the write is queued
+		if (adapters.get(id) == null || mSensorManager.getSensor(id) == null) {
+			return AbstractChannelManagerBase.failedWrite("No FTDI adapter for sensor " + id);
+		}
+		sensorWrite(id, message);
+		return AbstractChannelManagerBase.completedWrite();
+	}
+
+	/**
+	 * Handles the serial line settings of an adapter. Settings given before
+	 * the sensor connects are applied when it does.
+	 * 
+	 * @return true if the setting is one of the FTDI settings
+	 */
+	public boolean sensorConfigure(String id, String setting, Bundle params) {
+		FTDIAdapter adapter = adapters.get(id);
+		if (adapter == null) {
+			return false;
+		}
+		return adapter.configure(setting, params);
+	}
+
+	private static int flowControlIndex(String mode) {
+		if (FLOW_CONTROL_NONE.equals(mode)) {
+			return SIO_DISABLE_FLOW_CTRL;
+		} else if (FLOW_CONTROL_RTS_CTS.equals(mode)) {
+			return SIO_RTS_CTS_HS;
+		} else if (FLOW_CONTROL_DTR_DSR.equals(mode)) {
+			return SIO_DTR_DSR_HS;
+		} else if (FLOW_CONTROL_XON_XOFF.equals(mode)) {
+			return SIO_XON_XOFF_HS;
+		}
+		throw new IllegalArgumentException("Unknown FTDI flow control: " + mode);
+	}
+
+	/**
+	 * Computes the wValue/wIndex pair of SIO_SET_BAUD_RATE for the 3 MHz base
+	 * clock of the FT232 family. The divisor has a 14 bit integer part and a
+	 * 3 bit fractional part (in eighths) whose encoding is split between the
+	 * top bits of wValue and bit 0 of wIndex.
+	 * 
+	 * @return {wValue, wIndex}
+	 * @throws IllegalArgumentException if the rate cannot be generated within 3%
+	 */
+	static int[] encodeBaudRate(int requested) {
+		if (requested <= 0 || requested > 3500000) {
+			throw new IllegalArgumentException("Unsupported FTDI baud rate: " + requested);
+		}
+
+		int divisor;
+		int subdivisor;
+		int actual;
+		if (requested >= 2500000) {
+			divisor = 0;
+			subdivisor = 0;
+			actual = 3000000;
+		} else if (requested >= 1750000) {
+			divisor = 1;
+			subdivisor = 0;
+			actual = 2000000;
+		} else {
+			// divisor in eighths, rounded
+			int eighths = (((24000000 << 1) / requested) + 1) >> 1;
+			subdivisor = eighths & 0x07;
+			divisor = eighths >> 3;
+			if (divisor > 0x3fff) {
+				throw new IllegalArgumentException("FTDI baud rate too low: " + requested);
 			}
+			actual = ((((24000000 << 1) / ((divisor << 3) + subdivisor))) + 1) >> 1;
+		}
+
+		if (Math.abs(1.0 - (actual / (double) requested)) >= 0.03) {
+			throw new IllegalArgumentException("FTDI baud rate " + requested
+					+ " not reachable, closest is " + actual);
 		}
+
+		// fraction (eighths) -> encoded bits 16,15,14
+		final int[] fractionCode = { 0, 3, 2, 4, 1, 5, 6, 7 };
+		int code = fractionCode[subdivisor];
+		int value = divisor | ((code & 0x3) << 14);
+		int index = code >> 2;
+		return new int[] { value, index };
 	}
 
 	public void startSensorDataAcquisition(String id, byte[] command) {
-		if(!usbDeviceClaimed) {
+		FTDIAdapter adapter = adapters.get(id);
+		if (adapter == null) {
 			return;
 		}
 		
@@ -350,36 +544,19 @@ public class FTDISubChannel implements USBCommSubChannel {
 			sensor.dataBufferReset();
 		}
 		
-		if(processor == null || processor.getState() == Thread.State.TERMINATED) {
-			processor = new DataProcessor(this);
-			processor.start();
-		}
+		adapter.startReading();
 	}
 
 	public void stopSensorDataAcquisition(String id, byte[] command) {
-		if (processor != null) {
-			processor.shutdownThread();
-			processor = null;
+		FTDIAdapter adapter = adapters.get(id);
+		if (adapter != null) {
+			adapter.stopReading(false);
 		}
 	}
 
 	public void shutdown() {
-		if (processor != null) {
-			processor.shutdownThread();
-			processor = null;
-		}
-		
-		closeFtdiConnection();
-	}
-
-	private void closeFtdiConnection() {
-		if (ftdiConnection != null) {
-			if (ftdiInterface != null && usbDeviceClaimed) {
-				ftdiConnection.releaseInterface(ftdiInterface);
-				usbDeviceClaimed = false;
-			}
-			
-			ftdiConnection.close();
+		for (FTDIAdapter adapter : adapters.values()) {
+			adapter.shutdown();
 		}
 	}
 
@@ -393,64 +570,385 @@ public class FTDISubChannel implements USBCommSubChannel {
 		mDiscoverableDeviceList = new ArrayList<DiscoverableDevice>();
 	}
 
-	public void processData() {
-		byte[] inputBuffer = new byte[MAX_BUFFER_SIZE];
+	/**
+	 * Hands the data in a completed IN transfer to the sensor manager.
+	 * 
+	 * @param sensorId
+	 *            the adapter the transfer came from
+	 * @param buffer
+	 *            the pooled buffer of the request, positioned after the last
+	 *            byte received
+	 * @param packetSize
+	 *            max packet size of the IN endpoint
+	 */
+	private void processData(String sensorId, ByteBuffer buffer, int packetSize) {
+		byte[] sensorData = stripStatusBytes(buffer, buffer.position(), packetSize);
+		if (sensorData.length > 0) {
+			SensorDataPacket sdp = new SensorDataPacket(sensorData,
+					System.currentTimeMillis());
+
+			mSensorManager.addSensorDataPacket(sensorId, sdp);
+		}
+	}
+
+	/**
+	 * The chip starts every USB packet of a transfer with two modem status
+	 * bytes, so a transfer of several packets has status bytes interleaved with
+	 * the data every packetSize bytes. Removes all of them.
+	 * 
+	 * @param transfer
+	 *            the received bytes, starting at index 0
+	 * @param length
+	 *            number of bytes received
+	 * @param packetSize
+	 *            max packet size of the IN endpoint
+	 * @return the serial data only
+	 */
+	static byte[] stripStatusBytes(ByteBuffer transfer, int length, int packetSize) {
+		int fullPackets = length / packetSize;
+		int lastPacket = length % packetSize;
+		int dataLength = fullPackets * (packetSize - FTDI_STATUS_SIZE)
+				+ Math.max(lastPacket - FTDI_STATUS_SIZE, 0);
+
+		byte[] data = new byte[dataLength];
+		int dataIndex = 0;
+		for (int packetStart = 0; packetStart < length; packetStart += packetSize) {
+			int chunk = Math.min(packetSize, length - packetStart) - FTDI_STATUS_SIZE;
+			if (chunk > 0) {
+				transfer.position(packetStart + FTDI_STATUS_SIZE);
+				transfer.get(data, dataIndex, chunk);
+				dataIndex += chunk;
+			}
+		}
+		return data;
+	}
 
-		int bytesTransfered = ftdiConnection.bulkTransfer(ftdiIn, inputBuffer,
-				MAX_BUFFER_SIZE, 500);
-		if (bytesTransfered >= 2) {
-			if (bytesTransfered == MAX_BUFFER_SIZE) {
-				Log.e(TAG, "OVERFLOW");
+	/**
+	 * One attached adapter: its connection, line settings and reader.
+	 */
+	private class FTDIAdapter {
+
+		// changes once, when the serial number becomes readable
+		private volatile String sensorId;
+		private final UsbDevice device;
+
+		private UsbDeviceConnection connection;
+		private UsbInterface usbInterface;
+		private UsbEndpoint endpointIn;
+		private UsbEndpoint endpointOut;
+		private volatile boolean claimed;
+
+		private int baudRate = DEFAULT_BAUD_RATE;
+		private int latencyTimerMs = DEFAULT_LATENCY_TIMER_MS;
+		private String flowControl = FLOW_CONTROL_NONE;
+
+		private DataProcessor processor;
+		private Future<?> processorTask;
+
+		FTDIAdapter(String sensorId, UsbDevice device) {
+			this.sensorId = sensorId;
+			this.device = device;
+			this.claimed = false;
+		}
+
+		synchronized boolean open() {
+			if (claimed) {
+				return true;
+			}
+
+			Log.e(TAG, "Number of interfaces:" + device.getInterfaceCount());
+			usbInterface = device.getInterface(0);
+			if (usbInterface == null) {
+				Log.e(TAG, "NO USB INTERFACE! STOPPING!!!!!!!!!!!!!!!!!!!!");
+				return false;
+			}
+
+			if (usbInterface.getEndpointCount() == 2) {
+				Log.e(TAG,
+						"Number of endpoints:"
+								+ usbInterface.getEndpointCount());
+				UsbEndpoint endpoint0 = usbInterface.getEndpoint(0);
+				UsbEndpoint endpoint1 = usbInterface.getEndpoint(1);
+				if (endpoint0.getDirection() == UsbConstants.USB_DIR_IN
+						&& endpoint1.getDirection() == UsbConstants.USB_DIR_OUT) {
+					endpointIn = endpoint0;
+					endpointOut = endpoint1;
+				} else if (endpoint0.getDirection() == UsbConstants.USB_DIR_OUT
+						&& endpoint1.getDirection() == UsbConstants.USB_DIR_IN) {
+					endpointIn = endpoint1;
+					endpointOut = endpoint0;
+				} else {
+					Log.e(TAG,
+							"CAN'T FIGURE OUT DIRECTION of endpoints! STOPPING!!!!!!!!!!!!!!!!!!!!");
+					return false;
+				}
+
+			} else {
+				Log.e(TAG,
+						"INCORRECT Number of endpoints! STOPPING!!!!!!!!!!!!!!!!!!!!");
+				return false;
+			}
+
+			Log.e(TAG, "Opening Device " + sensorId);
+			connection = androidUsbManager.openDevice(device);
+			if (connection == null) {
+				Log.e(TAG, "Unable to open " + sensorId + ", no permission?");
+				return false;
+			}
+			claimed = connection.claimInterface(usbInterface, true);
+
+			if (claimed) {
+				connection.controlTransfer(OUT_REQ_TYPE, SIO_RESET, 0x00, 0,
+						null, 0, CONTROL_TIMEOUT_MS);
+				connection.controlTransfer(OUT_REQ_TYPE, SIO_MODEM_CTRL, 0x00, 0,
+						null, 0, CONTROL_TIMEOUT_MS);
+
+				// configure device
+				// set baud rate, latency timer and flow control
+				applyBaudRate();
+				applyLatencyTimer();
+				applyFlowControl();
+				// set data bits, stop bits, and parity
+				int config = 0x08; // (8, 0, 0)
+				connection.controlTransfer(OUT_REQ_TYPE, SIO_SET_DATA, config, 0,
+						null, 0, CONTROL_TIMEOUT_MS);
+			} else {
+				connection.close();
+				connection = null;
+			}
+			return claimed;
+		}
+
+		void write(byte[] message) {
+			if (!claimed) {
 				return;
 			}
-			// Log.e(TAG, "HEADER: " + inputBuffer[0] + " " + inputBuffer[1]);
-			//Log.v(TAG, "Channel Bytes recv'd:" + (bytesTransfered - 2));
-
-			// StringBuffer str = new StringBuffer();
-			// for(int i = 2; i < bytesTransfered; i++) {
-			// str.append(inputBuffer[i] + " ");
-			// }
-			//
-			// Log.v(TAG, str.toString());
-
-			byte[] sensorData = new byte[bytesTransfered - 2];
-			// for(int tmp = 0; tmp < bytesTransfered - 2; tmp++) {
-			// sensorData[tmp] = (byte)(tmp + 1);
-			// }
-			System.arraycopy(inputBuffer, 2, sensorData, 0, sensorData.length);
-			SensorDataPacket sdp = new SensorDataPacket(sensorData,
-					System.currentTimeMillis());
+			// bulk transfer on ftdiout
+			int bytesTransfered = connection.bulkTransfer(endpointOut, message,
+					message.length, 500);
 
-			mSensorManager.addSensorDataPacket(FIXED_ID, sdp);
+			if (bytesTransfered < 0) {
+				Log.e(TAG, "error writing data to ftdi connection " + sensorId);
+			}
+		}
 
-			// Log.e(TAG, output.toString());
+		synchronized boolean configure(String setting, Bundle params) {
+			if (BAUD_RATE_SETTING.equals(setting)) {
+				int requested = params.getInt(setting, DEFAULT_BAUD_RATE);
+				encodeBaudRate(requested); // validate before keeping it
+				baudRate = requested;
+				if (claimed) {
+					applyBaudRate();
+				}
+				return true;
+			} else if (LATENCY_TIMER_SETTING.equals(setting)) {
+				int requested = params.getInt(setting, DEFAULT_LATENCY_TIMER_MS);
+				if (requested < 1 || requested > 255) {
+					throw new IllegalArgumentException("FTDI latency timer must be 1-255 ms, not "
+							+ requested);
+				}
+				latencyTimerMs = requested;
+				if (claimed) {
+					applyLatencyTimer();
+				}
+				return true;
+			} else if (FLOW_CONTROL_SETTING.equals(setting)) {
+				String requested = params.getString(setting);
+				flowControlIndex(requested); // validate before keeping it
+				flowControl = requested;
+				if (claimed) {
+					applyFlowControl();
+				}
+				return true;
+			}
+			return false;
+		}
+
+		private void applyBaudRate() {
+			int[] valueIndex = encodeBaudRate(baudRate);
+			if (connection.controlTransfer(OUT_REQ_TYPE, SIO_SET_BAUD_RATE,
+					valueIndex[0], valueIndex[1], null, 0, CONTROL_TIMEOUT_MS) < 0) {
+				Log.e(TAG, "error setting baud rate " + baudRate + " on " + sensorId);
+			}
+		}
+
+		private void applyLatencyTimer() {
+			if (connection.controlTransfer(OUT_REQ_TYPE, SIO_SET_LATENCY_TIMER,
+					latencyTimerMs, 0, null, 0, CONTROL_TIMEOUT_MS) < 0) {
+				Log.e(TAG, "error setting latency timer " + latencyTimerMs + " on " + sensorId);
+			}
+		}
+
+		private void applyFlowControl() {
+			int value = FLOW_CONTROL_XON_XOFF.equals(flowControl) ? (XON_CHAR | (XOFF_CHAR << 8)) : 0;
+			if (connection.controlTransfer(OUT_REQ_TYPE, SIO_SET_FLOW_CTRL,
+					value, flowControlIndex(flowControl), null, 0, CONTROL_TIMEOUT_MS) < 0) {
+				Log.e(TAG, "error setting flow control " + flowControl + " on " + sensorId);
+			}
+		}
+
+		synchronized void startReading() {
+			if (!claimed) {
+				return;
+			}
+			if (processorTask == null || processorTask.isDone()) {
+				processor = new DataProcessor(sensorId, connection, endpointIn);
+				try {
+					processorTask = SensorsSingleton.getAcquisitionRuntime().submitIo(
+							"FTDIChannel DataProcessor " + sensorId, processor);
+				} catch (RejectedExecutionException e) {
+					Log.e(TAG, "no I/O thread left to read " + sensorId);
+					processor = null;
+					if (mSensorManager.getSensor(sensorId) != null) {
+						mSensorManager.updateSensorState(sensorId,
+								DetailedSensorState.DISCONNECTED);
+					}
+				}
+			}
+		}
+
+		synchronized void stopReading(boolean waitForExit) {
+			if (processor != null) {
+				processor.shutdownThread();
+				processorTask.cancel(true);
+				if (waitForExit) {
+					// let the reader release its requests before the connection goes away
+					processor.awaitExit(1000);
+				}
+				processor = null;
+				processorTask = null;
+			}
+		}
+
+		synchronized void shutdown() {
+			stopReading(true);
+
+			if (connection != null) {
+				if (usbInterface != null && claimed) {
+					connection.releaseInterface(usbInterface);
+				}
+				claimed = false;
+				connection.close();
+				connection = null;
+			}
 		}
 	}
 
-	private class DataProcessor extends Thread {
+	/**
+	 * Keeps NUM_QUEUED_READS asynchronous requests, each with its own pooled
+	 * buffer, queued on the IN endpoint of one adapter. Each completed request
+	 * is processed and queued again right away, so the chip always has
+	 * somewhere to put data and the reader only wakes when a transfer completes.
+	 * Runs as a task on the I/O pool of the AcquisitionRuntime.
+	 */
+	private class DataProcessor implements Runnable {
 
-		private FTDISubChannel channel;
+		private final String sensorId;
+		private final UsbDeviceConnection connection;
+		private final UsbEndpoint endpoint;
+		private final List<UsbRequest> requests = new ArrayList<UsbRequest>();
 		private final AtomicBoolean killThread = new AtomicBoolean(false);
+		private final CountDownLatch exited = new CountDownLatch(1);
 
-		DataProcessor(FTDISubChannel channel) {
-			super("FTDIChannel DataProcessor");
-			this.channel = channel;
+		DataProcessor(String sensorId, UsbDeviceConnection connection, UsbEndpoint endpoint) {
+			this.sensorId = sensorId;
+			this.connection = connection;
+			this.endpoint = endpoint;
 		}
 
 		public void shutdownThread() {
 			killThread.set(true);
-			interrupt();
+			// requestWait() only returns on a completion, so cancelling the
+			// outstanding requests is what wakes the reader up
+			synchronized (requests) {
+				for (UsbRequest request : requests) {
+					request.cancel();
+				}
+			}
 		}
-		
+
+		void awaitExit(long millis) {
+			try {
+				exited.await(millis, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				Log.d(TAG, "interrupted waiting for reader to stop");
+			}
+		}
+
+		@SuppressWarnings("deprecation")
+		private boolean queue(UsbRequest request) {
+			ByteBuffer buffer = (ByteBuffer) request.getClientData();
+			buffer.clear();
+			if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+				return request.queue(buffer);
+			}
+			return request.queue(buffer, buffer.capacity());
+		}
+
 		@Override
 		public void run() {
+			try {
+				readLoop();
+			} finally {
+				exited.countDown();
+			}
+		}
+
+		private void readLoop() {
+			int packetSize = endpoint.getMaxPacketSize();
+			int bufferSize = packetSize * PACKETS_PER_READ;
+			synchronized (requests) {
+				for (int i = 0; i < NUM_QUEUED_READS; i++) {
+					UsbRequest request = new UsbRequest();
+					if (!request.initialize(connection, endpoint)) {
+						Log.e(TAG, "unable to initialize usb request");
+						request.close();
+						continue;
+					}
+					request.setClientData(ByteBuffer.allocateDirect(bufferSize));
+					if (queue(request)) {
+						requests.add(request);
+					} else {
+						request.close();
+					}
+				}
+			}
+
+			if (requests.isEmpty()) {
+				Log.e(TAG, "no usb requests could be queued, not reading");
+				return;
+			}
+
 			while (!killThread.get()) {
-				channel.processData();
-				try {
-					Thread.sleep(50);
-				} catch (Exception e) {
-					e.printStackTrace();
+				UsbRequest completed = connection.requestWait();
+				if (completed == null) {
+					Log.e(TAG, "error waiting for usb request, stopping reads");
+					break;
+				}
+				if (killThread.get()) {
+					break;
+				}
+
+				processData(sensorId, (ByteBuffer) completed.getClientData(), packetSize);
+
+				if (!queue(completed)) {
+					Log.e(TAG, "error requeueing usb request");
+					synchronized (requests) {
+						requests.remove(completed);
+						completed.close();
+					}
+					if (requests.isEmpty()) {
+						break;
+					}
+				}
+			}
+
+			synchronized (requests) {
+				for (UsbRequest request : requests) {
+					request.cancel();
+					request.close();
 				}
+				requests.clear();
 			}
 		}
 	}
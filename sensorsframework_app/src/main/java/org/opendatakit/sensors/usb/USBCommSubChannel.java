@@ -16,11 +16,14 @@
 package org.opendatakit.sensors.usb;
 
 
+import android.os.Bundle;
+
 import org.opendatakit.sensors.DriverType;
 import org.opendatakit.sensors.manager.DiscoverableDevice;
 import org.opendatakit.sensors.manager.SensorNotFoundException;
 
 import java.util.List;
+import java.util.concurrent.Future;
 
 /**
  * 
@@ -55,6 +58,12 @@ public interface USBCommSubChannel {
 	// Write data to sensor
 	public void sensorWrite(String id, byte[] message);
 	
+	// Write data to sensor, see ChannelManager.sensorWriteAsync
+	public Future<?> sensorWriteAsync(String id, byte[] message);
+	
+	// Apply a setting of the USB link itself, returns false if not handled
+	public boolean sensorConfigure(String id, String setting, Bundle params);
+	
 	public void removeAllSensors();
 	
 	public void shutdown();
@@ -18,6 +18,8 @@ package org.opendatakit.sensors.usb;
 
 import android.os.Bundle;
 
+import java.io.ByteArrayOutputStream;
+
 /**
  * 
  * @author wbrunette@gmail.com
@@ -126,6 +128,50 @@ public class USBCommon {
 		return Integer.toHexString(byteToIntUnsigned(toConvert));
 	}
 	
+	/**
+	 * Reads one unsigned LEB128 varint (7 bits per byte, low group first).
+	 * @param source the encoded bytes
+	 * @param position single element array holding the read offset, advanced past the varint
+	 * @return the decoded value
+	 * @throws IllegalArgumentException if the varint is truncated or longer than 64 bits
+	 */
+	public static long readVarint(byte[] source, int[] position){
+		long result = 0;
+		int shift = 0;
+		while(shift < 64){
+			if(position[0] >= source.length){
+				throw new IllegalArgumentException("Truncated varint at offset " + position[0]);
+			}
+			byte b = source[position[0]++];
+			result |= (long) (b & 0x7F) << shift;
+			if((b & 0x80) == 0){
+				return result;
+			}
+			shift += 7;
+		}
+		throw new IllegalArgumentException("Varint too long at offset " + position[0]);
+	}
+	
+	/**
+	 * Writes one unsigned LEB128 varint, the inverse of readVarint.
+	 */
+	public static void writeVarint(ByteArrayOutputStream out, long value){
+		while((value & ~0x7FL) != 0){
+			out.write((int) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.write((int) value);
+	}
+	
+	// zigzag maps signed values to unsigned so small deltas of either sign stay short
+	public static long encodeZigZag(long value){
+		return (value << 1) ^ (value >> 63);
+	}
+	
+	public static long decodeZigZag(long encoded){
+		return (encoded >>> 1) ^ -(encoded & 1);
+	}
+	
     /*
     public int byteToIntUnsigned(byte toConvert){
     	int toReturn = (int) (toConvert & 0x7F);
@@ -20,37 +20,69 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbManager;
+import android.os.Bundle;
 import android.util.Log;
 import android.widget.Toast;
 
 import org.opendatakit.sensors.CommunicationChannelType;
 import org.opendatakit.sensors.DriverType;
+import org.opendatakit.sensors.SensorsSingleton;
 import org.opendatakit.sensors.manager.AbstractChannelManagerBase;
+import org.opendatakit.sensors.manager.AcquisitionRuntime;
 import org.opendatakit.sensors.manager.DetailedSensorState;
 import org.opendatakit.sensors.manager.DiscoverableDevice;
 import org.opendatakit.sensors.manager.SensorNotFoundException;
 
-import java.util.Collections;
-import java.util.HashSet;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 
 //svn version 1145: switching to the Android 3.1+ (API level 12) way of interacting with the USB subsystem.   
 
+/**
+ * Keeps a sub-channel open for every kind of USB sensor source attached, an
+ * ADK accessory and the FTDI adapters can be used at the same time. Calls for
+ * a sensor are routed to the sub-channel that discovered it; FTDI sensor ids
+ * carry their own prefix, every other id belongs to the ADK board.
+ * 
+ * Sub-channels are opened and closed in response to the attach, detach and
+ * permission broadcasts. The attached devices are scanned once at startup and
+ * after that only when the USB subsystem reports a change. All transitions run
+ * one at a time on a serial executor of the acquisition runtime, so the
+ * broadcast receiver never blocks the main thread on the ADK handshake.
+ */
 public class USBManager extends AbstractChannelManagerBase {
 	
 	private static final String TAG = "USBManager";
 	private boolean DEBUG_VERBOSE = false;
 	private static final String ACTION_USB_PERMISSION = "org.opendatakit.sensors.USB_PERMISSION";
+
+	// keys of the sub-channel registry
+	private static final String ADK_CHANNEL = "ADK";
+	private static final String FTDI_CHANNEL = "FTDI";
 		
 	private PendingIntent usbAuthPendingIntent;
-	private USBCommSubChannel activeCommChannel;
-	private USBScanner deviceScanner;
-	private volatile boolean deviceAttached = false;
-	private volatile Set<String> connectedSensors;
+
+	// open sub-channels by key
+	private final Map<String, USBCommSubChannel> subChannels;
+
+	// sub-channel key of every sensor discovered or connected
+	private final Map<String, String> sensorRoutes;
+
+	// connected sensors and the sub-channel they are connected through
+	private final Map<String, String> connectedSensors;
+
+	// the ADK accessory is attached and permission has been requested
+	private volatile boolean adkAwaitingPermission = false;
+
+	private AcquisitionRuntime.SerialExecutor lifecycleExecutor;
+	private boolean receiversRegistered = false;
 	
 	/*
 	 * Service lifecycle methods
@@ -68,7 +100,9 @@ public class USBManager extends AbstractChannelManagerBase {
         usbAuthPendingIntent = PendingIntent.getBroadcast(mContext,
 				0, new Intent(ACTION_USB_PERMISSION), 0);
         
-        connectedSensors = Collections.synchronizedSet(new HashSet<String>());
+        subChannels = new ConcurrentHashMap<String, USBCommSubChannel>();
+        sensorRoutes = new ConcurrentHashMap<String, String>();
+        connectedSensors = new ConcurrentHashMap<String, String>();
         
 		if(DEBUG_VERBOSE) Log.d(TAG,"constructor exited!");
 	}
@@ -76,17 +110,18 @@ public class USBManager extends AbstractChannelManagerBase {
     public void shutdown(){
     	if(DEBUG_VERBOSE) Log.d(TAG,"shutdown entered!");    	    	
 
-    	if(deviceAttached)
-    		activeCommChannel.shutdown();
-    	
-    	mContext.unregisterReceiver(mUsbReceiver);
+    	if(receiversRegistered) {
+    		mContext.unregisterReceiver(mUsbReceiver);
+    		receiversRegistered = false;
+    	}
     	
-    	if(deviceScanner != null) {
-    		deviceScanner.shutdownThread();
-    		deviceScanner = null;
+    	if(lifecycleExecutor != null) {
+    		lifecycleExecutor.shutdown();
+    		lifecycleExecutor = null;
     	}
     	
-    	disconnectAllSensors();
+    	closeChannel(ADK_CHANNEL);
+    	closeChannel(FTDI_CHANNEL);
 		
 		if(DEBUG_VERBOSE) Log.d(TAG,"shutdown exited!");
     }
@@ -97,27 +132,79 @@ public class USBManager extends AbstractChannelManagerBase {
 	
 	@Override
 	public void initializeSensors() {
-		deviceScanner = new USBScanner();
-        deviceScanner.start();
-        
-        mContext.registerReceiver(mUsbReceiver, new IntentFilter(
-				UsbManager.ACTION_USB_ACCESSORY_ATTACHED));
-		mContext.registerReceiver(mUsbReceiver, new IntentFilter(
-				UsbManager.ACTION_USB_ACCESSORY_DETACHED));
-		mContext.registerReceiver(mUsbReceiver, new IntentFilter(
-				UsbManager.ACTION_USB_DEVICE_ATTACHED));
-		mContext.registerReceiver(mUsbReceiver, new IntentFilter(
-				UsbManager.ACTION_USB_DEVICE_DETACHED));
+		lifecycleExecutor = SensorsSingleton.getAcquisitionRuntime().newSerialExecutor("usb lifecycle");
+
+		// the accessory attach intent only goes to activities, it comes in
+		// through accessoryAttached
+		IntentFilter filter = new IntentFilter();
+		filter.addAction(UsbManager.ACTION_USB_ACCESSORY_DETACHED);
+		filter.addAction(UsbManager.ACTION_USB_DEVICE_ATTACHED);
+		filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
+		filter.addAction(ACTION_USB_PERMISSION);
+		mContext.registerReceiver(mUsbReceiver, filter);
+		receiversRegistered = true;
 
+		// pick up whatever was plugged in before we started listening
+		postLifecycleEvent(new Runnable() {
+			public void run() {
+				openAdkChannel();
+				openFtdiChannel();
+			}
+		});
 	}	
 
+	/**
+	 * Called by SensorServiceStarter, which Android starts for an attached
+	 * accessory, when the service is already running.
+	 */
+	public void accessoryAttached() {
+		postLifecycleEvent(new Runnable() {
+			public void run() {
+				handleUsbEvent(UsbManager.ACTION_USB_ACCESSORY_ATTACHED, null, false);
+			}
+		});
+	}
+
+	/**
+	 * @return the discoverable sensors of every open sub-channel, null if no
+	 *         USB device is attached
+	 */
 	@Override
 	public List<DiscoverableDevice> getDiscoverableSensor() 
 	{
-		if(deviceAttached) {
-			return activeCommChannel.getDiscoverableSensor();
+		if(subChannels.isEmpty()) {
+			return null;
+		}
+		List<DiscoverableDevice> deviceList = new ArrayList<DiscoverableDevice>();
+		for(Map.Entry<String, USBCommSubChannel> entry : subChannels.entrySet()) {
+			List<DiscoverableDevice> channelDevices = entry.getValue().getDiscoverableSensor();
+			if(channelDevices == null) {
+				continue;
+			}
+			for(DiscoverableDevice device : channelDevices) {
+				sensorRoutes.put(device.getDeviceId(), entry.getKey());
+			}
+			deviceList.addAll(channelDevices);
 		}
-		return null;
+		return deviceList;
+	}
+
+	/**
+	 * @return key of the sub-channel the sensor belongs to
+	 */
+	private String routeFor(String id) {
+		String key = sensorRoutes.get(id);
+		if(key == null) {
+			key = FTDISubChannel.ownsSensorId(id) ? FTDI_CHANNEL : ADK_CHANNEL;
+		}
+		return key;
+	}
+
+	/**
+	 * @return the open sub-channel of the sensor, null if it isn't attached
+	 */
+	private USBCommSubChannel channelFor(String id) {
+		return subChannels.get(routeFor(id));
 	}
 	
 	/*
@@ -130,63 +217,153 @@ public class USBManager extends AbstractChannelManagerBase {
 	 * @return True if sensor is successfully registered or has already been registered
 	 */
 	public boolean sensorRegister(String id_to_add, DriverType sensorType, String appName) {
-		if(deviceAttached) {
-			return activeCommChannel.sensorRegister(id_to_add, sensorType, appName);
+		USBCommSubChannel channel = channelFor(id_to_add);
+		if(channel != null) {
+			return channel.sensorRegister(id_to_add, sensorType, appName);
 		}
 		return false;
 	}
 	
 	public void sensorConnect(String id) throws SensorNotFoundException {		
-		if(deviceAttached) {
-			activeCommChannel.sensorConnect(id);
-			connectedSensors.add(id);
+		String key = routeFor(id);
+		USBCommSubChannel channel = subChannels.get(key);
+		if(channel != null) {
+			channel.sensorConnect(id);
+			connectedSensors.put(id, key);
 		}
 	}
 
 	public void sensorDisconnect(String id) throws SensorNotFoundException {
-		if(deviceAttached) {
-			activeCommChannel.sensorDisconnect(id);
+		USBCommSubChannel channel = channelFor(id);
+		if(channel != null) {
+			channel.sensorDisconnect(id);
 			connectedSensors.remove(id);
 		}
 	}
 
 	public void sensorWrite(String id, byte[] message) {		
-		if(deviceAttached)
-			activeCommChannel.sensorWrite(id, message);
+		USBCommSubChannel channel = channelFor(id);
+		if(channel != null)
+			channel.sensorWrite(id, message);
+	}
+
+	@Override
+	public Future<?> sensorWriteAsync(String id, byte[] message) {
+		USBCommSubChannel channel = channelFor(id);
+		if(channel != null)
+			return channel.sensorWriteAsync(id, message);
+		return failedWrite("No USB channel for sensor " + id);
+	}
+
+	@Override
+	public boolean sensorConfigure(String id, String setting, Bundle params) {
+		USBCommSubChannel channel = channelFor(id);
+		if(channel != null)
+			return channel.sensorConfigure(id, setting, params);
+		return false;
 	}
 
 	public void searchForSensors() {	
-		if(deviceAttached)
-			activeCommChannel.searchForSensors();
+		for(USBCommSubChannel channel : subChannels.values())
+			channel.searchForSensors();
 	}
 
 	@Override
 	public void startSensorDataAcquisition(String id, byte[] command) {
-		if(deviceAttached)
-			activeCommChannel.startSensorDataAcquisition(id, command);	
+		USBCommSubChannel channel = channelFor(id);
+		if(channel != null)
+			channel.startSensorDataAcquisition(id, command);	
 	}
 
 	@Override
 	public void stopSensorDataAcquisition(String id, byte[] command) {
-		if(deviceAttached)
-			activeCommChannel.stopSensorDataAcquisition(id, command);
+		USBCommSubChannel channel = channelFor(id);
+		if(channel != null)
+			channel.stopSensorDataAcquisition(id, command);
 	}
 
 	public synchronized void removeAllSensors() {
-		if(deviceAttached)
-			activeCommChannel.removeAllSensors();
+		for(USBCommSubChannel channel : subChannels.values())
+			channel.removeAllSensors();
 	}
 	
-	private void disconnectAllSensors() {
-		synchronized(connectedSensors) {
-			
-			for(String sensorId : connectedSensors) {
-				mSensorManager.updateSensorState(sensorId,DetailedSensorState.DISCONNECTED);
+	/**
+	 * Marks the sensors connected through a sub-channel as disconnected.
+	 */
+	private void disconnectSensorsOf(String key) {
+		for(Map.Entry<String, String> entry : connectedSensors.entrySet()) {
+			if(entry.getValue().equals(key)) {
+				mSensorManager.updateSensorState(entry.getKey(),DetailedSensorState.DISCONNECTED);
+				connectedSensors.remove(entry.getKey());
 			}
-			connectedSensors.clear();
 		}
 	}
 	
+	private void postLifecycleEvent(Runnable event) {
+		AcquisitionRuntime.SerialExecutor executor = lifecycleExecutor;
+		if(executor != null && !executor.isShutdown()) {
+			try {
+				executor.execute(event);
+			} catch (RejectedExecutionException e) {
+				Log.e(TAG, "No I/O thread left for the USB lifecycle, event dropped");
+			}
+		}
+	}
+
+	/**
+	 * Opens the ADK sub-channel if an accessory is attached, asking for
+	 * permission first if needed. Runs on the lifecycle thread.
+	 */
+	private void openAdkChannel() {
+		if(subChannels.containsKey(ADK_CHANNEL) || !ArduinoSubChannel.scanForDevice(mContext)) {
+			return;
+		}
+
+		Log.d(TAG,"Found Arduino ADK device");
+		// only asks the user if we don't have permission yet
+		ArduinoSubChannel.authorize(mContext, usbAuthPendingIntent);
+		if(!ArduinoSubChannel.isAuthorized(mContext)) {
+			adkAwaitingPermission = true;
+			return;
+		}
+		adkAwaitingPermission = false;
+		ArduinoSubChannel arduinoChannel = new ArduinoSubChannel(mContext,mSensorManager);
+		if(arduinoChannel.channelInited()) {
+			subChannels.put(ADK_CHANNEL, arduinoChannel);
+			Log.d(TAG,"ArduinoChannel opened");
+		} else {
+			arduinoChannel.shutdown();
+		}
+	}
+
+	/**
+	 * Opens the FTDI sub-channel if an adapter is attached. Runs on the
+	 * lifecycle thread.
+	 */
+	private void openFtdiChannel() {
+		if(subChannels.containsKey(FTDI_CHANNEL) || !FTDISubChannel.scanForDevice(mContext)) {
+			return;
+		}
+
+		Log.d(TAG,"Found FTDI device");
+		// each adapter is opened when its sensor connects, the permission
+		// only has to be there by then
+		FTDISubChannel.authorize(mContext, usbAuthPendingIntent);
+		subChannels.put(FTDI_CHANNEL, new FTDISubChannel(mContext,mSensorManager));
+		Log.d(TAG,"FTDIChannel opened");
+	}
+
+	/**
+	 * Shuts a sub-channel down and marks its sensors disconnected.
+	 */
+	private void closeChannel(String key) {
+		USBCommSubChannel channel = subChannels.remove(key);
+		if(channel != null) {
+			channel.shutdown();
+		}
+		disconnectSensorsOf(key);
+	}
+
 	public final BroadcastReceiver mUsbReceiver = new BroadcastReceiver() {
 
 		public void onReceive(Context context, Intent intent) {
@@ -194,93 +371,65 @@ public class USBManager extends AbstractChannelManagerBase {
 					Toast.LENGTH_SHORT).show();
 
 			Log.d(TAG, "Received USB event");
-			String action = intent.getAction();
-			if (UsbManager.ACTION_USB_ACCESSORY_DETACHED.equals(action)) {
-				Log.d(TAG, "Received USB Accessory Detached");				
-				deviceAttached = false;												
-			}
-			if (UsbManager.ACTION_USB_ACCESSORY_ATTACHED.equals(action)) {
-				Log.d(TAG, "Received USB Accessory Attached");
-			}
-			if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(action)) {
-				Log.d(TAG, "Received USB Device Attached");
-			}
-			if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)) {
-				Log.d(TAG, "Received USB Device Detached");
-				deviceAttached = false;				
-			}
-			
-			if(deviceScanner != null) {
-				synchronized(deviceScanner) {
-					if(deviceAttached == false) {
-						//usb connection dropped. notify scanner thread to start scanning port for devices to be connected.
-						if(activeCommChannel != null)
-							activeCommChannel.shutdown();
-						
-						disconnectAllSensors();
-						deviceScanner.notifyAll();
-					}
+			final String action = intent.getAction();
+			final UsbDevice device = intent.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+			final boolean granted = intent.getBooleanExtra(UsbManager.EXTRA_PERMISSION_GRANTED, false);
+
+			postLifecycleEvent(new Runnable() {
+				public void run() {
+					handleUsbEvent(action, device, granted);
 				}
-			}
+			});
 		}
 	};
-	
-	private class USBScanner extends Thread {
 
-		private final AtomicBoolean isRunning = new AtomicBoolean(true);
-		
-		public USBScanner() {
-			super("USBScanner");
+	/**
+	 * Applies one USB broadcast to the sub-channels. Runs on the lifecycle
+	 * thread.
+	 */
+	private void handleUsbEvent(String action, UsbDevice device, boolean permissionGranted) {
+		if (UsbManager.ACTION_USB_ACCESSORY_ATTACHED.equals(action)) {
+			Log.d(TAG, "Received USB Accessory Attached");
+			openAdkChannel();
 		}
-		
-		public void shutdownThread() {
-			isRunning.set(false);
-			interrupt();
+		else if (UsbManager.ACTION_USB_ACCESSORY_DETACHED.equals(action)) {
+			Log.d(TAG, "Received USB Accessory Detached");
+			adkAwaitingPermission = false;
+			closeChannel(ADK_CHANNEL);
 		}
-
-		@Override
-		public void run() {
-			while (isRunning.get()) {
-				if(ArduinoSubChannel.scanForDevice(mContext)) {
-
-					Log.d(TAG,"Found Arduino ADK device");				
-					ArduinoSubChannel.authorize(mContext, usbAuthPendingIntent);
-					activeCommChannel = new ArduinoSubChannel(mContext,mSensorManager);
-					if(((ArduinoSubChannel)activeCommChannel).channelInited()) {
-						deviceAttached = true;
-						Log.d(TAG,"ArduinoChannel: deviceAttached set to true");
-
-					}
-				}
-				else if(FTDISubChannel.scanForDevice(mContext)) {
-
-					Log.d(TAG,"Found FTDI device");					
-
-					FTDISubChannel.authorize(mContext, usbAuthPendingIntent);
-					activeCommChannel = new FTDISubChannel(mContext,mSensorManager);
-					deviceAttached = true;
-					Log.d(TAG,"FTDIChannel: deviceAttached set to true");
-				}
-				//else if some other usb channel.
-
-				if(deviceAttached == true) {
-					//established a usb connection. stop scanning.
-					synchronized (this) {
-						try {
-							this.wait();
-						}
-						catch(InterruptedException iex) {
-							iex.printStackTrace();
-						}							
-					}
+		else if (UsbManager.ACTION_USB_DEVICE_ATTACHED.equals(action)) {
+			Log.d(TAG, "Received USB Device Attached");
+			USBCommSubChannel ftdiChannel = subChannels.get(FTDI_CHANNEL);
+			if (ftdiChannel != null && device != null && FTDISubChannel.isFtdiDevice(device)) {
+				// another adapter on the hub, runs next to the ones already open
+				FTDISubChannel.authorize(mContext, usbAuthPendingIntent);
+				ftdiChannel.searchForSensors();
+			} else {
+				openFtdiChannel();
+			}
+		}
+		else if (UsbManager.ACTION_USB_DEVICE_DETACHED.equals(action)) {
+			Log.d(TAG, "Received USB Device Detached");
+			FTDISubChannel ftdiChannel = (FTDISubChannel) subChannels.get(FTDI_CHANNEL);
+			// only give up the channel when the last adapter is gone
+			if (device != null && ftdiChannel != null && !ftdiChannel.deviceDetached(device)) {
+				closeChannel(FTDI_CHANNEL);
+			}
+		}
+		else if (ACTION_USB_PERMISSION.equals(action)) {
+			Log.d(TAG, "Received USB permission result: " + permissionGranted);
+			if (permissionGranted) {
+				if (adkAwaitingPermission) {
+					openAdkChannel();
 				}
-
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e) {
-					Log.d(TAG,"Interrupt in Sensors USB thread");
+				USBCommSubChannel ftdiChannel = subChannels.get(FTDI_CHANNEL);
+				if (ftdiChannel != null) {
+					// serial numbers are readable now
+					ftdiChannel.searchForSensors();
 				}
-			}			
+			} else {
+				adkAwaitingPermission = false;
+			}
 		}
 	}
-}
\ No newline at end of file
+}
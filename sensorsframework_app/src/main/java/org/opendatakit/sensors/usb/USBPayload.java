@@ -20,28 +20,49 @@ package org.opendatakit.sensors.usb;
  * payload was received on the Android side. Also contains the sensor id as the
  * source/recipient of the payload.
  * 
+ * Series payloads arrive in one of two encodings. The raw encoding is a 32-bit
+ * little-endian base timestamp, a one-byte reading count and the readings
+ * themselves. The compact encoding starts with the same base timestamp and
+ * count, followed by one byte for the number of values per reading and one
+ * byte for the width in bytes of each value. Every reading is then a zigzag
+ * varint timestamp delta from the previous reading followed by one zigzag
+ * varint delta per value from the previous reading's value. Compact series are
+ * expanded into the raw reading layout so drivers see the same bytes either
+ * way, and the per-reading timestamps are kept alongside.
+ * 
  * @author wbrunette@gmail.com
  * @author rohitchaudhri@gmail.com
  * 
  */
 public class USBPayload {
+	private static final int SERIES_HEADER_SIZE = 5;
+	private static final int COMPACT_SERIES_HEADER_SIZE = 7;
+	
 	private byte[] payload = new byte[0];
 	private long timeStamp;
 	private long sensorID;
 	private int numOfReadingsInSeries;
 	private long seriesTimestamp;
+	private long[] readingTimestamps;
 
 	private boolean readingSeries;
 	
 	public USBPayload(byte[] payload, long timeStamp, long sensorID,
 			boolean seriesPayload) {
+		this(payload, timeStamp, sensorID, seriesPayload, false);
+	}
+	
+	public USBPayload(byte[] payload, long timeStamp, long sensorID,
+			boolean seriesPayload, boolean compactSeries) {
 		this.timeStamp = timeStamp;
 		this.sensorID = sensorID;
-		this.readingSeries = seriesPayload;
-		if (seriesPayload) {
-			int size = payload.length - 5;
+		this.readingSeries = seriesPayload || compactSeries;
+		if (compactSeries) {
+			decodeCompactSeries(payload);
+		} else if (seriesPayload) {
+			int size = payload.length - SERIES_HEADER_SIZE;
 			this.payload = new byte[size];
-			System.arraycopy(payload, 5, this.payload, 0, size);
+			System.arraycopy(payload, SERIES_HEADER_SIZE, this.payload, 0, size);
 			this.numOfReadingsInSeries = payload[4];
 			this.seriesTimestamp = ((payload[3] & 0xff) << 24)
 			| ((payload[2] & 0xff) << 16) | ((payload[1] & 0xff) << 8)
@@ -53,13 +74,86 @@ public class USBPayload {
 		}
 	}
 
-	
+	/**
+	 * Expands a compact (delta/zigzag varint) series into the raw reading
+	 * layout, reconstructing the timestamp of every reading on the way.
+	 * 
+	 * @throws IllegalArgumentException if the payload is truncated or malformed
+	 */
+	private void decodeCompactSeries(byte[] encoded) {
+		if (encoded.length < COMPACT_SERIES_HEADER_SIZE) {
+			throw new IllegalArgumentException("Compact series payload too short: "
+					+ encoded.length + " bytes");
+		}
+		
+		long baseTimestamp = ((long) (encoded[3] & 0xff) << 24)
+				| ((encoded[2] & 0xff) << 16) | ((encoded[1] & 0xff) << 8)
+				| (encoded[0] & 0xff);
+		int numReadings = encoded[4] & 0xff;
+		int valuesPerReading = encoded[5] & 0xff;
+		int valueWidth = encoded[6] & 0xff;
+		
+		if (valueWidth < 1 || valueWidth > 8) {
+			throw new IllegalArgumentException("Bad compact series value width: " + valueWidth);
+		}
+		
+		byte[] expanded = new byte[numReadings * valuesPerReading * valueWidth];
+		long[] timestamps = new long[numReadings];
+		long[] previousValues = new long[valuesPerReading];
+		long previousTimestamp = baseTimestamp;
+		
+		int[] position = { COMPACT_SERIES_HEADER_SIZE };
+		int outIndex = 0;
+		for (int reading = 0; reading < numReadings; reading++) {
+			previousTimestamp += USBCommon.decodeZigZag(USBCommon.readVarint(encoded, position));
+			timestamps[reading] = previousTimestamp;
+			
+			for (int value = 0; value < valuesPerReading; value++) {
+				previousValues[value] += USBCommon.decodeZigZag(USBCommon.readVarint(encoded, position));
+				// readings are little-endian on the wire, same as the raw series
+				long toWrite = previousValues[value];
+				for (int b = 0; b < valueWidth; b++) {
+					expanded[outIndex++] = (byte) (toWrite >> (8 * b));
+				}
+			}
+		}
+		
+		this.payload = expanded;
+		this.numOfReadingsInSeries = numReadings;
+		this.seriesTimestamp = baseTimestamp;
+		this.readingTimestamps = timestamps;
+	}
 	
 	public boolean isReadingSeries() {
 		return readingSeries;
 	}
 
+	/**
+	 * @return true if the per-reading timestamps of a series are known, i.e.
+	 *         the series arrived in the compact encoding
+	 */
+	public boolean hasReadingTimestamps() {
+		return readingTimestamps != null;
+	}
 
+	/**
+	 * @return the reconstructed timestamp of each reading in the series, or
+	 *         null if only the series timestamp is known
+	 */
+	public long[] getReadingTimestamps() {
+		return (readingTimestamps == null) ? null : readingTimestamps.clone();
+	}
+
+	/**
+	 * @return the raw bytes of one reading of a series, assuming all readings
+	 *         are the same width
+	 */
+	public byte[] getReadingBytes(int readingIndex) {
+		int readingSize = payload.length / numOfReadingsInSeries;
+		byte[] reading = new byte[readingSize];
+		System.arraycopy(payload, readingIndex * readingSize, reading, 0, readingSize);
+		return reading;
+	}
 
 	public long getSeriesTimestamp() {
 		return seriesTimestamp;
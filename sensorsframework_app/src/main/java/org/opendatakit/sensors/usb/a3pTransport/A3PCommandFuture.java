@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2026 ODK-X contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package org.opendatakit.sensors.usb.a3pTransport;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.opendatakit.sensors.usb.USBPayload;
+
+/**
+ * The pending result of a command sent over an A3PSession. Keyed by the
+ * message number of the command, it completes when the board ACKs that message
+ * number or, for commands that expect a reply, when the reply is matched to it.
+ * It fails if the session closes first and times out once its deadline passes
+ * without an answer.
+ */
+public class A3PCommandFuture implements Future<USBPayload> {
+
+	private final int messageNumber;
+	private final long deadline;
+	private final boolean awaitsResponse;
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	private volatile USBPayload response;
+	private volatile Exception failure;
+	private volatile boolean cancelled;
+
+	A3PCommandFuture(int messageNumber, long timeoutMs, boolean awaitsResponse){
+		this.messageNumber = messageNumber;
+		this.deadline = System.currentTimeMillis() + timeoutMs;
+		this.awaitsResponse = awaitsResponse;
+	}
+
+	public int getMessageNumber(){
+		return messageNumber;
+	}
+
+	/**
+	 * @return true if an ACK alone does not complete this command
+	 */
+	public boolean awaitsResponse(){
+		return awaitsResponse;
+	}
+
+	boolean isExpired(long now){
+		return now >= deadline;
+	}
+
+	synchronized boolean complete(USBPayload answer){
+		if(isDone()){
+			return false;
+		}
+		response = answer;
+		done.countDown();
+		return true;
+	}
+
+	synchronized boolean fail(Exception cause){
+		if(isDone()){
+			return false;
+		}
+		failure = cause;
+		done.countDown();
+		return true;
+	}
+
+	@Override
+	public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+		if(isDone()){
+			return false;
+		}
+		cancelled = true;
+		done.countDown();
+		return true;
+	}
+
+	@Override
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	@Override
+	public boolean isDone() {
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * Waits until the command is answered or its own deadline passes.
+	 */
+	@Override
+	public USBPayload get() throws InterruptedException, ExecutionException {
+		long remaining = deadline - System.currentTimeMillis();
+		try {
+			return get(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			throw new ExecutionException(e);
+		}
+	}
+
+	@Override
+	public USBPayload get(long timeout, TimeUnit unit) throws InterruptedException,
+			ExecutionException, TimeoutException {
+		if(!done.await(timeout, unit)){
+			throw new TimeoutException("No answer to A3P message " + messageNumber);
+		}
+		if(cancelled){
+			throw new ExecutionException(new IllegalStateException("A3P message " + messageNumber + " cancelled"));
+		}
+		if(failure != null){
+			throw new ExecutionException(failure);
+		}
+		return response;
+	}
+}
@@ -18,13 +18,16 @@ package org.opendatakit.sensors.usb.a3pTransport;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
+import org.opendatakit.sensors.SensorsSingleton;
 import org.opendatakit.sensors.usb.USBCommon;
 
 import android.util.Log;
 
 /**
- * A thread that reads from stream any A3PMessage received and places it
+ * A worker on the I/O pool that reads from stream any A3PMessage received and places it
  * into the incomingQ.  Implements the state machine for incoming A3P messages, including
  * CRC error checking and (soon) handshaking. (Note: be sure to store connection state in the
  * A3PSession itself for good design).
@@ -33,7 +36,7 @@ import android.util.Log;
  * @author rohitchaudhri@gmail.com
  * 
  */
-public class A3PInputWorker extends Thread {
+public class A3PInputWorker implements Runnable {
 	
 	private static final String LOG_TAG = "A3PInputWorker";
 	private static final boolean DEBUG = false;
@@ -47,7 +50,9 @@ public class A3PInputWorker extends Thread {
 	
 	private ConcurrentLinkedQueue<A3PMessage> incomingQ;
 	private InputStream inputStream;
-	private boolean runWorker;			// Instruct the run() method whether to exit its while loop
+	private volatile boolean runWorker;			// Instruct the run() method whether to exit its while loop
+	private volatile boolean alive;		// Set from start until run() returns
+	private Future<?> task;
 	private int numConsecutiveIOExceptions;
 	private A3PInputState currentState;
 	private long numMessagesReceived;
@@ -62,7 +67,6 @@ public class A3PInputWorker extends Thread {
 	
 	public A3PInputWorker(A3PSession parentSession, ConcurrentLinkedQueue<A3PMessage> incomingQ,
 			InputStream inputStream){
-		super("A3PInputWorker Thread");
 		this.mySession = parentSession;
 		this.incomingQ = incomingQ;
 		this.inputStream = inputStream;
@@ -72,12 +76,37 @@ public class A3PInputWorker extends Thread {
 		currentState = A3PInputState.PRE1;				
 	}
 	
+	/**
+	 * Start the worker on the I/O pool of the acquisition runtime
+	 * @throws RejectedExecutionException if the pool has no thread left
+	 */
+	public synchronized void start(){
+		alive = true;
+		try {
+			task = SensorsSingleton.getAcquisitionRuntime().submitIo("A3PInputWorker", this);
+		} catch (RejectedExecutionException e) {
+			alive = false;
+			throw e;
+		}
+	}
+	
+	/**
+	 * @return true from start until the run loop has exited
+	 */
+	public boolean isAlive(){
+		return alive;
+	}
+	
 	/**
 	 * Indirectly stop the worker thread and close IO stream
 	 */
 	public void stopWorker(){
 		runWorker = false;
-		this.interrupt();		
+		synchronized(this){
+			if(task != null){
+				task.cancel(true);
+			}
+		}		
 	}
 	
 	/**
@@ -98,11 +127,19 @@ public class A3PInputWorker extends Thread {
 	}
 	
 	@Override
+	public void run() {
+		try {
+			runLoop();
+		} finally {
+			alive = false;
+		}
+	}
+	
 	/**
 	 * The main run loop for this thread.  Loops by retrieving the next byte, checking it,
 	 * and updating the state machine.
 	 */
-	public void run() { 
+	private void runLoop() { 
 		if(DEBUG){
 			Log.d(LOG_TAG, "Entered inputWorker run loop");
 		}
@@ -284,6 +321,8 @@ public class A3PInputWorker extends Thread {
 								sendACK = false;
 								keepPacket = false;
 								countPacket = false;
+								// Let whoever sent the acked command know it arrived
+								mySession.commandAcknowledged(toAdd.getMessageNumber());
 								break;
 							case SETUP_HANDSHAKE_SENSE_TYPE :
 								keepPacket = false;
@@ -145,6 +145,8 @@ public class A3PMessage {
 		// TODO: JAYLEN IS THIS RIGHT??
 		if(type.equals(A3PMsgType.LONG_DATALOGPAYLOAD_SENSE_TYPE))
 			return new USBPayload(getPayload(), timeStamp, sensorID, true);
+		else if(type.equals(A3PMsgType.LONG_DATALOGCOMPACT_SENSE_TYPE))
+			return new USBPayload(getPayload(), timeStamp, sensorID, true, true);
 		else
 			return new USBPayload(getPayload(), timeStamp, sensorID, false);
 	}
@@ -53,6 +53,7 @@ public enum A3PMsgType {
 	LONG_INITCODE_COMMAND_TYPE 			(0x44),
 	LONG_DATALOGHEADER_SENSE_TYPE		(0x45),
 	LONG_DATALOGPAYLOAD_SENSE_TYPE		(0x46),
+	LONG_DATALOGCOMPACT_SENSE_TYPE		(0x47),	// delta/zigzag varint series, see USBPayload
 	
 	// Bad message type
 	ERROR_BAD_MESSAGE_TYPE				(0xFF);
@@ -18,30 +18,37 @@ package org.opendatakit.sensors.usb.a3pTransport;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.opendatakit.sensors.SensorsSingleton;
 
 import android.util.Log;
 
 /**
- * A thread that simply writes to stream any A3PMessage placed in the commandQ
+ * A worker that simply writes to stream any A3PMessage placed in the commandQ.
+ * It runs on the I/O pool of the acquisition runtime.
  * 
  * @author wbrunette@gmail.com
  * @author rohitchaudhri@gmail.com
  * 
  */
-public class A3POutputWorker extends Thread {
+public class A3POutputWorker implements Runnable {
 	
 	private static final String LOG_TAG = "A3POutputWorker";
 	private static final int MAX_CONSECUTIVE_IO_EXCEPTIONS = 5;
+	private static final long IDLE_WAIT_MS = 100;
 	
 	private ConcurrentLinkedQueue<A3PMessage> commandQ;
 	private OutputStream outputStream;
-	private boolean runWorker;			// Instruct the run() method to exit its while loop
+	private volatile boolean runWorker;			// Instruct the run() method to exit its while loop
+	private volatile boolean alive;		// Set from start until run() returns
+	private Future<?> task;
 	private int numConsecutiveIOExceptions;
 	private A3PSession mySession;
 	private final boolean DEBUG = false;
 	
 	public A3POutputWorker(A3PSession a3psession, ConcurrentLinkedQueue<A3PMessage> commandQ, OutputStream outputStream){
-		super("A3POutputWorker Thread");
 		this.commandQ = commandQ;
 		this.outputStream = outputStream;
 		this.runWorker = true;
@@ -49,12 +56,44 @@ public class A3POutputWorker extends Thread {
 		numConsecutiveIOExceptions = 0;
 	}
 	
+	/**
+	 * Start the worker on the I/O pool of the acquisition runtime
+	 * @throws RejectedExecutionException if the pool has no thread left
+	 */
+	public synchronized void start(){
+		alive = true;
+		try {
+			task = SensorsSingleton.getAcquisitionRuntime().submitIo("A3POutputWorker", this);
+		} catch (RejectedExecutionException e) {
+			alive = false;
+			throw e;
+		}
+	}
+	
+	/**
+	 * @return true from start until the run loop has exited
+	 */
+	public boolean isAlive(){
+		return alive;
+	}
+	
+	/**
+	 * Wakes the worker after a message was added to the commandQ
+	 */
+	public synchronized void wake(){
+		notifyAll();
+	}
+	
 	/**
 	 * Indirectly stop the worker thread
 	 */
 	public void stopWorker(){
 		runWorker = false;
-		this.interrupt();
+		synchronized(this){
+			if(task != null){
+				task.cancel(true);
+			}
+		}
 	}
 	
 	/**
@@ -71,22 +110,37 @@ public class A3POutputWorker extends Thread {
 	}
 	
 	@Override
+	public void run() {
+		try {
+			runLoop();
+		} finally {
+			alive = false;
+		}
+	}
+	
 	/**
 	 * The main run loop for the thread.  Checks the queue for a message to send,
 	 * converts it to a byte array if a message is found, then sends the message. 
 	 */
-	public void run() {
+	private void runLoop() {
 		Log.d(LOG_TAG, "Entered outputWorker run loop");
 		while(runWorker){
 			
-			// Sleep to yield control out of this loop
-			try {
-				sleep(10);
-			} catch (InterruptedException e1) {
-				// do nothing; it's ok if the sleep is interrupted
+			boolean connected = mySession.isConnected();
+			
+			// Park until a message is queued; while the handshake is pending
+			// look again every IDLE_WAIT_MS
+			synchronized(this){
+				if(runWorker && (!connected || commandQ.isEmpty())){
+					try {
+						wait(IDLE_WAIT_MS);
+					} catch (InterruptedException e1) {
+						// do nothing; stopWorker clears runWorker first
+					}
+				}
 			}
 			
-			if(mySession.isConnected()) {
+			if(connected) {
 				A3PMessage toSend = commandQ.poll();
 				if(toSend != null){
 					try {
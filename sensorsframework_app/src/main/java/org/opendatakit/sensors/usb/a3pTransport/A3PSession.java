@@ -19,8 +19,11 @@ import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.util.Calendar;
+import java.util.Iterator;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
 
 import org.opendatakit.sensors.usb.ArduinoSubChannel;
 import org.opendatakit.sensors.usb.USBPayload;
@@ -57,6 +60,10 @@ public class A3PSession {
 	private static final int TURNOVER_EDGE_PERCENTAGE = 25;
 	private static final long MAX_MESSAGE_NUMBER = 1023;
 	
+	// message numbers go over the wire as two bytes, so that is the key space for pending commands
+	private static final int MESSAGE_NUMBER_MASK = 0xFFFF;
+	public static final long DEFAULT_COMMAND_TIMEOUT_MS = 2000;
+	
 	//command sent to usb bridge when A3P session is being shutdow. 
 	private static final int SHUTDOWN_A3P_CMD = 0x5;
 	
@@ -75,6 +82,7 @@ public class A3PSession {
 	
 	private ConcurrentHashMap<Integer, Integer> receivedMap; // this could be a set now, but a map preserves information for later
 	private ConcurrentHashMap<Integer, Integer> missingMap;		// this could potentially be changed to a set
+	private ConcurrentHashMap<Integer, A3PCommandFuture> pendingCommands;	// commands waiting on an ACK or reply, by message number
 	
 	public A3PSession(ArduinoSubChannel myChannel, ParcelFileDescriptor parcelFileDescriptor){//InputStream inputStream, OutputStream outputStream){
 		
@@ -90,12 +98,14 @@ public class A3PSession {
 		
 		receivedMap = new ConcurrentHashMap<Integer, Integer>();
 		missingMap = new ConcurrentHashMap<Integer, Integer>();
+		pendingCommands = new ConcurrentHashMap<Integer, A3PCommandFuture>();
 	}
 	
 	/**
-	 * Start the read and write threads to initialize the connection.
+	 * Start the read and write workers to initialize the connection.
 	 * Check .isConnected to be sure the connection has started.
 	 * @throws IllegalStateException if the connection has been previously closed
+	 * @throws RejectedExecutionException if the I/O pool has no threads left for the workers
 	 */
 	public void startConnection(){
 		if(isClosed()){ 
@@ -103,9 +113,16 @@ public class A3PSession {
 					"has been closed.  Please create a new A3PSession to reconnect.");
 		}				
 		
-		// Start the worker threads
-		inputWorker.start();
-		outputWorker.start();
+		// Start the workers on the I/O pool
+		try {
+			inputWorker.start();
+			outputWorker.start();
+		} catch (RejectedExecutionException e) {
+			inputWorker.stopWorker();
+			myState = A3PConnectionState.CLOSED;
+			failPendingCommands();
+			throw e;
+		}
 		
 		while(!inputWorker.isAlive() || !outputWorker.isAlive()){
     		try{
@@ -154,6 +171,8 @@ public class A3PSession {
 		
 		myState = A3PConnectionState.CLOSED;
 		
+		failPendingCommands();
+		
 		Log.d(LOG_TAG, "<--- Exited endConnection");
 	}
 	
@@ -345,16 +364,99 @@ public class A3PSession {
 	 *  Enqueue an arbitrary payload to be sent to the ADK device.
 	 *  For now, uses the 'Parameter Setting Command' message type.
 	 * @param toSend - the payload to send to the ADK device
+	 * @return a future that completes when the ADK device ACKs the command
+	 * @throws IllegalStateException if the connection has been previously closed
+	 */
+	public A3PCommandFuture enqueuePayloadToSend(USBPayload toSend){
+		return enqueuePayloadToSend(toSend, false, DEFAULT_COMMAND_TIMEOUT_MS);
+	}
+	
+	/**
+	 *  Enqueue an arbitrary payload to be sent to the ADK device without waiting
+	 *  for earlier commands to be answered, so several commands can be in flight.
+	 * @param toSend - the payload to send to the ADK device
+	 * @param awaitResponse - if true the ACK is not enough, the command completes
+	 *                        when a reply is matched to it with completeCommand
+	 * @param timeoutMs - how long the command may stay unanswered
+	 * @return a future keyed by the message number of the command
 	 * @throws IllegalStateException if the connection has been previously closed
 	 */
-	public void enqueuePayloadToSend(USBPayload toSend){
+	public A3PCommandFuture enqueuePayloadToSend(USBPayload toSend, boolean awaitResponse, long timeoutMs){
 		if(isClosed()){
 			throw new IllegalStateException("Cannot send payloads when connection " +
 					"has been closed. Please create a new A3PSession to reconnect.");
 		}
-		A3PMessage messageToSend = new A3PMessage(A3PMsgType.SETUP_PARAMSET_COMMAND_TYPE, outMsgNum++,(byte) toSend.getSensorID(), 
-				toSend.getRawBytes());
-		sendA3PMessage(messageToSend);
+		expirePendingCommands();
+		
+		A3PCommandFuture pending;
+		// number, register and queue together so message numbers go out in order
+		synchronized(this){
+			int msgNum = outMsgNum++;
+			pending = new A3PCommandFuture(msgNum & MESSAGE_NUMBER_MASK, timeoutMs, awaitResponse);
+			A3PCommandFuture stale = pendingCommands.put(pending.getMessageNumber(), pending);
+			if(stale != null){
+				stale.fail(new IllegalStateException("Message number " + stale.getMessageNumber() + " reused before it was answered"));
+			}
+			A3PMessage messageToSend = new A3PMessage(A3PMsgType.SETUP_PARAMSET_COMMAND_TYPE, msgNum,(byte) toSend.getSensorID(), 
+					toSend.getRawBytes());
+			sendA3PMessage(messageToSend);
+		}
+		
+		if(SKIP_ACKS && !awaitResponse){
+			// The board will never ACK, so consider the command done once it is queued
+			commandAcknowledged(pending.getMessageNumber());
+		}
+		return pending;
+	}
+	
+	/**
+	 * Completes the pending command with this message number on an ACK from the board.
+	 * Commands that wait for a reply stay pending.
+	 * This method is *only* for use by the input worker thread!
+	 */
+	void commandAcknowledged(int msgNum){
+		A3PCommandFuture pending = pendingCommands.get(msgNum & MESSAGE_NUMBER_MASK);
+		if(pending != null && !pending.awaitsResponse()){
+			pendingCommands.remove(pending.getMessageNumber());
+			pending.complete(null);
+		}
+		expirePendingCommands();
+	}
+	
+	/**
+	 * Completes a pending command that waits for a reply.
+	 * @param msgNum - the message number of the command being answered
+	 * @param response - the reply received from the ADK device
+	 * @return true if a pending command was completed
+	 */
+	public boolean completeCommand(int msgNum, USBPayload response){
+		A3PCommandFuture pending = pendingCommands.remove(msgNum & MESSAGE_NUMBER_MASK);
+		return pending != null && pending.complete(response);
+	}
+	
+	public int getNumPendingCommands(){
+		return pendingCommands.size();
+	}
+	
+	// Time out commands whose deadline has passed without an answer
+	private void expirePendingCommands(){
+		long now = System.currentTimeMillis();
+		Iterator<A3PCommandFuture> iter = pendingCommands.values().iterator();
+		while(iter.hasNext()){
+			A3PCommandFuture pending = iter.next();
+			if(pending.isExpired(now) || pending.isDone()){
+				iter.remove();
+				pending.fail(new TimeoutException("No answer to A3P message " + pending.getMessageNumber()));
+			}
+		}
+	}
+	
+	private void failPendingCommands(){
+		Iterator<A3PCommandFuture> iter = pendingCommands.values().iterator();
+		while(iter.hasNext()){
+			iter.next().fail(new IllegalStateException("A3PSession closed before the command was answered"));
+			iter.remove();
+		}
 	}
 	
 	/**
@@ -382,6 +484,7 @@ public class A3PSession {
 		synchronized(this){
 			commandQ.add(toSend);
 		}
+		outputWorker.wake();
 	}
 	
 	/**
@@ -0,0 +1,168 @@
+package org.opendatakit.sensors.manager;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.opendatakit.sensors.SensorDataPacket;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class SensorJournalTest {
+
+   // ten of these fill a 1 MB segment
+   private static final int LARGE_PAYLOAD_BYTES = 100 * 1024;
+
+   @Rule public TemporaryFolder folder = new TemporaryFolder();
+
+   private static SensorDataPacket packet(int value, int size) {
+      byte[] payload = new byte[size];
+      Arrays.fill(payload, (byte) value);
+      return new SensorDataPacket(payload, 1000L + value);
+   }
+
+   private static File[] segmentFiles(File dir) {
+      File[] files = dir.listFiles(new FilenameFilter() {
+         public boolean accept(File dir, String name) {
+            return name.endsWith(".seg");
+         }
+      });
+      Arrays.sort(files);
+      return files;
+   }
+
+   @Test public void append_numbersPacketsAndRecoversThemOnReopen() throws Exception {
+      File dir = folder.newFolder("sensor");
+      SensorJournal journal = new SensorJournal(dir);
+      assertEquals(0, journal.getLastSequence());
+      assertTrue(journal.recover().isEmpty());
+
+      assertEquals(1, journal.append(packet(1, 3)));
+      assertEquals(2, journal.append(packet(2, 0)));
+      assertEquals(3, journal.append(packet(3, 5)));
+
+      List<SensorDataPacket> recovered = new SensorJournal(dir).recover();
+      assertEquals(3, recovered.size());
+      assertArrayEquals(new byte[] { 1, 1, 1 }, recovered.get(0).getPayload());
+      assertEquals(1001L, recovered.get(0).getTime());
+      assertEquals(0, recovered.get(1).getPayload().length);
+      assertArrayEquals(new byte[] { 3, 3, 3, 3, 3 }, recovered.get(2).getPayload());
+      assertEquals(1003L, recovered.get(2).getTime());
+   }
+
+   @Test public void reopen_skipsAcknowledgedPacketsAndContinuesNumbering() throws Exception {
+      File dir = folder.newFolder("sensor");
+      SensorJournal journal = new SensorJournal(dir);
+      for (int i = 1; i <= 4; i++) {
+         journal.append(packet(i, 2));
+      }
+      journal.acknowledge(2);
+
+      SensorJournal reopened = new SensorJournal(dir);
+      List<SensorDataPacket> recovered = reopened.recover();
+      assertEquals(2, recovered.size());
+      assertEquals(1003L, recovered.get(0).getTime());
+      assertEquals(1004L, recovered.get(1).getTime());
+      assertTrue(reopened.recover().isEmpty());
+      assertEquals(5, reopened.append(packet(5, 2)));
+   }
+
+   @Test public void reopen_stopsAtATornRecord() throws Exception {
+      File dir = folder.newFolder("sensor");
+      SensorJournal journal = new SensorJournal(dir);
+      journal.append(packet(1, 4));
+      journal.append(packet(2, 4));
+
+      // the second record lost its length, as if the crash came before the commit
+      int secondRecord = 4 + 8 + 8 + 4;
+      RandomAccessFile file = new RandomAccessFile(segmentFiles(dir)[0], "rw");
+      try {
+         file.seek(secondRecord);
+         file.writeInt(0);
+      } finally {
+         file.close();
+      }
+
+      SensorJournal reopened = new SensorJournal(dir);
+      List<SensorDataPacket> recovered = reopened.recover();
+      assertEquals(1, recovered.size());
+      assertEquals(1001L, recovered.get(0).getTime());
+      assertEquals(2, reopened.append(packet(3, 4)));
+
+      recovered = new SensorJournal(dir).recover();
+      assertEquals(2, recovered.size());
+      assertEquals(1001L, recovered.get(0).getTime());
+      assertEquals(1003L, recovered.get(1).getTime());
+   }
+
+   @Test public void reopen_stopsAtARecordRunningPastTheFile() throws Exception {
+      File dir = folder.newFolder("sensor");
+      SensorJournal journal = new SensorJournal(dir);
+      journal.append(packet(1, 4));
+
+      RandomAccessFile file = new RandomAccessFile(segmentFiles(dir)[0], "rw");
+      try {
+         file.seek(0);
+         file.writeInt(Integer.MAX_VALUE);
+      } finally {
+         file.close();
+      }
+
+      assertTrue(new SensorJournal(dir).recover().isEmpty());
+   }
+
+   @Test public void acknowledge_deletesSegmentsHoldingOnlyAcknowledgedPackets() throws Exception {
+      File dir = folder.newFolder("sensor");
+      SensorJournal journal = new SensorJournal(dir);
+      for (int i = 1; i <= 25; i++) {
+         journal.append(packet(i, LARGE_PAYLOAD_BYTES));
+      }
+      File[] segments = segmentFiles(dir);
+      assertEquals(3, segments.length);
+
+      // the first segment still holds packet 10
+      journal.acknowledge(9);
+      assertEquals(3, segmentFiles(dir).length);
+
+      journal.acknowledge(10);
+      assertFalse(segments[0].exists());
+      assertEquals(2, segmentFiles(dir).length);
+
+      // the active segment is kept while it holds packets not acknowledged
+      journal.acknowledge(24);
+      assertEquals(1, segmentFiles(dir).length);
+
+      journal.acknowledge(25);
+      assertEquals(0, segmentFiles(dir).length);
+      assertEquals(26, journal.append(packet(26, 1)));
+      assertEquals(1, new SensorJournal(dir).recover().size());
+   }
+
+   @Test public void acknowledge_ignoresSequenceNumbersNotAppendedYet() throws Exception {
+      File dir = folder.newFolder("sensor");
+      SensorJournal journal = new SensorJournal(dir);
+      journal.append(packet(1, 1));
+      journal.acknowledge(100);
+      journal.append(packet(2, 1));
+
+      List<SensorDataPacket> recovered = new SensorJournal(dir).recover();
+      assertEquals(1, recovered.size());
+      assertEquals(1002L, recovered.get(0).getTime());
+   }
+
+   @Test public void delete_removesTheDirectory() throws Exception {
+      File dir = folder.newFolder("sensor");
+      SensorJournal journal = new SensorJournal(dir);
+      journal.append(packet(1, 1));
+      journal.delete();
+      assertFalse(dir.exists());
+   }
+}
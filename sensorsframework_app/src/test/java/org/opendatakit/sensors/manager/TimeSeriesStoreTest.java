@@ -0,0 +1,96 @@
+package org.opendatakit.sensors.manager;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+import org.opendatakit.sensors.SensorDataPacket;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Encodes chunks the way the store fills them and decodes them the way it
+ * reads them back.
+ */
+@RunWith(JUnit4.class)
+public class TimeSeriesStoreTest {
+
+   private static TimeSeriesStore.ChunkBuilder chunk(long startTime, long... times) {
+      TimeSeriesStore.ChunkBuilder builder = new TimeSeriesStore.ChunkBuilder("s", startTime);
+      for (int i = 0; i < times.length; i++) {
+         builder.add(new SensorDataPacket(new byte[] { (byte) i, (byte) (i + 1) }, times[i]));
+      }
+      return builder;
+   }
+
+   private static List<SensorDataPacket> decode(TimeSeriesStore.ChunkBuilder builder,
+       long fromTime, long toTime) {
+      List<SensorDataPacket> packets = new ArrayList<SensorDataPacket>();
+      TimeSeriesStore.decode(builder.startTime, builder.data.toByteArray(), fromTime, toTime,
+          packets);
+      return packets;
+   }
+
+   @Test public void chunk_roundTripsTimesAndPayloads() throws Exception {
+      TimeSeriesStore.ChunkBuilder builder = chunk(5000, 5000, 5001, 5001, 5200, 5999);
+      assertEquals(5, builder.packets);
+      assertEquals(5999, builder.endTime);
+
+      List<SensorDataPacket> packets = decode(builder, Long.MIN_VALUE, Long.MAX_VALUE);
+      long[] times = { 5000, 5001, 5001, 5200, 5999 };
+      assertEquals(times.length, packets.size());
+      for (int i = 0; i < times.length; i++) {
+         assertEquals(times[i], packets.get(i).getTime());
+         assertArrayEquals(new byte[] { (byte) i, (byte) (i + 1) }, packets.get(i).getPayload());
+      }
+   }
+
+   @Test public void chunk_keepsPacketsArrivingOutOfOrder() throws Exception {
+      TimeSeriesStore.ChunkBuilder builder = chunk(100, 100, 300, 150, 299);
+      assertEquals(300, builder.endTime);
+
+      List<SensorDataPacket> packets = decode(builder, 0, 1000);
+      assertEquals(4, packets.size());
+      assertEquals(150, packets.get(2).getTime());
+      assertEquals(299, packets.get(3).getTime());
+   }
+
+   @Test public void chunk_encodesEmptyAndMissingPayloads() throws Exception {
+      TimeSeriesStore.ChunkBuilder builder = new TimeSeriesStore.ChunkBuilder("s", 10);
+      builder.add(new SensorDataPacket(new byte[0], 10));
+      builder.add(new SensorDataPacket(null, 11));
+
+      List<SensorDataPacket> packets = decode(builder, 0, 100);
+      assertEquals(2, packets.size());
+      assertEquals(0, packets.get(0).getPayload().length);
+      assertEquals(0, packets.get(1).getPayload().length);
+      assertEquals(11, packets.get(1).getTime());
+   }
+
+   @Test public void chunk_smallDeltasTakeOneByteEach() throws Exception {
+      TimeSeriesStore.ChunkBuilder builder = chunk(0, 0, 1, 2, 3);
+      // a delta byte, a length byte and two payload bytes per packet
+      assertEquals(4 * 4, builder.data.size());
+   }
+
+   @Test public void decode_returnsOnlyTheTimeRange() throws Exception {
+      TimeSeriesStore.ChunkBuilder builder = chunk(1000, 1000, 1100, 1200, 1300);
+
+      List<SensorDataPacket> packets = decode(builder, 1100, 1200);
+      assertEquals(2, packets.size());
+      assertEquals(1100, packets.get(0).getTime());
+      assertEquals(1200, packets.get(1).getTime());
+      assertTrue(decode(builder, 1301, 2000).isEmpty());
+   }
+
+   @Test public void fits_keepsAChunkWithinTheMaximumSpan() throws Exception {
+      TimeSeriesStore.ChunkBuilder builder = chunk(1000, 1000);
+      assertTrue(builder.fits(1000));
+      assertTrue(builder.fits(1000 + TimeSeriesStore.MAX_CHUNK_SPAN_MS - 1));
+      assertFalse(builder.fits(1000 + TimeSeriesStore.MAX_CHUNK_SPAN_MS));
+      // an earlier packet would put the chunk start after it
+      assertFalse(builder.fits(999));
+   }
+}
@@ -0,0 +1,194 @@
+package org.opendatakit.sensors.network;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs the selector against probes on the loopback interface.
+ */
+@RunWith(JUnit4.class)
+public class NetworkSelectorTest {
+
+   private static final long WAIT_MS = 5000;
+
+   private final CountDownLatch connected = new CountDownLatch(1);
+   private final CountDownLatch lost = new CountDownLatch(1);
+   private final BlockingQueue<byte[]> received = new LinkedBlockingQueue<byte[]>();
+
+   private NetworkSelector selector;
+   private Thread selectorThread;
+
+   @Before public void startSelector() throws Exception {
+      selector = new NetworkSelector(new NetworkSelector.Listener() {
+         public void connected(NetworkSensorConnection connection) {
+            connected.countDown();
+         }
+
+         public void dataReceived(NetworkSensorConnection connection, byte[] data) {
+            received.add(data);
+         }
+
+         public void connectionLost(NetworkSensorConnection connection) {
+            lost.countDown();
+         }
+      });
+      selectorThread = new Thread(selector, "NetworkSelectorTest");
+      selectorThread.start();
+   }
+
+   @After public void stopSelector() throws Exception {
+      selector.shutdown();
+      selectorThread.join(WAIT_MS);
+   }
+
+   private NetworkSensorConnection connect(String sensorId) throws Exception {
+      NetworkSensorConnection connection = new NetworkSensorConnection(sensorId);
+      assertTrue(selector.add(connection, connection.open()));
+      assertTrue(connected.await(WAIT_MS, TimeUnit.MILLISECONDS));
+      return connection;
+   }
+
+   private String receive(int length) throws Exception {
+      ByteArrayOutputStream data = new ByteArrayOutputStream();
+      while (data.size() < length) {
+         byte[] next = received.poll(WAIT_MS, TimeUnit.MILLISECONDS);
+         assertNotNull("timed out after " + data.size() + " bytes", next);
+         data.write(next);
+      }
+      return new String(data.toByteArray(), "US-ASCII");
+   }
+
+   private static String readFully(InputStream in, int length) throws Exception {
+      byte[] data = new byte[length];
+      int read = 0;
+      while (read < length) {
+         int count = in.read(data, read, length - read);
+         assertTrue("stream ended after " + read + " bytes", count > 0);
+         read += count;
+      }
+      return new String(data, "US-ASCII");
+   }
+
+   @Test public void tcp_readsAndWrites() throws Exception {
+      ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+      try {
+         NetworkSensorConnection connection = connect("tcp://127.0.0.1:" + server.getLocalPort());
+         Socket probe = server.accept();
+         probe.setSoTimeout((int) WAIT_MS);
+
+         connection.setAcquiring(true);
+         connection.queueWrite("start".getBytes("US-ASCII"));
+         selector.updateInterest(connection);
+         assertEquals("start", readFully(probe.getInputStream(), 5));
+
+         probe.getOutputStream().write("reading=42".getBytes("US-ASCII"));
+         assertEquals("reading=42", receive(10));
+         probe.close();
+      } finally {
+         server.close();
+      }
+   }
+
+   @Test public void tcp_reportsTheProbeClosing() throws Exception {
+      ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+      try {
+         NetworkSensorConnection connection = connect("tcp://127.0.0.1:" + server.getLocalPort());
+         Socket probe = server.accept();
+         connection.setAcquiring(true);
+         selector.updateInterest(connection);
+
+         probe.close();
+         assertTrue(lost.await(WAIT_MS, TimeUnit.MILLISECONDS));
+         assertNull(selector.get(connection.getSensorId()));
+      } finally {
+         server.close();
+      }
+   }
+
+   @Test public void udp_readsAndWrites() throws Exception {
+      DatagramSocket probe = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+      probe.setSoTimeout((int) WAIT_MS);
+      try {
+         NetworkSensorConnection connection = connect("udp://127.0.0.1:" + probe.getLocalPort());
+         connection.setAcquiring(true);
+         connection.queueWrite("start".getBytes("US-ASCII"));
+         selector.updateInterest(connection);
+
+         DatagramPacket command = new DatagramPacket(new byte[64], 64);
+         probe.receive(command);
+         assertEquals("start", new String(command.getData(), 0, command.getLength(), "US-ASCII"));
+
+         byte[] reading = "reading=42".getBytes("US-ASCII");
+         probe.send(new DatagramPacket(reading, reading.length, command.getSocketAddress()));
+         assertEquals("reading=42", receive(10));
+      } finally {
+         probe.close();
+      }
+   }
+
+   @Test public void shutdown_closesEverySocket() throws Exception {
+      ServerSocket server = new ServerSocket(0, 2, InetAddress.getByName("127.0.0.1"));
+      try {
+         connect("tcp://127.0.0.1:" + server.getLocalPort());
+         Socket probe = server.accept();
+         probe.setSoTimeout((int) WAIT_MS);
+
+         // a close that is only queued when the loop stops must still happen
+         selector.remove("tcp://127.0.0.1:" + server.getLocalPort());
+         selector.shutdown();
+         assertTrue(selector.awaitTermination(WAIT_MS));
+         assertEquals(-1, probe.getInputStream().read());
+         probe.close();
+      } finally {
+         server.close();
+      }
+   }
+
+   @Test public void shutdown_closesConnectionsStillRegistered() throws Exception {
+      ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+      try {
+         connect("tcp://127.0.0.1:" + server.getLocalPort());
+         Socket probe = server.accept();
+         probe.setSoTimeout((int) WAIT_MS);
+
+         selector.shutdown();
+         assertTrue(selector.awaitTermination(WAIT_MS));
+         assertEquals(-1, probe.getInputStream().read());
+         probe.close();
+      } finally {
+         server.close();
+      }
+   }
+
+   @Test public void afterShutdown_nothingIsAccepted() throws Exception {
+      ServerSocket server = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+      try {
+         selector.shutdown();
+         assertTrue(selector.awaitTermination(WAIT_MS));
+
+         NetworkSensorConnection connection =
+             new NetworkSensorConnection("tcp://127.0.0.1:" + server.getLocalPort());
+         assertFalse(selector.add(connection, connection.open()));
+         assertNull(selector.get(connection.getSensorId()));
+      } finally {
+         server.close();
+      }
+   }
+}
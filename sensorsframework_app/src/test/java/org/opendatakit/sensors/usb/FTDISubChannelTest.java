@@ -0,0 +1,96 @@
+package org.opendatakit.sensors.usb;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class FTDISubChannelTest {
+
+   // values the Linux ftdi_sio driver computes for the same chips
+   @Test public void encodeBaudRate_commonRates() throws Exception {
+      assertArrayEquals(new int[] { 0x4138, 0 }, FTDISubChannel.encodeBaudRate(9600));
+      assertArrayEquals(new int[] { 0xC04E, 0 }, FTDISubChannel.encodeBaudRate(38400));
+      assertArrayEquals(new int[] { 0xC034, 0 }, FTDISubChannel.encodeBaudRate(57600));
+      assertArrayEquals(new int[] { 0x001A, 0 }, FTDISubChannel.encodeBaudRate(115200));
+   }
+
+   @Test public void encodeBaudRate_fastRatesUseSpecialDivisors() throws Exception {
+      assertArrayEquals(new int[] { 0, 0 }, FTDISubChannel.encodeBaudRate(3000000));
+      assertArrayEquals(new int[] { 1, 0 }, FTDISubChannel.encodeBaudRate(2000000));
+   }
+
+   @Test public void encodeBaudRate_threeEighthsGoesToIndexBit() throws Exception {
+      // 24 MHz / (8 * 10 + 3): divisor 10 and 3/8, whose code 4 sets bit 0 of wIndex
+      assertArrayEquals(new int[] { 10, 1 }, FTDISubChannel.encodeBaudRate(24000000 / 83));
+   }
+
+   @Test public void encodeBaudRate_rejectsUnsupportedRates() throws Exception {
+      int[] unsupported = { 0, -9600, 3500001, 100, 2200000 };
+      for (int rate : unsupported) {
+         try {
+            FTDISubChannel.encodeBaudRate(rate);
+            fail("accepted " + rate);
+         } catch (IllegalArgumentException e) {
+            // expected
+         }
+      }
+   }
+
+   private static ByteBuffer transfer(int length, int packetSize) {
+      // status bytes are 0xF0, data bytes count up from 0
+      ByteBuffer buffer = ByteBuffer.allocate(length);
+      byte next = 0;
+      for (int i = 0; i < length; i++) {
+         buffer.put(i % packetSize < 2 ? (byte) 0xF0 : next++);
+      }
+      return buffer;
+   }
+
+   private static byte[] countingBytes(int length) {
+      byte[] data = new byte[length];
+      for (int i = 0; i < length; i++) {
+         data[i] = (byte) i;
+      }
+      return data;
+   }
+
+   @Test public void stripStatusBytes_singlePacket() throws Exception {
+      assertArrayEquals(countingBytes(10),
+          FTDISubChannel.stripStatusBytes(transfer(12, 64), 12, 64));
+   }
+
+   @Test public void stripStatusBytes_severalPackets() throws Exception {
+      // two full packets and a partial one
+      assertArrayEquals(countingBytes(62 + 62 + 4),
+          FTDISubChannel.stripStatusBytes(transfer(134, 64), 134, 64));
+   }
+
+   @Test public void stripStatusBytes_statusOnly() throws Exception {
+      assertEquals(0, FTDISubChannel.stripStatusBytes(transfer(2, 64), 2, 64).length);
+      assertEquals(0, FTDISubChannel.stripStatusBytes(transfer(0, 64), 0, 64).length);
+   }
+
+   @Test public void stripStatusBytes_truncatedStatusOfLastPacket() throws Exception {
+      // a last packet cut short inside its status bytes carries no data
+      assertArrayEquals(countingBytes(62),
+          FTDISubChannel.stripStatusBytes(transfer(65, 64), 65, 64));
+   }
+
+   @Test public void stripStatusBytes_onlyReadsTheReceivedLength() throws Exception {
+      ByteBuffer buffer = transfer(128, 64);
+      assertArrayEquals(countingBytes(62 + 10),
+          FTDISubChannel.stripStatusBytes(buffer, 76, 64));
+   }
+
+   @Test public void withDeviceSuffix_usesTheBusAndDeviceNumbers() throws Exception {
+      assertEquals("FTDI_A6008isP_001_004",
+          FTDISubChannel.withDeviceSuffix("FTDI_A6008isP", "/dev/bus/usb/001/004"));
+      assertEquals("FTDI_A6008isP_dev_ttyUSB0",
+          FTDISubChannel.withDeviceSuffix("FTDI_A6008isP", "/dev/ttyUSB0"));
+   }
+}
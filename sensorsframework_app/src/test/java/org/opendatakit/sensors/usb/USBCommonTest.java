@@ -0,0 +1,70 @@
+package org.opendatakit.sensors.usb;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class USBCommonTest {
+
+   private static final long[] VALUES = { 0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE,
+       0xFFFFFFFFL, Long.MAX_VALUE, -1 };
+
+   @Test public void varint_roundTrips() throws Exception {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      for (long value : VALUES) {
+         USBCommon.writeVarint(out, value);
+      }
+      byte[] encoded = out.toByteArray();
+
+      int[] position = { 0 };
+      for (long value : VALUES) {
+         assertEquals(value, USBCommon.readVarint(encoded, position));
+      }
+      assertEquals(encoded.length, position[0]);
+   }
+
+   @Test public void varint_usesOneBytePerSevenBits() throws Exception {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      USBCommon.writeVarint(out, 300);
+      assertArrayEquals(new byte[] { (byte) 0xAC, 0x02 }, out.toByteArray());
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void varint_truncatedInputThrows() throws Exception {
+      USBCommon.readVarint(new byte[] { (byte) 0xAC }, new int[] { 0 });
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void varint_emptyInputThrows() throws Exception {
+      USBCommon.readVarint(new byte[0], new int[] { 0 });
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void varint_longerThan64BitsThrows() throws Exception {
+      byte[] tooLong = new byte[11];
+      for (int i = 0; i < tooLong.length; i++) {
+         tooLong[i] = (byte) 0x80;
+      }
+      USBCommon.readVarint(tooLong, new int[] { 0 });
+   }
+
+   @Test public void zigZag_roundTripsNegativeValues() throws Exception {
+      long[] values = { 0, -1, 1, -2, 2, -64, 64, Integer.MIN_VALUE, Long.MIN_VALUE,
+          Long.MAX_VALUE };
+      for (long value : values) {
+         assertEquals(value, USBCommon.decodeZigZag(USBCommon.encodeZigZag(value)));
+      }
+   }
+
+   @Test public void zigZag_keepsSmallDeltasSmall() throws Exception {
+      assertEquals(0, USBCommon.encodeZigZag(0));
+      assertEquals(1, USBCommon.encodeZigZag(-1));
+      assertEquals(2, USBCommon.encodeZigZag(1));
+      assertEquals(3, USBCommon.encodeZigZag(-2));
+   }
+}
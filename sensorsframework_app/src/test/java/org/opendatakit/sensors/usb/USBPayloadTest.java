@@ -0,0 +1,124 @@
+package org.opendatakit.sensors.usb;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.*;
+
+@RunWith(JUnit4.class)
+public class USBPayloadTest {
+
+   private static final long BASE_TIMESTAMP = 0x01020304L;
+
+   /**
+    * Encodes readings the way the board does: the header, then per reading
+    * the timestamp delta and one delta per value, all zigzag varints.
+    */
+   private static byte[] encodeCompact(long[] timestamps, long[][] values, int valueWidth) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      out.write((int) (BASE_TIMESTAMP & 0xff));
+      out.write((int) ((BASE_TIMESTAMP >> 8) & 0xff));
+      out.write((int) ((BASE_TIMESTAMP >> 16) & 0xff));
+      out.write((int) ((BASE_TIMESTAMP >> 24) & 0xff));
+      out.write(timestamps.length);
+      out.write(values[0].length);
+      out.write(valueWidth);
+
+      long previousTimestamp = BASE_TIMESTAMP;
+      long[] previousValues = new long[values[0].length];
+      for (int reading = 0; reading < timestamps.length; reading++) {
+         USBCommon.writeVarint(out,
+             USBCommon.encodeZigZag(timestamps[reading] - previousTimestamp));
+         previousTimestamp = timestamps[reading];
+         for (int value = 0; value < values[reading].length; value++) {
+            USBCommon.writeVarint(out,
+                USBCommon.encodeZigZag(values[reading][value] - previousValues[value]));
+            previousValues[value] = values[reading][value];
+         }
+      }
+      return out.toByteArray();
+   }
+
+   @Test public void compactSeries_expandsToRawLayout() throws Exception {
+      long[] timestamps = { BASE_TIMESTAMP, BASE_TIMESTAMP + 10, BASE_TIMESTAMP + 20 };
+      long[][] values = { { 100, -5 }, { 90, 3 }, { 300, -300 } };
+
+      USBPayload payload = new USBPayload(encodeCompact(timestamps, values, 2), 42L, 7L, false,
+          true);
+
+      assertTrue(payload.isReadingSeries());
+      assertTrue(payload.hasReadingTimestamps());
+      assertEquals(3, payload.getNumOfReadingsInSeries());
+      assertEquals(BASE_TIMESTAMP, payload.getSeriesTimestamp());
+      assertArrayEquals(timestamps, payload.getReadingTimestamps());
+      assertEquals(3 * 2 * 2, payload.getPayloadLength());
+      // little-endian, two bytes per value
+      assertArrayEquals(new byte[] { 100, 0, (byte) 0xFB, (byte) 0xFF },
+          payload.getReadingBytes(0));
+      assertArrayEquals(new byte[] { 90, 0, 3, 0 }, payload.getReadingBytes(1));
+      assertArrayEquals(new byte[] { 0x2C, 0x01, (byte) 0xD4, (byte) 0xFE },
+          payload.getReadingBytes(2));
+   }
+
+   @Test public void compactSeries_negativeTimestampDeltas() throws Exception {
+      // readings may arrive with a clock that steps back
+      long[] timestamps = { BASE_TIMESTAMP + 50, BASE_TIMESTAMP + 20, BASE_TIMESTAMP - 1 };
+      long[][] values = { { 1 }, { 2 }, { 3 } };
+
+      USBPayload payload = new USBPayload(encodeCompact(timestamps, values, 1), 0L, 0L, false,
+          true);
+
+      assertArrayEquals(timestamps, payload.getReadingTimestamps());
+      assertArrayEquals(new byte[] { 1, 2, 3 }, payload.getRawBytes());
+   }
+
+   @Test public void compactSeries_emptySeries() throws Exception {
+      byte[] header = { 4, 3, 2, 1, 0, 2, 2 };
+      USBPayload payload = new USBPayload(header, 0L, 0L, false, true);
+
+      assertEquals(0, payload.getNumOfReadingsInSeries());
+      assertEquals(0, payload.getPayloadLength());
+      assertEquals(BASE_TIMESTAMP, payload.getSeriesTimestamp());
+   }
+
+   @Test public void compactSeries_truncatedReadingThrows() throws Exception {
+      long[] timestamps = { BASE_TIMESTAMP, BASE_TIMESTAMP + 1000 };
+      long[][] values = { { 5000 }, { -5000 } };
+      byte[] encoded = encodeCompact(timestamps, values, 4);
+
+      for (int length = 7; length < encoded.length; length++) {
+         byte[] truncated = new byte[length];
+         System.arraycopy(encoded, 0, truncated, 0, length);
+         try {
+            new USBPayload(truncated, 0L, 0L, false, true);
+            fail("no error for " + length + " of " + encoded.length + " bytes");
+         } catch (IllegalArgumentException e) {
+            // expected
+         }
+      }
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void compactSeries_truncatedHeaderThrows() throws Exception {
+      new USBPayload(new byte[] { 4, 3, 2, 1, 1, 1 }, 0L, 0L, false, true);
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void compactSeries_badValueWidthThrows() throws Exception {
+      new USBPayload(new byte[] { 4, 3, 2, 1, 1, 1, 9, 0, 0 }, 0L, 0L, false, true);
+   }
+
+   @Test public void rawSeries_keepsReadings() throws Exception {
+      byte[] raw = { 4, 3, 2, 1, 2, 10, 20 };
+      USBPayload payload = new USBPayload(raw, 0L, 0L, true);
+
+      assertTrue(payload.isReadingSeries());
+      assertFalse(payload.hasReadingTimestamps());
+      assertEquals(2, payload.getNumOfReadingsInSeries());
+      assertEquals(BASE_TIMESTAMP, payload.getSeriesTimestamp());
+      assertArrayEquals(new byte[] { 10, 20 }, payload.getRawBytes());
+   }
+}